@@ -0,0 +1,216 @@
+package chiralsoftware.linkerwebp;
+
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+import java.util.logging.Logger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * Encode with settings which get faster as the load rises, to hold a latency
+ * target through traffic spikes instead of letting the queue back up. After every
+ * encode the recent latency (a moving average) and the queue depth are checked.
+ * If either is over its target the encoder steps one level toward faster
+ * settings: a lower method, one entropy pass, fewer segments. It waits a few
+ * encodes between steps so the average can catch up. When both have been
+ * comfortably under target for a while it steps back one level. Every level is
+ * faster than the one before it, so base settings which are already fast have
+ * fewer levels. The quality and everything else in the base settings are never
+ * changed, and each result records the settings it was encoded with.
+ * <p>
+ * The queue depth is the number of encodes in progress on this encoder, unless
+ * a supplier is given, such as the size of the executor queue which feeds it.
+ * This is thread safe; one instance should be shared by all the workers.
+ */
+public final class AdaptiveEncoder {
+
+    private static final Logger LOG = Logger.getLogger(AdaptiveEncoder.class.getName());
+
+    /** The fastest level any encoder has; see {@link #getMaxLevel()} */
+    public static final int MAX_LEVEL = 3;
+
+    /** The weight of the newest latency in the moving average */
+    private static final double SMOOTHING = 0.2;
+
+    /** Consecutive encodes under half the targets before stepping back a level */
+    private static final int RECOVER_AFTER = 20;
+
+    /** Encodes after stepping up before stepping up again, so the average can show
+     * the effect of the last step */
+    private static final int HOLD_AFTER_STEP = 5;
+
+    /** The settings an encode used, with the level they came from */
+    public static record Result(byte[] webp, EncoderSettings settings, int level, long nanos) { }
+
+    private final EncoderSettings base;
+    private final long latencyTargetNanos;
+    private final int queueTarget;
+    private final IntSupplier queueDepth;
+    /** The settings for each level, from the base settings to the fastest */
+    private final List<EncoderSettings> levels;
+
+    private final AtomicInteger inProgress = new AtomicInteger();
+    private final InstancePool<ImageWriter> writers;
+
+    private int level = 0;
+    private double averageNanos = 0;
+    private int calm = 0;
+    private int sinceStep = HOLD_AFTER_STEP;
+
+    /** @param queueTarget the queue depth above which encodes should speed up */
+    public AdaptiveEncoder(EncoderSettings base, Duration latencyTarget, int queueTarget) {
+        this(base, latencyTarget, queueTarget, null);
+    }
+
+    /** @param queueDepth the depth of the caller's queue, or null to count the encodes
+     * in progress */
+    public AdaptiveEncoder(EncoderSettings base, Duration latencyTarget, int queueTarget, IntSupplier queueDepth) {
+        if(base == null || latencyTarget == null) throw new NullPointerException();
+        if(queueTarget < 1) throw new IllegalArgumentException("queueTarget must be at least 1: " + queueTarget);
+        this.base = base;
+        this.latencyTargetNanos = latencyTarget.toNanos();
+        this.queueTarget = queueTarget;
+        this.queueDepth = queueDepth != null ? queueDepth : inProgress::get;
+        this.levels = levels(base);
+        final WebpWriterSpi spi = IIORegistry.getDefaultInstance().getServiceProviderByClass(WebpWriterSpi.class);
+        this.writers = (spi != null ? spi : new WebpWriterSpi()).getPool();
+    }
+
+    /** Level 0 is the base settings. The next levels lower the method, and drop to
+     * one entropy pass and fewer segments. A level which wouldn't lower any of those
+     * is left out. A negative method, pass or segments means the preset's value,
+     * which is method 4, 1 pass and 4 segments. */
+    private static List<EncoderSettings> levels(EncoderSettings base) {
+        final int method = base.method() < 0 ? 4 : base.method();
+        final int pass = base.pass() < 0 ? 1 : base.pass();
+        final int segments = base.segments() < 0 ? 4 : base.segments();
+        // method, pass and segments, each no higher than in the step before
+        final int[][] steps = {
+            { method, pass, segments },
+            { Math.max(0, Math.min(method - 1, 4)), 1, segments },
+            { Math.max(0, Math.min(method - 2, 2)), 1, Math.min(segments, 2) },
+            { 0, 1, 1 } };
+        final List<EncoderSettings> result = new ArrayList<>(steps.length);
+        result.add(base);
+        int[] previous = steps[0];
+        for(int i = 1; i < steps.length; i++) {
+            final int[] step = steps[i];
+            // lossless encodes ignore the passes and the segments
+            final boolean faster = step[0] < previous[0] ||
+                    (! base.lossless() && (step[1] < previous[1] || step[2] < previous[2]));
+            if(! faster) continue;
+            result.add(base.withMethod(step[0]).withPass(step[1]).withSegments(step[2]));
+            previous = step;
+        }
+        return List.copyOf(result);
+    }
+
+    /** The settings for a level */
+    public EncoderSettings settingsFor(int level) {
+        if(level < 0 || level > getMaxLevel())
+            throw new IllegalArgumentException("level must be between 0 and " + getMaxLevel() + ": " + level);
+        return levels.get(level);
+    }
+
+    /** The fastest level of this encoder, which is lower than {@link #MAX_LEVEL} if
+     * the base settings are already fast */
+    public int getMaxLevel() {
+        return levels.size() - 1;
+    }
+
+    public synchronized int getLevel() {
+        return level;
+    }
+
+    /** The moving average of the encode latency */
+    public synchronized Duration getAverageLatency() {
+        return Duration.ofNanos((long) averageNanos);
+    }
+
+    /** Encode an image through the ImageIO writer */
+    public Result encode(RenderedImage image) throws IOException {
+        final int encodeLevel = getLevel();
+        final EncoderSettings settings = settingsFor(encodeLevel);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        inProgress.incrementAndGet();
+        final long start = System.nanoTime();
+        try {
+            try (InstancePool.Lease<ImageWriter> lease = writers.lease();
+                    ImageOutputStream ios = new MemoryCacheImageOutputStream(baos)) {
+                final ImageWriter writer = lease.get();
+                final WebpWriteParam param = (WebpWriteParam) writer.getDefaultWriteParam();
+                param.setSettings(settings);
+                writer.setOutput(ios);
+                writer.write(null, new IIOImage(image, null, null), param);
+            }
+        } finally {
+            inProgress.decrementAndGet();
+        }
+        return finish(baos.toByteArray(), settings, encodeLevel, start);
+    }
+
+    /** Encode raw pixels with {@link WebpCodec} */
+    public Result encode(MemorySegment pixels, PixelLayout layout, int width, int height, int stride)
+            throws IOException {
+        final int encodeLevel = getLevel();
+        final EncoderSettings settings = settingsFor(encodeLevel);
+        final byte[] webp;
+        inProgress.incrementAndGet();
+        final long start = System.nanoTime();
+        try {
+            webp = WebpCodec.encode(pixels, layout, width, height, stride, settings);
+        } finally {
+            inProgress.decrementAndGet();
+        }
+        return finish(webp, settings, encodeLevel, start);
+    }
+
+    /** Called after the encode has left inProgress, so it doesn't count itself in
+     * the queue depth */
+    private Result finish(byte[] webp, EncoderSettings settings, int encodeLevel, long start) {
+        final long nanos = System.nanoTime() - start;
+        record(nanos);
+        return new Result(webp, settings, encodeLevel, nanos);
+    }
+
+    /** Update the average and move at most one level */
+    private synchronized void record(long nanos) {
+        averageNanos = averageNanos == 0 ? nanos : averageNanos + SMOOTHING * (nanos - averageNanos);
+        final int depth = queueDepth.getAsInt();
+        sinceStep++;
+        if(averageNanos > latencyTargetNanos || depth > queueTarget) {
+            calm = 0;
+            if(level < getMaxLevel() && sinceStep >= HOLD_AFTER_STEP) {
+                level++;
+                sinceStep = 0;
+                LOG.info("overloaded (average " + (long) (averageNanos / 1e6) + " ms, queue " + depth +
+                        "); encoding at level: " + level);
+            }
+            return;
+        }
+        if(averageNanos < latencyTargetNanos / 2 && depth <= queueTarget / 2) {
+            if(++calm >= RECOVER_AFTER && level > 0) {
+                calm = 0;
+                level--;
+                LOG.info("load has dropped; encoding at level: " + level);
+            }
+        } else calm = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveEncoder{" + "level=" + getLevel() + ", averageLatency=" + getAverageLatency() +
+                ", queueDepth=" + queueDepth.getAsInt() + '}';
+    }
+
+}
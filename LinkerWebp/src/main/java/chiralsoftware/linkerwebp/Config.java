@@ -1,10 +1,12 @@
 package chiralsoftware.linkerwebp;
 
-import chiralsoftware.linkerwebp.impl.LibWebp.ImageHint;
+import chiralsoftware.linkerwebp.impl.SegmentHash;
 import static java.lang.System.lineSeparator;
 import java.lang.invoke.VarHandle;
 import static jdk.incubator.foreign.CLinker.C_INT;
 import jdk.incubator.foreign.GroupLayout;
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemoryLayout;
 import static jdk.incubator.foreign.MemoryLayout.PathElement.groupElement;
 import static jdk.incubator.foreign.MemoryLayout.paddingLayout;
 import static jdk.incubator.foreign.MemoryLayout.structLayout;
@@ -111,9 +113,21 @@ public final class Config {
         return (Float) Config.varHandle(float.class, groupElement("quality")).get(segment);
     }
     
+    public void setLossless(int i) {
+        Config.varHandle(int.class, groupElement("lossless")).set(segment, i);
+    }
+    
+    public void setQuality(float f) {
+        Config.varHandle(float.class, groupElement("quality")).set(segment, f);
+    }
+    
     /** quality/speed trade-off (0=fast, 6=slower-better) */
     public int getMethod() {
-        return (Integer) Config.varHandle(int.class, groupElement("lossless")).get(segment);
+        return (Integer) Config.varHandle(int.class, groupElement("method")).get(segment);
+    }
+    
+    public void setMethod(int i) {
+        Config.varHandle(int.class, groupElement("method")).set(segment, i);
     }
     
     /** Hint for image type (lossless only for now).  */
@@ -126,11 +140,19 @@ public final class Config {
         return ImageHint.values()[hintValue];
     }
     
+    public void setImageHint(ImageHint imageHint) {
+        Config.varHandle(int.class, groupElement("image_hint")).set(segment, imageHint.ordinal());
+    }
+    
     /** if non-zero, set the desired target size in bytes.
      Takes precedence over the 'compression' parameter. */
     public int getTargetSize() {
         return (Integer) Config.varHandle(int.class, groupElement("target_size")).get(segment);
     }
+    
+    public void setTargetSize(int i) {
+        Config.varHandle(int.class, groupElement("target_size")).set(segment, i);
+    }
      
     /**  if non-zero, specifies the minimal distortion to try to achieve. Takes precedence over target_size. */
     public float getTargetPSNR() {
@@ -142,6 +164,10 @@ public final class Config {
         return (Integer) Config.varHandle(int.class, groupElement("segments")).get(segment);
     }
     
+    public void setSegments(int i) {
+        Config.varHandle(int.class, groupElement("segments")).set(segment, i);
+    }
+    
     /**  Spatial Noise Shaping. 0=off, 100=maximum. */
     public int getSnsStrength() {
         return (Integer) Config.varHandle(int.class, groupElement("sns_strength")).get(segment);
@@ -184,11 +210,19 @@ public final class Config {
     public int getAlphaQuality() {
         return (Integer) Config.varHandle(int.class, groupElement("alpha_quality")).get(segment);
     }
+    
+    public void setAlphaQuality(int i) {
+        Config.varHandle(int.class, groupElement("alpha_quality")).set(segment, i);
+    }
 
     /** number of entropy-analysis passes (in [1..10]). */
     public int getPass() {
         return (Integer) Config.varHandle(int.class, groupElement("pass")).get(segment);
     }
+    
+    public void setPass(int i) {
+        Config.varHandle(int.class, groupElement("pass")).set(segment, i);
+    }
 
     /** if true, export the compressed picture back. In-loop filtering is not applied. */
     public int getShowCompressed() {
@@ -225,11 +259,19 @@ public final class Config {
     public int getThreadLevel() {
         return (Integer) Config.varHandle(int.class, groupElement("thread_level")).get(segment);
     }
+    
+    public void setThreadLevel(int i) {
+        Config.varHandle(int.class, groupElement("thread_level")).set(segment, i);
+    }
 
     /** If set, reduce memory usage (but increase CPU use). */
     public int getLowMemory() {
         return (Integer) Config.varHandle(int.class, groupElement("low_memory")).get(segment);
     }
+    
+    public void setLowMemory(int i) {
+        Config.varHandle(int.class, groupElement("low_memory")).set(segment, i);
+    }
 
     /** Near lossless encoding [0 = max loss .. 100 = off (default)]. */
     public int getNearLossless() {
@@ -243,6 +285,10 @@ public final class Config {
     public int getExact() {
         return (Integer) Config.varHandle(int.class, groupElement("exact")).get(segment);
     }
+    
+    public void setExact(int i) {
+        Config.varHandle(int.class, groupElement("exact")).set(segment, i);
+    }
 
     /** reserved for future lossless feature */
     public int getUseDeltaPalette() {
@@ -253,6 +299,10 @@ public final class Config {
     public int getUseSharpYuv() {
         return (Integer) Config.varHandle(int.class, groupElement("use_sharp_yuv")).get(segment);
     }
+    
+    public void setUseSharpYuv(int i) {
+        Config.varHandle(int.class, groupElement("use_sharp_yuv")).set(segment, i);
+    }
 
     @Override
     public String toString() {
@@ -287,6 +337,24 @@ public final class Config {
                 '}';
     }
 
+    /** The wrapped struct */
+    public MemorySegment segment() {
+        return segment;
+    }
+
+    /** A digest of every field of the config, in layout order. Two configs with the
+     * same field values have the same digest, regardless of how they were built.
+     * The reserved padding is not included. */
+    public long digest() {
+        long h = 0;
+        for(MemoryLayout member : Config.memberLayouts()) {
+            if(member.name().isEmpty()) continue; // padding
+            final long offset = Config.byteOffset(groupElement(member.name().get()));
+            h = SegmentHash.combine(h, MemoryAccess.getIntAtOffset(segment, offset));
+        }
+        return h;
+    }
+
     /** Read config data from a memory segment and return it as a string
      @return  null if the segment is null */
     public static String showConfig(MemorySegment segment) {
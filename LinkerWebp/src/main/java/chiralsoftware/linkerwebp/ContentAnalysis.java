@@ -0,0 +1,176 @@
+package chiralsoftware.linkerwebp;
+
+import java.nio.ByteOrder;
+import java.util.logging.Logger;
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * One pass over an image's pixels to choose encoder settings from its content:
+ * whether the alpha channel is fully opaque, whether there are few enough colours
+ * for a palette, how much of the image is flat, and how many hard edges it has.
+ * Screenshots, icons and diagrams come out smaller and faster as lossless, and
+ * photographs as lossy with a photo preset, without the caller tuning anything.
+ * <p>
+ * The alpha check reads eight bytes at a time and masks out everything but the
+ * alpha bytes, and it stops checking as soon as a pixel isn't opaque. The colour
+ * count and the edge scan look at one pixel at a time. Colours stop being counted
+ * once there are too many for a palette.
+ *
+ * @param opaque true if there is no alpha channel, or every alpha value is 255
+ * @param colors the number of distinct pixel values, up to {@link #PALETTE_SIZE} + 1
+ * @param flat the fraction of pixels which are the same as the pixel to their left
+ * @param edges the fraction of pixels with a channel which differs from the pixel
+ * to their left by more than {@link #EDGE_STEP}
+ */
+public record ContentAnalysis(int width, int height, boolean opaque, int colors, double flat, double edges) {
+
+    private static final Logger LOG = Logger.getLogger(ContentAnalysis.class.getName());
+
+    /** The most colours a WebP lossless palette holds */
+    public static final int PALETTE_SIZE = 256;
+
+    /** A step in any channel larger than this is an edge */
+    public static final int EDGE_STEP = 48;
+
+    /** Images this small with a palette are icons */
+    public static final int ICON_PIXELS = 128 * 128;
+
+    /** Synthetic images, like screenshots, are mostly runs of identical pixels */
+    public static final double FLAT_SYNTHETIC = 0.5;
+
+    /** Synthetic images with this many edges are mostly text */
+    public static final double EDGES_TEXT = 0.1;
+
+    /** Photographs with this many edges are detailed outdoor scenes rather than
+     * smooth portraits or interiors */
+    public static final double EDGES_PHOTO = 0.15;
+
+    /** Analyze interleaved pixels in any segment */
+    public static ContentAnalysis analyze(MemorySegment pixels, PixelLayout layout, int width, int height,
+            int stride) {
+        if(pixels.byteSize() < layout.minimumSize(width, height, stride))
+            throw new IllegalArgumentException("the pixels are: " + pixels.byteSize() +
+                    " bytes, which is too small for a " + width + "x" + height + " " + layout + " image");
+        return analyze(pixels, width, height, stride, layout.bytesPerPixel(),
+                layout.hasAlpha() ? layout.bandOffsets()[3] : -1);
+    }
+
+    /** Analyze interleaved pixels of 3 or 4 bytes
+     * @param alphaOffset the byte offset of alpha within a pixel, or -1 if there is none */
+    public static ContentAnalysis analyze(MemorySegment pixels, int width, int height, int stride,
+            int bytesPerPixel, int alphaOffset) {
+        if(bytesPerPixel != 3 && bytesPerPixel != 4)
+            throw new IllegalArgumentException("pixels must be 3 or 4 bytes; they were: " + bytesPerPixel);
+        // two pixels per long, with only their alpha bytes set
+        final long alphaMask = alphaOffset < 0 ? 0 :
+                (0xffL << (alphaOffset * 8)) | (0xffL << ((alphaOffset + 4) * 8));
+        boolean opaque = true;
+        final ColorSet colorSet = new ColorSet();
+        long flat = 0;
+        long edges = 0;
+        for(int y = 0; y < height; y++) {
+            final long row = (long) y * stride;
+            if(alphaOffset >= 0 && opaque) {
+                long all = -1L;
+                final long pairs = width / 2;
+                for(long i = 0; i < pairs; i++)
+                    all &= MemoryAccess.getLongAtOffset(pixels, row + i * 8, ByteOrder.LITTLE_ENDIAN);
+                if((all & alphaMask) != alphaMask) opaque = false;
+                else if(width % 2 == 1 &&
+                        MemoryAccess.getByteAtOffset(pixels, row + (width - 1) * 4L + alphaOffset) != (byte) 0xff)
+                    opaque = false;
+            }
+            int previous = pixel(pixels, row, bytesPerPixel);
+            colorSet.add(previous);
+            for(int x = 1; x < width; x++) {
+                final int current = pixel(pixels, row + (long) x * bytesPerPixel, bytesPerPixel);
+                if(current == previous) {
+                    flat++;
+                    continue;
+                }
+                colorSet.add(current);
+                if(maxStep(current, previous) > EDGE_STEP) edges++;
+                previous = current;
+            }
+        }
+        final double pixelCount = (double) width * height;
+        final ContentAnalysis result = new ContentAnalysis(width, height, opaque, colorSet.size(),
+                flat / pixelCount, edges / pixelCount);
+        LOG.finer("analysis: " + result);
+        return result;
+    }
+
+    private static int pixel(MemorySegment pixels, long offset, int bytesPerPixel) {
+        if(bytesPerPixel == 4) return MemoryAccess.getIntAtOffset(pixels, offset, ByteOrder.LITTLE_ENDIAN);
+        return (MemoryAccess.getByteAtOffset(pixels, offset) & 0xff) |
+                (MemoryAccess.getByteAtOffset(pixels, offset + 1) & 0xff) << 8 |
+                (MemoryAccess.getByteAtOffset(pixels, offset + 2) & 0xff) << 16;
+    }
+
+    /** The largest difference between corresponding bytes */
+    private static int maxStep(int a, int b) {
+        int max = 0;
+        for(int shift = 0; shift < 32; shift += 8) {
+            final int step = Math.abs(((a >>> shift) & 0xff) - ((b >>> shift) & 0xff));
+            if(step > max) max = step;
+        }
+        return max;
+    }
+
+    /** An open addressing set of pixel values which stops growing after
+     * PALETTE_SIZE + 1 of them */
+    private static final class ColorSet {
+        private final int[] values = new int[1024];
+        private final boolean[] used = new boolean[1024];
+        private int size = 0;
+
+        void add(int value) {
+            if(size > PALETTE_SIZE) return;
+            int i = (value * 0x9e3779b9) >>> 22;
+            while(used[i]) {
+                if(values[i] == value) return;
+                i = (i + 1) & 1023;
+            }
+            used[i] = true;
+            values[i] = value;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    /** True if the image fits in a palette */
+    public boolean isPalette() {
+        return colors <= PALETTE_SIZE;
+    }
+
+    /** True for screenshots, diagrams and other images made by software */
+    public boolean isSynthetic() {
+        return isPalette() || flat >= FLAT_SYNTHETIC;
+    }
+
+    public boolean lossless() {
+        return isSynthetic();
+    }
+
+    public Preset preset() {
+        if(isPalette()) return (long) width * height <= ICON_PIXELS ? Preset.ICON : Preset.DRAWING;
+        if(isSynthetic()) return edges >= EDGES_TEXT ? Preset.TEXT : Preset.DRAWING;
+        return edges >= EDGES_PHOTO ? Preset.PHOTO : Preset.PICTURE;
+    }
+
+    public ImageHint imageHint() {
+        if(isSynthetic()) return ImageHint.GRAPH;
+        return preset() == Preset.PHOTO ? ImageHint.PHOTO : ImageHint.PICTURE;
+    }
+
+    /** The caller's settings with the preset, lossless and image hint chosen from the
+     * content. The quality and everything else are kept. */
+    public EncoderSettings apply(EncoderSettings settings) {
+        return settings.withPreset(preset()).withLossless(lossless()).withImageHint(imageHint());
+    }
+
+}
@@ -0,0 +1,319 @@
+package chiralsoftware.linkerwebp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * A cache of decoded pixels, kept in native memory so large entries don't add to
+ * the Java heap. Entries are keyed by a SHA-256 digest of the compressed input, the
+ * decode mode, and the region and scale that were decoded. The cache is bounded by
+ * the total bytes of pixels, and evicts by least recently used or least frequently
+ * used. Every entry's memory is reserved against the {@link NativeMemoryBudget}, and
+ * entries which aren't pinned are evicted early when a new entry wouldn't otherwise
+ * fit in the budget, so idle entries don't make decodes wait.
+ * <p>
+ * Lookups return an {@link Entry} which holds a read-only view of the pixels with
+ * no copying. The entry is pinned until it is closed: an entry which is evicted
+ * while pinned is removed from the cache at once, and its memory is freed when the
+ * last holder closes it. Entries which are not pinned are freed at eviction time,
+ * without waiting for the GC.
+ * <pre>try (DecodedImageCache.Entry entry = cache.acquire(key)) {
+ *     if(entry != null) use(entry.pixels());
+ * }</pre>
+ */
+public final class DecodedImageCache {
+
+    private static final Logger LOG = Logger.getLogger(DecodedImageCache.class.getName());
+
+    /** The use counts are halved after this many uses per entry */
+    private static final int AGE_AFTER = 8;
+
+    public static enum Policy {
+        /** evict the least recently used entry */
+        LRU,
+        /** evict the least frequently used entry; ties go to the least recently used.
+         * The counts are halved as the cache is used, so an entry which was popular
+         * once doesn't stay after it stops being used. */
+        LFU
+    }
+
+    /** The identity of a decode. The region is in source pixels; the scaled size is the
+     * size of the output. A full, unscaled decode has a region covering the whole image
+     * and a scaled size equal to the region size. */
+    public static record Key(String contentDigest, long contentLength, String mode,
+            int regionX, int regionY, int regionWidth, int regionHeight, int scaledWidth, int scaledHeight) {
+
+        /** A full decode of the whole image */
+        public static Key of(String contentDigest, long contentLength, String mode, int width, int height) {
+            return new Key(contentDigest, contentLength, mode, 0, 0, width, height, width, height);
+        }
+
+        /** A full decode of the whole image in this compressed input */
+        public static Key of(MemorySegment content, String mode, int width, int height) {
+            return of(digest(content), content.byteSize(), mode, width, height);
+        }
+
+        /** The SHA-256 digest of the content, in hex. Input can come from anywhere, so
+         * a hash which could be made to collide would let one image be served for another. */
+        public static String digest(MemorySegment content) {
+            final MessageDigest sha256;
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch(NoSuchAlgorithmException nsae) {
+                // every Java platform is required to have SHA-256
+                throw new IllegalStateException(nsae);
+            }
+            sha256.update(content.asByteBuffer());
+            return HexFormat.of().formatHex(sha256.digest());
+        }
+    }
+
+    /** A snapshot of the counters */
+    public static record Stats(long hits, long misses, long evictions, int entries, long bytes) { }
+
+    /** Decoded pixels held in the cache. Close it when done with the pixels. */
+    public final class Entry implements AutoCloseable {
+
+        private Entry(Key key, int width, int height, int stride, MemorySegment segment, ResourceScope scope) {
+            this.key = key;
+            this.width = width;
+            this.height = height;
+            this.stride = stride;
+            this.segment = segment;
+            this.scope = scope;
+        }
+
+        private final Key key;
+        private final int width;
+        private final int height;
+        private final int stride;
+        private final MemorySegment segment;
+        private final ResourceScope scope;
+        /** guarded by the cache */
+        private int pins = 0;
+        private long uses = 0;
+        private boolean evicted = false;
+
+        public Key key() {
+            return key;
+        }
+
+        public int width() {
+            return width;
+        }
+
+        public int height() {
+            return height;
+        }
+
+        /** bytes per row */
+        public int stride() {
+            return stride;
+        }
+
+        /** A read-only view of the pixels. It is valid until this entry is closed. */
+        public MemorySegment pixels() {
+            return segment.asReadOnly();
+        }
+
+        /** Unpin this entry */
+        @Override
+        public void close() {
+            unpin(this);
+        }
+    }
+
+    private final long maxBytes;
+    private final Policy policy;
+
+    /** In access order, so LRU eviction takes the first entry; guarded by this */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /** Keys being decoded by another thread, so concurrent misses on the same key
+     * don't all decode; guarded by this */
+    private final Set<Key> loading = new HashSet<>();
+    private long bytes = 0;
+    /** Uses since the counts were last halved; guarded by this */
+    private long usesSinceAging = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public DecodedImageCache(long maxBytes, Policy policy) {
+        if(maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive; it was: " + maxBytes);
+        if(policy == null) throw new NullPointerException("policy can't be null");
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    /** @return the pinned entry, or null if it isn't cached */
+    public synchronized Entry acquire(Key key) {
+        final Entry entry = pin(key);
+        if(entry == null) misses.incrementAndGet();
+        return entry;
+    }
+
+    /** Pin and return the entry if it is cached. Called holding the lock. */
+    private Entry pin(Key key) {
+        final Entry entry = entries.get(key);
+        if(entry == null) return null;
+        hits.incrementAndGet();
+        entry.pins++;
+        entry.uses++;
+        age();
+        return entry;
+    }
+
+    /** Halve every use count once enough uses have gone by. Called holding the lock. */
+    private void age() {
+        if(++usesSinceAging < (long) AGE_AFTER * Math.max(1, entries.size())) return;
+        usesSinceAging = 0;
+        for(Entry e : entries.values()) e.uses >>= 1;
+    }
+
+    /** Fills the pixels of a new entry */
+    @FunctionalInterface
+    public static interface Decoder {
+        void decode(MemorySegment pixels) throws IOException;
+    }
+
+    /** Get an entry, decoding it if it isn't cached. If another thread is already
+     * decoding the same key this waits for it instead of decoding again.
+     * @param stride bytes per row of the decoded pixels
+     * @return the pinned entry */
+    public Entry acquire(Key key, int width, int height, int stride, Decoder decoder) throws IOException {
+        synchronized(this) {
+            while(true) {
+                final Entry entry = pin(key);
+                if(entry != null) return entry;
+                if(! loading.contains(key)) break;
+                try {
+                    wait();
+                } catch(InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for a decode");
+                }
+            }
+            misses.incrementAndGet();
+            loading.add(key);
+        }
+        try {
+            final long size = (long) stride * height;
+            final ResourceScope scope = ResourceScope.newSharedScope();
+            final MemorySegment segment;
+            try {
+                makeRoom(size);
+                segment = NativeMemoryBudget.getInstance().allocate(size, scope);
+                decoder.decode(segment);
+            } catch(IOException | RuntimeException e) {
+                scope.close();
+                throw e;
+            }
+            final Entry entry = new Entry(key, width, height, stride, segment, scope);
+            synchronized(this) {
+                entry.pins = 1;
+                entry.uses = 1;
+                age();
+                if(size <= maxBytes) {
+                    entries.put(key, entry);
+                    bytes += size;
+                    evict();
+                } else {
+                    // too large to cache, but the caller can still use it
+                    entry.evicted = true;
+                }
+            }
+            return entry;
+        } finally {
+            synchronized(this) {
+                loading.remove(key);
+                notifyAll();
+            }
+        }
+    }
+
+    /** Evict until the cache is within its bound. Called holding the lock. */
+    private void evict() {
+        while(bytes > maxBytes && ! entries.isEmpty()) {
+            final Entry victim = switch(policy) {
+                case LRU -> entries.values().iterator().next();
+                case LFU -> leastFrequent();
+            };
+            entries.remove(victim.key);
+            bytes -= victim.segment.byteSize();
+            victim.evicted = true;
+            evictions.incrementAndGet();
+            if(victim.pins == 0) victim.scope.close();
+        }
+    }
+
+    /** Evict entries which aren't pinned until this many more bytes fit in the native
+     * memory budget, or until there are none left. Otherwise the cache could hold the
+     * budget with entries nobody is using while the allocation for a new one waits. */
+    private synchronized void makeRoom(long size) {
+        final NativeMemoryBudget budget = NativeMemoryBudget.getInstance();
+        while(budget.getUsed() + size > budget.getLimit()) {
+            Entry victim = null;
+            // iteration is in access order, so the first is the least recently used
+            for(Entry e : entries.values()) {
+                if(e.pins > 0) continue;
+                if(victim == null || (policy == Policy.LFU && e.uses < victim.uses)) victim = e;
+            }
+            if(victim == null) return;
+            entries.remove(victim.key);
+            bytes -= victim.segment.byteSize();
+            victim.evicted = true;
+            evictions.incrementAndGet();
+            victim.scope.close();
+        }
+    }
+
+    private Entry leastFrequent() {
+        Entry result = null;
+        // iteration is in access order, so on a tie the least recently used wins
+        for(Entry e : entries.values()) {
+            if(result == null || e.uses < result.uses) result = e;
+        }
+        return result;
+    }
+
+    private synchronized void unpin(Entry entry) {
+        if(entry.pins <= 0) throw new IllegalStateException("this entry has already been closed");
+        entry.pins--;
+        if(entry.pins == 0 && entry.evicted) entry.scope.close();
+    }
+
+    /** Remove every entry. Pinned entries are freed when they are closed. */
+    public synchronized void clear() {
+        final Iterator<Entry> it = entries.values().iterator();
+        while(it.hasNext()) {
+            final Entry e = it.next();
+            it.remove();
+            e.evicted = true;
+            if(e.pins == 0) e.scope.close();
+        }
+        bytes = 0;
+        LOG.fine("cleared");
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits.get(), misses.get(), evictions.get(), entries.size(), bytes);
+    }
+
+    @Override
+    public String toString() {
+        return "DecodedImageCache{" + "maxBytes=" + maxBytes + ", policy=" + policy + ", stats=" + getStats() + '}';
+    }
+
+}
@@ -0,0 +1,272 @@
+package chiralsoftware.linkerwebp;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import static java.util.logging.Level.WARNING;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * A content-addressed cache of encoded WebP files. Entries are keyed by a SHA-256
+ * digest of the raw pixel buffer, the picture geometry and layout, and the digest
+ * of the encoder config, so the same pixels encoded with the same settings are only
+ * encoded once. There are two tiers: a bounded in-memory LRU of encoded bytes,
+ * and an optional directory which stores one file per entry. Disk entries are
+ * read and written through memory mappings. The disk tier is also an LRU, bounded
+ * by total bytes.
+ * <p>
+ * To use it, set it on a {@link WebpWriteParam}. A hit skips the import and the
+ * encode entirely. The cache is thread safe and can be shared by many writers.
+ * The pixel digest is cryptographic, because a cache shared by several users
+ * would otherwise let one of them make pixels which collide with another's and be
+ * served the other's image. Hashing costs far less than the encode it saves.
+ */
+public final class EncodeCache {
+
+    private static final Logger LOG = Logger.getLogger(EncodeCache.class.getName());
+
+    private static final String suffix = ".webp";
+
+    /** The identity of an encode. The pixel digest is the SHA-256 of the whole pixel
+     * buffer, including any row padding, in hex. The layout names the band order and
+     * row stride, such as RGBA1024. Both become part of a file name in the disk tier,
+     * so they are limited to characters which can't leave the cache directory. */
+    public static record Key(String pixelDigest, long configDigest, int width, int height, String layout) {
+
+        private static final Pattern DIGEST = Pattern.compile("[0-9a-f]{64}");
+        private static final Pattern LAYOUT = Pattern.compile("[A-Za-z0-9_]+");
+
+        public Key {
+            if(pixelDigest == null || ! DIGEST.matcher(pixelDigest).matches())
+                throw new IllegalArgumentException("the pixel digest must be a SHA-256 in lower case hex; it was: " +
+                        pixelDigest);
+            if(layout == null || ! LAYOUT.matcher(layout).matches())
+                throw new IllegalArgumentException("the layout must be letters, digits and underscores; it was: " +
+                        layout);
+        }
+
+        /** A key for these pixels */
+        public static Key of(MemorySegment pixels, long configDigest, int width, int height, String layout) {
+            final MessageDigest sha256;
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch(NoSuchAlgorithmException nsae) {
+                // every Java platform is required to have SHA-256
+                throw new IllegalStateException(nsae);
+            }
+            sha256.update(pixels.asByteBuffer());
+            return new Key(HexFormat.of().formatHex(sha256.digest()), configDigest, width, height, layout);
+        }
+
+        /** The file name used by the disk tier */
+        String fileName() {
+            return String.format("%s-%016x-%dx%d-%s%s", pixelDigest, configDigest, width, height, layout, suffix);
+        }
+    }
+
+    /** A snapshot of the counters */
+    public static record Stats(long memoryHits, long diskHits, long misses, long memoryEvictions,
+            long diskEvictions, long memoryBytes, long diskBytes) { }
+
+    private final long maxMemoryBytes;
+    private final Path directory;
+    private final long maxDiskBytes;
+
+    /** guarded by this */
+    private final LinkedHashMap<Key, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes = 0;
+    /** file name to size, in access order; guarded by this */
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskBytes = 0;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong memoryEvictions = new AtomicLong();
+    private final AtomicLong diskEvictions = new AtomicLong();
+
+    /** A memory-only cache */
+    public EncodeCache(long maxMemoryBytes) throws IOException {
+        this(maxMemoryBytes, null, 0);
+    }
+
+    /** @param directory where to store the disk tier, or null for no disk tier. Entries
+     already in the directory are reused. */
+    public EncodeCache(long maxMemoryBytes, Path directory, long maxDiskBytes) throws IOException {
+        if(maxMemoryBytes < 0) throw new IllegalArgumentException("maxMemoryBytes can't be negative");
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        if(directory != null) {
+            Files.createDirectories(directory);
+            // oldest first, so the oldest are the first to be evicted
+            final List<Path> existing;
+            try (Stream<Path> stream = Files.list(directory)) {
+                existing = stream.filter(p -> p.getFileName().toString().endsWith(suffix)).
+                        sorted(Comparator.comparing(EncodeCache::lastModified)).toList();
+            }
+            for(Path p : existing) {
+                final long size = Files.size(p);
+                disk.put(p.getFileName().toString(), size);
+                diskBytes += size;
+            }
+            LOG.fine("found " + disk.size() + " cached entries using " + diskBytes + " bytes in: " + directory);
+            evictDisk();
+        }
+    }
+
+    private static long lastModified(Path p) {
+        try {
+            return Files.getLastModifiedTime(p).toMillis();
+        } catch(IOException ioe) {
+            return 0;
+        }
+    }
+
+    /** @return a copy of the encoded bytes, or null on a miss */
+    public byte[] get(Key key) {
+        synchronized(this) {
+            final byte[] bytes = memory.get(key);
+            if(bytes != null) {
+                memoryHits.incrementAndGet();
+                return bytes.clone();
+            }
+        }
+        if(directory != null) {
+            final byte[] bytes = readDisk(key);
+            if(bytes != null) {
+                diskHits.incrementAndGet();
+                putMemory(key, bytes);
+                return bytes.clone();
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /** Store a copy of an encoded image in both tiers */
+    public void put(Key key, byte[] encoded) {
+        putMemory(key, encoded.clone());
+        if(directory != null) writeDisk(key, encoded);
+    }
+
+    private synchronized void putMemory(Key key, byte[] encoded) {
+        if(encoded.length > maxMemoryBytes) return;
+        final byte[] previous = memory.put(key, encoded);
+        if(previous != null) memoryBytes -= previous.length;
+        memoryBytes += encoded.length;
+        final Iterator<byte[]> it = memory.values().iterator();
+        while(memoryBytes > maxMemoryBytes && it.hasNext()) {
+            memoryBytes -= it.next().length;
+            it.remove();
+            memoryEvictions.incrementAndGet();
+        }
+    }
+
+    private byte[] readDisk(Key key) {
+        final String fileName = key.fileName();
+        final Long size;
+        synchronized(this) {
+            size = disk.get(fileName); // also updates the access order
+        }
+        if(size == null) return null;
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            final MemorySegment mapped = MemorySegment.mapFile(directory.resolve(fileName), 0, size,
+                    FileChannel.MapMode.READ_ONLY, scope);
+            return mapped.toByteArray();
+        } catch(IOException ioe) {
+            LOG.log(WARNING, "couldn't read the cached entry: " + fileName, ioe);
+            synchronized(this) {
+                if(disk.remove(fileName) != null) diskBytes -= size;
+            }
+            return null;
+        }
+    }
+
+    private void writeDisk(Key key, byte[] encoded) {
+        if(encoded.length > maxDiskBytes) return;
+        final String fileName = key.fileName();
+        synchronized(this) {
+            if(disk.containsKey(fileName)) return;
+        }
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(directory, ".", ".tmp");
+            // mapping a size past the end of the file extends it
+            try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+                final MemorySegment mapped = MemorySegment.mapFile(temp, 0, encoded.length,
+                        FileChannel.MapMode.READ_WRITE, scope);
+                mapped.copyFrom(MemorySegment.ofArray(encoded));
+                mapped.force();
+            }
+            Files.move(temp, directory.resolve(fileName), ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch(IOException ioe) {
+            LOG.log(WARNING, "couldn't write the cache entry: " + fileName, ioe);
+            if(temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch(IOException ignored) { }
+            }
+            return;
+        }
+        synchronized(this) {
+            final Long previous = disk.put(fileName, (long) encoded.length);
+            if(previous != null) diskBytes -= previous;
+            diskBytes += encoded.length;
+        }
+        evictDisk();
+    }
+
+    private void evictDisk() {
+        while(true) {
+            final String victim;
+            synchronized(this) {
+                if(diskBytes <= maxDiskBytes || disk.isEmpty()) return;
+                final Map.Entry<String, Long> eldest = disk.entrySet().iterator().next();
+                victim = eldest.getKey();
+                diskBytes -= eldest.getValue();
+                disk.remove(victim);
+            }
+            diskEvictions.incrementAndGet();
+            try {
+                Files.deleteIfExists(directory.resolve(victim));
+            } catch(IOException ioe) {
+                LOG.log(WARNING, "couldn't evict: " + victim, ioe);
+            }
+        }
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(memoryHits.get(), diskHits.get(), misses.get(), memoryEvictions.get(),
+                diskEvictions.get(), memoryBytes, diskBytes);
+    }
+
+    /** Empty the memory tier. The disk tier is kept. */
+    public synchronized void clearMemory() {
+        memory.clear();
+        memoryBytes = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "EncodeCache{" + "maxMemoryBytes=" + maxMemoryBytes + ", directory=" + directory +
+                ", maxDiskBytes=" + maxDiskBytes + ", stats=" + getStats() + '}';
+    }
+
+}
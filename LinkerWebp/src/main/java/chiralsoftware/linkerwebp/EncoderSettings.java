@@ -0,0 +1,111 @@
+package chiralsoftware.linkerwebp;
+
+
+/**
+ * The encoder settings a caller chooses. The config is first initialized from the
+ * preset and quality with WebPConfigPreset(), and then the other values are applied.
+ * Integer values which are negative leave the preset's value unchanged.
+ *
+ * @param preset the libwebp preset
+ * @param quality between 0 and 100. For lossless this is the amount of effort
+ * @param lossless true for lossless encoding
+ * @param method quality/speed trade-off (0=fast, 6=slower-better)
+ * @param pass number of entropy-analysis passes, in [1..10]
+ * @param segments maximum number of segments to use, in [1..4]
+ * @param alphaQuality between 0 (smallest size) and 100 (lossless)
+ * @param sharpYuv use sharp (and slow) RGB to YUV conversion
+ * @param threadLevel if positive, try and use multi-threaded encoding
+ * @param imageHint the kind of image, used by lossless encoding, or null to leave
+ * the preset's value
+ */
+public record EncoderSettings(Preset preset, float quality, boolean lossless,
+        int method, int pass, int segments, int alphaQuality, boolean sharpYuv, int threadLevel,
+        ImageHint imageHint) {
+
+    /** libwebp's defaults: the DEFAULT preset at quality 75 */
+    public static final EncoderSettings DEFAULT =
+            new EncoderSettings(Preset.DEFAULT, 75f, false, -1, -1, -1, -1, false, -1, null);
+
+    public EncoderSettings {
+        if(preset == null) throw new NullPointerException("preset can't be null");
+        if(quality < 0 || quality > 100)
+            throw new IllegalArgumentException("quality must be between 0 and 100; it was: " + quality);
+        if(method > 6) throw new IllegalArgumentException("method must be between 0 and 6; it was: " + method);
+        if(pass > 10) throw new IllegalArgumentException("pass must be between 1 and 10; it was: " + pass);
+        if(segments > 4) throw new IllegalArgumentException("segments must be between 1 and 4; it was: " + segments);
+        if(alphaQuality > 100)
+            throw new IllegalArgumentException("alphaQuality must be between 0 and 100; it was: " + alphaQuality);
+    }
+
+    public static EncoderSettings of(Preset preset, float quality) {
+        return DEFAULT.withPreset(preset).withQuality(quality);
+    }
+
+    public static EncoderSettings lossless(float quality) {
+        return DEFAULT.withLossless(true).withQuality(quality);
+    }
+
+    public EncoderSettings withPreset(Preset p) {
+        return new EncoderSettings(p, quality, lossless, method, pass, segments, alphaQuality, sharpYuv,
+                threadLevel, imageHint);
+    }
+
+    public EncoderSettings withQuality(float q) {
+        return new EncoderSettings(preset, q, lossless, method, pass, segments, alphaQuality, sharpYuv,
+                threadLevel, imageHint);
+    }
+
+    public EncoderSettings withLossless(boolean l) {
+        return new EncoderSettings(preset, quality, l, method, pass, segments, alphaQuality, sharpYuv,
+                threadLevel, imageHint);
+    }
+
+    public EncoderSettings withMethod(int m) {
+        return new EncoderSettings(preset, quality, lossless, m, pass, segments, alphaQuality, sharpYuv,
+                threadLevel, imageHint);
+    }
+
+    public EncoderSettings withPass(int p) {
+        return new EncoderSettings(preset, quality, lossless, method, p, segments, alphaQuality, sharpYuv,
+                threadLevel, imageHint);
+    }
+
+    public EncoderSettings withSegments(int s) {
+        return new EncoderSettings(preset, quality, lossless, method, pass, s, alphaQuality, sharpYuv,
+                threadLevel, imageHint);
+    }
+
+    public EncoderSettings withAlphaQuality(int a) {
+        return new EncoderSettings(preset, quality, lossless, method, pass, segments, a, sharpYuv,
+                threadLevel, imageHint);
+    }
+
+    public EncoderSettings withSharpYuv(boolean s) {
+        return new EncoderSettings(preset, quality, lossless, method, pass, segments, alphaQuality, s,
+                threadLevel, imageHint);
+    }
+
+    public EncoderSettings withThreadLevel(int t) {
+        return new EncoderSettings(preset, quality, lossless, method, pass, segments, alphaQuality, sharpYuv,
+                t, imageHint);
+    }
+
+    public EncoderSettings withImageHint(ImageHint h) {
+        return new EncoderSettings(preset, quality, lossless, method, pass, segments, alphaQuality, sharpYuv,
+                threadLevel, h);
+    }
+
+    /** Apply these settings on top of a config which has already been initialized
+     * from {@link #preset()} and {@link #quality()} */
+    public void applyTo(Config config) {
+        config.setLossless(lossless ? 1 : 0);
+        if(method >= 0) config.setMethod(method);
+        if(pass >= 0) config.setPass(pass);
+        if(segments >= 0) config.setSegments(segments);
+        if(alphaQuality >= 0) config.setAlphaQuality(alphaQuality);
+        if(sharpYuv) config.setUseSharpYuv(1);
+        if(threadLevel >= 0) config.setThreadLevel(threadLevel);
+        if(imageHint != null) config.setImageHint(imageHint);
+    }
+
+}
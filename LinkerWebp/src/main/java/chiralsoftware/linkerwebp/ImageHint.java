@@ -0,0 +1,12 @@
+package chiralsoftware.linkerwebp;
+
+/**
+ * The WebPImageHint values, which tell lossless encoding what kind of image it
+ * has. The ordinal is the C value.
+ */
+public enum ImageHint {
+    DEFAULT, // default preset
+    PICTURE, // digital picture, like portrait, inner shot
+    PHOTO, // outdoor photograph, with natural lighting
+    GRAPH // Discrete tone image (graph, map-tile etc).
+}
@@ -0,0 +1,169 @@
+package chiralsoftware.linkerwebp;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import static java.util.logging.Level.WARNING;
+import java.util.logging.Logger;
+
+/**
+ * A bounded, thread-safe pool of ready instances, such as readers and writers with
+ * their native scratch buffers already allocated. Borrowing never blocks: if no
+ * instance is idle a new one is created. Returned instances are reset and kept, up
+ * to the maximum number idle; beyond that they are destroyed. The most recently
+ * returned instance is borrowed first, since its buffers are the most likely to
+ * be warm.
+ * <pre>try (InstancePool.Lease&lt;ImageReader&gt; lease = readerSpi.getPool().lease()) {
+ *     final ImageReader reader = lease.get();
+ *     reader.setInput(bytes);
+ *     return reader.read(0);
+ * }</pre>
+ */
+public final class InstancePool<T> {
+
+    private static final Logger LOG = Logger.getLogger(InstancePool.class.getName());
+
+    /** The default number of idle instances kept by the SPI pools */
+    public static final String SIZE_PROPERTY = "chiralsoftware.linkerwebp.poolSize";
+
+    /** Creates a new instance when the pool is empty */
+    @FunctionalInterface
+    public static interface Factory<T> {
+        T create() throws IOException;
+    }
+
+    /** A snapshot of the counters */
+    public static record Stats(long created, long reused, long destroyed, int idle) { }
+
+    private final int maxIdle;
+    private final Factory<T> factory;
+    private final Consumer<T> reset;
+    private final Consumer<T> destroy;
+
+    private final ConcurrentLinkedDeque<T> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+
+    /** @param reset called on every instance which is returned
+     @param destroy called on instances which aren't kept */
+    public InstancePool(int maxIdle, Factory<T> factory, Consumer<T> reset, Consumer<T> destroy) {
+        if(maxIdle < 0) throw new IllegalArgumentException("maxIdle can't be negative: " + maxIdle);
+        if(factory == null || reset == null || destroy == null) throw new NullPointerException();
+        this.maxIdle = maxIdle;
+        this.factory = factory;
+        this.reset = reset;
+        this.destroy = destroy;
+    }
+
+    /** The size from {@value #SIZE_PROPERTY}, or the number of processors. This is
+     * called while the SPIs are constructed, so a bad value is logged and ignored
+     * rather than thrown. */
+    public static int defaultSize() {
+        final String property = System.getProperty(SIZE_PROPERTY);
+        final int processors = Runtime.getRuntime().availableProcessors();
+        if(property == null) return processors;
+        try {
+            final int size = Integer.parseInt(property.trim());
+            if(size >= 0) return size;
+        } catch(NumberFormatException nfe) {
+            // logged below
+        }
+        LOG.warning(SIZE_PROPERTY + " must be a number of instances, not: " + property +
+                "; using: " + processors);
+        return processors;
+    }
+
+    /** An idle instance, or a new one. It must be given back with {@link #release(Object)}. */
+    public T borrow() throws IOException {
+        final T t = idle.pollFirst();
+        if(t != null) {
+            idleCount.decrementAndGet();
+            reused.incrementAndGet();
+            return t;
+        }
+        created.incrementAndGet();
+        return factory.create();
+    }
+
+    /** Reset the instance and keep it if there is room. An instance which fails to
+     reset is destroyed. */
+    public void release(T t) {
+        if(t == null) throw new NullPointerException("can't release null");
+        try {
+            reset.accept(t);
+        } catch(RuntimeException re) {
+            LOG.log(WARNING, "couldn't reset: " + t, re);
+            destroy(t);
+            return;
+        }
+        if(idleCount.incrementAndGet() <= maxIdle) {
+            idle.offerFirst(t);
+        } else {
+            idleCount.decrementAndGet();
+            destroy(t);
+        }
+    }
+
+    private void destroy(T t) {
+        destroyed.incrementAndGet();
+        try {
+            destroy.accept(t);
+        } catch(RuntimeException re) {
+            LOG.log(WARNING, "couldn't destroy: " + t, re);
+        }
+    }
+
+    /** Borrow an instance which is released when the lease is closed */
+    public Lease<T> lease() throws IOException {
+        return new Lease<>(this, borrow());
+    }
+
+    /** A borrowed instance. Closing it more than once has no effect. */
+    public static final class Lease<T> implements AutoCloseable {
+
+        private Lease(InstancePool<T> pool, T instance) {
+            this.pool = pool;
+            this.instance = instance;
+        }
+
+        private final InstancePool<T> pool;
+        private final T instance;
+        private boolean closed = false;
+
+        public T get() {
+            if(closed) throw new IllegalStateException("this lease has been closed");
+            return instance;
+        }
+
+        @Override
+        public void close() {
+            if(closed) return;
+            closed = true;
+            pool.release(instance);
+        }
+    }
+
+    /** Destroy every idle instance */
+    public void clear() {
+        T t;
+        while((t = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            destroy(t);
+        }
+    }
+
+    public Stats getStats() {
+        return new Stats(created.get(), reused.get(), destroyed.get(), idleCount.get());
+    }
+
+    @Override
+    public String toString() {
+        return "InstancePool{" + "maxIdle=" + maxIdle + ", stats=" + getStats() + '}';
+    }
+
+}
@@ -0,0 +1,448 @@
+package chiralsoftware.linkerwebp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Process-wide budget for the native memory used by the reader, the writer and
+ * libwebp itself. Every native buffer is reserved against this budget before it
+ * is allocated, and the reservation is released when the buffer's scope is closed.
+ * Buffers which libwebp allocates internally (picture planes) are reserved
+ * using an estimate of their size.
+ * <p>
+ * An operation which needs several buffers, such as an encode, estimates its total
+ * and reserves it once with {@link #admit(long, ResourceScope)} before allocating
+ * anything. Reservations in that scope are then taken from the admitted bytes and
+ * never wait, so an operation never holds part of the budget while it waits for
+ * the rest. Memory which libwebp has already allocated is recorded with
+ * {@link #account(long, ResourceScope)}, which never waits either.
+ * <p>
+ * The limit can be set with the system property {@value #LIMIT_PROPERTY} (a
+ * number of bytes, with an optional k, m or g suffix) or with {@link #setLimit(long)}.
+ * The admission mode can be set with {@value #ADMISSION_PROPERTY} or with
+ * {@link #setAdmission(Admission)}. By default there is no limit, and requests
+ * block for up to {@link #DEFAULT_TIMEOUT}.
+ */
+public final class NativeMemoryBudget {
+
+    private static final Logger LOG = Logger.getLogger(NativeMemoryBudget.class.getName());
+
+    public static final String LIMIT_PROPERTY = "chiralsoftware.linkerwebp.nativeMemoryLimit";
+    public static final String ADMISSION_PROPERTY = "chiralsoftware.linkerwebp.nativeMemoryAdmission";
+
+    /** How long a blocking reservation waits unless {@link #setTimeout(Duration)} is called */
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(30);
+
+    /** What to do when a reservation doesn't fit in the budget */
+    public static enum Admission {
+        /** wait until enough memory has been released, or until the timeout passes */
+        BLOCK,
+        /** throw an exception immediately */
+        FAIL_FAST
+    }
+
+    private static final NativeMemoryBudget budget = new NativeMemoryBudget(defaultLimit(), defaultAdmission());
+
+    public static NativeMemoryBudget getInstance() {
+        return budget;
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    private long limit;
+    private Admission admission;
+    private long timeoutNanos = DEFAULT_TIMEOUT.toNanos();
+    private long used = 0;
+    private long peak = 0;
+    private int waiting = 0;
+
+    /** Bytes admitted for one operation, and how many of them haven't been used yet */
+    private static final class Grant {
+        private long total = 0;
+        private long remaining = 0;
+    }
+
+    /** Grants by the scope of the operation they were admitted for; guarded by lock */
+    private final Map<ResourceScope, Grant> grants = new IdentityHashMap<>();
+
+    private NativeMemoryBudget(long limit, Admission admission) {
+        if(limit <= 0) throw new IllegalArgumentException("the limit must be positive; it was: " + limit);
+        this.limit = limit;
+        this.admission = admission;
+        if(limit != Long.MAX_VALUE)
+            LOG.fine("native memory limit is: " + limit + " bytes, admission: " + admission);
+    }
+
+    /** The limit from {@value #LIMIT_PROPERTY}. One which can't be parsed is logged
+     * and ignored, rather than breaking every class which uses the budget. */
+    static long defaultLimit() {
+        final String property = System.getProperty(LIMIT_PROPERTY);
+        try {
+            final long limit = parseLimit(property);
+            if(limit > 0) return limit;
+        } catch(NumberFormatException | ArithmeticException e) {
+            // logged below
+        }
+        LOG.warning(LIMIT_PROPERTY + " must be a positive number of bytes, such as 512m, not: " + property +
+                "; using no limit");
+        return Long.MAX_VALUE;
+    }
+
+    /** The admission mode from {@value #ADMISSION_PROPERTY}, or BLOCK if it isn't
+     * set or isn't a mode */
+    static Admission defaultAdmission() {
+        final String property = System.getProperty(ADMISSION_PROPERTY);
+        if(property == null || property.isBlank()) return Admission.BLOCK;
+        try {
+            return Admission.valueOf(property.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+        } catch(IllegalArgumentException iae) {
+            LOG.warning(ADMISSION_PROPERTY + " must be one of: " + Arrays.toString(Admission.values()) +
+                    ", not: " + property + "; using: " + Admission.BLOCK);
+            return Admission.BLOCK;
+        }
+    }
+
+    /** Parse a byte count such as 512m or 2g. Null means no limit. */
+    static long parseLimit(String s) {
+        if(s == null || s.isBlank()) return Long.MAX_VALUE;
+        final String trimmed = s.trim().toLowerCase(Locale.ROOT);
+        final long multiplier = switch(trimmed.charAt(trimmed.length() - 1)) {
+            case 'k' -> 1024L;
+            case 'm' -> 1024L * 1024;
+            case 'g' -> 1024L * 1024 * 1024;
+            default -> 1L;
+        };
+        final String digits = multiplier == 1 ? trimmed : trimmed.substring(0, trimmed.length() - 1);
+        return Math.multiplyExact(Long.parseLong(digits), multiplier);
+    }
+
+    /** Reserve bytes against the budget. Depending on the admission mode this blocks
+     * until the bytes are available or fails immediately.
+     * @throws IOException if the reservation can't be satisfied */
+    public void reserve(long bytes) throws IOException {
+        if(bytes < 0) throw new IllegalArgumentException("can't reserve a negative size: " + bytes);
+        if(bytes == 0) return;
+        lock.lock();
+        try {
+            if(bytes > limit)
+                throw new IOException("a reservation of: " + bytes +
+                        " bytes is larger than the whole native memory budget: " + limit);
+            if(used + bytes > limit) {
+                if(admission == Admission.FAIL_FAST)
+                    throw new IOException("native memory budget exhausted: " + used + " of " + limit +
+                            " bytes in use, couldn't reserve: " + bytes);
+                long remaining = timeoutNanos;
+                waiting++;
+                try {
+                    while(used + bytes > limit) {
+                        if(remaining <= 0)
+                            throw new IOException("timed out waiting for: " + bytes +
+                                    " bytes of native memory; " + used + " of " + limit + " bytes in use");
+                        remaining = released.awaitNanos(remaining);
+                    }
+                } catch(InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for native memory");
+                } finally {
+                    waiting--;
+                }
+            }
+            add(bytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Count reserved bytes. Called holding the lock. */
+    private void add(long bytes) {
+        used += bytes;
+        if(used > peak) peak = used;
+    }
+
+    /** Reserve everything an operation will allocate in this scope, all at once. This
+     * is the only reservation for the operation which waits; the bytes are released
+     * when the scope is closed. If the operation uses more than it was admitted for,
+     * the rest is reserved without waiting.
+     * @throws IOException if the reservation can't be satisfied */
+    public void admit(long bytes, ResourceScope scope) throws IOException {
+        reserve(bytes);
+        grant(bytes, scope);
+    }
+
+    /** Admit a part of an operation, which runs in its own scope, out of what was
+     * admitted for the whole operation in the parent scope. This never waits; what
+     * the parent's grant lacks is reserved anyway. The bytes are released when the
+     * part's scope is closed. */
+    public void admitFrom(long bytes, ResourceScope parent, ResourceScope scope) {
+        if(bytes < 0) throw new IllegalArgumentException("can't admit a negative size: " + bytes);
+        lock.lock();
+        try {
+            final Grant parentGrant = grants.get(parent);
+            final long fromParent = parentGrant == null ? 0 : Math.min(bytes, parentGrant.remaining);
+            if(parentGrant != null) {
+                parentGrant.remaining -= fromParent;
+                parentGrant.total -= fromParent;
+            }
+            add(bytes - fromParent);
+        } finally {
+            lock.unlock();
+        }
+        grant(bytes, scope);
+    }
+
+    /** Record bytes which are already reserved as admitted for the scope */
+    private void grant(long bytes, ResourceScope scope) {
+        final boolean first;
+        lock.lock();
+        try {
+            Grant grant = grants.get(scope);
+            first = grant == null;
+            if(first) {
+                grant = new Grant();
+                grants.put(scope, grant);
+            }
+            grant.total += bytes;
+            grant.remaining += bytes;
+        } finally {
+            lock.unlock();
+        }
+        if(! first) return;
+        try {
+            scope.addCloseAction(() -> releaseGrant(scope));
+        } catch(RuntimeException re) {
+            releaseGrant(scope);
+            throw re;
+        }
+    }
+
+    private void releaseGrant(ResourceScope scope) {
+        final Grant grant;
+        lock.lock();
+        try {
+            grant = grants.remove(scope);
+        } finally {
+            lock.unlock();
+        }
+        if(grant != null) release(grant.total);
+    }
+
+    /** Take bytes from the scope's grant. What the grant lacks is reserved without
+     * waiting, because waiting while holding the grant is what admission avoids.
+     * @return false if nothing was admitted for the scope */
+    private boolean draw(long bytes, ResourceScope scope) {
+        lock.lock();
+        try {
+            final Grant grant = grants.get(scope);
+            if(grant == null) return false;
+            final long fromGrant = Math.min(bytes, grant.remaining);
+            grant.remaining -= fromGrant;
+            grant.total += bytes - fromGrant;
+            add(bytes - fromGrant);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Reserve bytes which will be released when the scope is closed. This is used
+     * for memory which libwebp allocates internally. The bytes come from the scope's
+     * admission if it has one. */
+    public void reserve(long bytes, ResourceScope scope) throws IOException {
+        if(bytes < 0) throw new IllegalArgumentException("can't reserve a negative size: " + bytes);
+        if(draw(bytes, scope)) return;
+        reserve(bytes);
+        scope.addCloseAction(() -> release(bytes));
+    }
+
+    /** Record memory which is already allocated, such as libwebp's output once it is
+     * known, until the scope is closed. This never waits or fails, so the budget can
+     * go over its limit until the scope is closed. */
+    public void account(long bytes, ResourceScope scope) {
+        if(bytes < 0) throw new IllegalArgumentException("can't account for a negative size: " + bytes);
+        if(bytes == 0 || draw(bytes, scope)) return;
+        lock.lock();
+        try {
+            add(bytes);
+        } finally {
+            lock.unlock();
+        }
+        scope.addCloseAction(() -> release(bytes));
+    }
+
+    /** Return bytes to the budget and wake up any waiting reservations */
+    public void release(long bytes) {
+        if(bytes <= 0) return;
+        lock.lock();
+        try {
+            used -= bytes;
+            if(used < 0) {
+                LOG.warning("released more native memory than was reserved: " + used);
+                used = 0;
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Allocate a native segment which is accounted against the budget. The reservation
+     * is released when the scope is closed, and comes from the scope's admission if it
+     * has one. Use explicitly closed scopes: with an implicit scope the memory isn't
+     * returned to the budget until the GC runs. */
+    public MemorySegment allocate(long bytes, ResourceScope scope) throws IOException {
+        if(bytes < 0) throw new IllegalArgumentException("can't allocate a negative size: " + bytes);
+        if(draw(bytes, scope)) return MemorySegment.allocateNative(bytes, scope);
+        reserve(bytes);
+        return allocateReserved(bytes, scope);
+    }
+
+    /** Allocate a segment like {@link #allocate(long, ResourceScope)}, but without
+     * waiting. This is for an operation's result, which is copied out to the caller's
+     * scope just before the operation's own admission is released. */
+    public MemorySegment allocateNow(long bytes, ResourceScope scope) {
+        if(bytes < 0) throw new IllegalArgumentException("can't allocate a negative size: " + bytes);
+        if(draw(bytes, scope)) return MemorySegment.allocateNative(bytes, scope);
+        lock.lock();
+        try {
+            add(bytes);
+        } finally {
+            lock.unlock();
+        }
+        return allocateReserved(bytes, scope);
+    }
+
+    private MemorySegment allocateReserved(long bytes, ResourceScope scope) {
+        final MemorySegment segment;
+        try {
+            segment = MemorySegment.allocateNative(bytes, scope);
+        } catch(RuntimeException | OutOfMemoryError e) {
+            release(bytes);
+            throw e;
+        }
+        scope.addCloseAction(() -> release(bytes));
+        return segment;
+    }
+
+    /** The segment itself if native code can read it, otherwise a copy of it in native
+     * memory allocated from this budget. */
+    public MemorySegment toNative(MemorySegment segment, ResourceScope scope) throws IOException {
+        if(segment.isNative() || segment.isMapped()) return segment;
+        final MemorySegment copy = allocate(segment.byteSize(), scope);
+        copy.copyFrom(segment);
+        return copy;
+    }
+
+    public long getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Change the limit. Lowering the limit below the current usage doesn't free anything;
+     * new reservations wait until usage falls below the new limit. */
+    public void setLimit(long limit) {
+        if(limit <= 0) throw new IllegalArgumentException("the limit must be positive; it was: " + limit);
+        lock.lock();
+        try {
+            this.limit = limit;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Admission getAdmission() {
+        lock.lock();
+        try {
+            return admission;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setAdmission(Admission admission) {
+        if(admission == null) throw new NullPointerException("admission can't be null");
+        lock.lock();
+        try {
+            this.admission = admission;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** How long a blocking reservation waits before failing. Null means wait forever. */
+    public void setTimeout(Duration timeout) {
+        lock.lock();
+        try {
+            timeoutNanos = timeout == null ? Long.MAX_VALUE : TimeUnit.NANOSECONDS.convert(timeout);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Bytes currently reserved */
+    public long getUsed() {
+        lock.lock();
+        try {
+            return used;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The highest value of used bytes since startup or since the last {@link #resetPeak()} */
+    public long getPeak() {
+        lock.lock();
+        try {
+            return peak;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void resetPeak() {
+        lock.lock();
+        try {
+            peak = used;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Number of threads blocked waiting for memory, which is a measure of backpressure */
+    public int getWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "NativeMemoryBudget{" + "limit=" + limit + ", admission=" + admission +
+                    ", used=" + used + ", peak=" + peak + ", waiting=" + waiting + '}';
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -1,5 +1,6 @@
 package chiralsoftware.linkerwebp;
 
+import chiralsoftware.linkerwebp.impl.LibWebp.EncodingError;
 import java.nio.ByteOrder;
 import static java.nio.ByteOrder.nativeOrder;
 import java.util.logging.Logger;
@@ -123,6 +124,15 @@ public final class Picture {
         Picture.varHandle(int.class, groupElement("use_argb")).set(segment, i);
     }
 
+    public int getUseArgb() {
+        return (Integer) Picture.varHandle(int.class, groupElement("use_argb")).get(segment);
+    }
+
+    /** WebPEncCSP value for 4:2:0 YUV */
+    public static final int WEBP_YUV420 = 0;
+    /** WebPEncCSP value for 4:2:0 YUV with an alpha plane */
+    public static final int WEBP_YUV420A = 4;
+
     /**  colorspace: should be YUV420 for now (=Y'CbCr). 
      FIXME: create an enum for WebPEncCSP*/
     public void setColorspace(int i) {
@@ -139,6 +149,14 @@ public final class Picture {
         Picture.varHandle(int.class, groupElement("height")).set(segment, i);
     }
     
+    public int getWidth() {
+        return (Integer) Picture.varHandle(int.class, groupElement("width")).get(segment);
+    }
+    
+    public int getHeight() {
+        return (Integer) Picture.varHandle(int.class, groupElement("height")).get(segment);
+    }
+    
     /** Pointer to Y */
     public void setY(MemoryAddress m) {
         Picture.varHandle(MemoryAddress.class, groupElement("y")).set(segment, m);
@@ -151,16 +169,55 @@ public final class Picture {
     public void setV(MemoryAddress m) {
         Picture.varHandle(MemoryAddress.class, groupElement("v")).set(segment, m);
     }
+
+    public MemoryAddress getY() {
+        return (MemoryAddress) Picture.varHandle(MemoryAddress.class, groupElement("y")).get(segment);
+    }
+
+    public MemoryAddress getU() {
+        return (MemoryAddress) Picture.varHandle(MemoryAddress.class, groupElement("u")).get(segment);
+    }
+
+    public MemoryAddress getV() {
+        return (MemoryAddress) Picture.varHandle(MemoryAddress.class, groupElement("v")).get(segment);
+    }
+    
+    /** luma stride, in bytes */
+    public void setYStride(int i) {
+        Picture.varHandle(int.class, groupElement("y_stride")).set(segment, i);
+    }
+
+    public int getYStride() {
+        return (Integer) Picture.varHandle(int.class, groupElement("y_stride")).get(segment);
+    }
+    
+    /** chroma stride, in bytes, used for both U and V */
+    public void setUvStride(int i) {
+        Picture.varHandle(int.class, groupElement("uv_stride")).set(segment, i);
+    }
+
+    public int getUvStride() {
+        return (Integer) Picture.varHandle(int.class, groupElement("uv_stride")).get(segment);
+    }
     
     /** Pointer to alpha plane  */
     public void setA(MemoryAddress m) {
         Picture.varHandle(MemoryAddress.class, groupElement("a")).set(segment, m);
     }
 
+    /** The alpha plane, which is NULL if the picture has none */
+    public MemoryAddress getA() {
+        return (MemoryAddress) Picture.varHandle(MemoryAddress.class, groupElement("a")).get(segment);
+    }
+
     /** stride of the alpha plane */
     public void setAStride(int i) {
         Picture.varHandle(int.class, groupElement("a_stride")).set(segment, i);
     }
+
+    public int getAStride() {
+        return (Integer) Picture.varHandle(int.class, groupElement("a_stride")).get(segment);
+    }
     
     /** ARGB input (mostly used for input to lossless compression). Note that
      this is a pointer to an array of int*/
@@ -168,11 +225,21 @@ public final class Picture {
         Picture.varHandle(MemoryAddress.class, groupElement("argb")).set(segment, m);
     }
     
+    /** The ARGB plane, which libwebp allocates on import or WebPPictureAlloc() */
+    public MemoryAddress getArgb() {
+        return (MemoryAddress) Picture.varHandle(MemoryAddress.class, groupElement("argb")).get(segment);
+    }
+    
     /** This is stride in pixels units, not bytes. */
     public void setArgbStride(int i) {
         Picture.varHandle(int.class, groupElement("argb_stride")).set(segment, i);
     }
     
+    /** The ARGB stride, in pixels */
+    public int getArgbStride() {
+        return (Integer) Picture.varHandle(int.class, groupElement("argb_stride")).get(segment);
+    }
+    
     // OUTPUT
     
     /** Byte-emission hook, to store compressed bytes as they are ready.
@@ -182,7 +249,7 @@ public final class Picture {
     }
     
     /** Can be used by the writer */
-    public void setCustomPtr(int m) {
+    public void setCustomPtr(MemoryAddress m) {
         Picture.varHandle(MemoryAddress.class, groupElement("custom_ptr")).set(segment, m);
     }
     
@@ -223,6 +290,14 @@ public final class Picture {
         Picture.varHandle(int.class, groupElement("error_code")).set(segment, i);
     }
     
+    /** The error code of the latest encode */
+    public EncodingError getErrorCode() {
+        final int i = (Integer) Picture.varHandle(int.class, groupElement("error_code")).get(segment);
+        if(i < 0 || i >= EncodingError.values().length)
+            throw new IllegalStateException("unknown error code: " + i);
+        return EncodingError.values()[i];
+    }
+    
     /** If not NULL, report progress during encoding..
      Type is WebPProgressHook */
     public void setProgressHook(MemoryAddress m) {
@@ -235,5 +310,10 @@ public final class Picture {
         Picture.varHandle(MemoryAddress.class, groupElement("user_data")).set(segment, m);
     }
     
+    /** The wrapped struct */
+    public MemorySegment segment() {
+        return segment;
+    }
+    
     // other fields are private or unused
 }
@@ -0,0 +1,66 @@
+package chiralsoftware.linkerwebp;
+
+/**
+ * The order of the bytes of an interleaved 8 bit per channel pixel, as it is laid
+ * out in memory. X is an unused byte. Not every layout can be used in both
+ * directions: libwebp has no importer for ARGB, and decoding to RGBX or BGRX
+ * fills the X byte with alpha, which is 255 for opaque images. The premultiplied
+ * layouts have the colour channels already multiplied by alpha, which is what
+ * Java2D composites with; they can only be decoded to.
+ */
+public enum PixelLayout {
+
+    RGB(3, false, 0, 1, 2),
+    RGBA(4, true, 0, 1, 2, 3),
+    RGBX(4, false, 0, 1, 2),
+    BGR(3, false, 2, 1, 0),
+    BGRA(4, true, 2, 1, 0, 3),
+    BGRX(4, false, 2, 1, 0),
+    ARGB(4, true, 1, 2, 3, 0),
+    RGBA_PREMULTIPLIED(4, true, 0, 1, 2, 3),
+    BGRA_PREMULTIPLIED(4, true, 2, 1, 0, 3),
+    ARGB_PREMULTIPLIED(4, true, 1, 2, 3, 0);
+
+    private PixelLayout(int bytesPerPixel, boolean alpha, int... bandOffsets) {
+        this.bytesPerPixel = bytesPerPixel;
+        this.alpha = alpha;
+        this.bandOffsets = bandOffsets;
+        this.premultiplied = name().endsWith("_PREMULTIPLIED");
+    }
+
+    private final int bytesPerPixel;
+    private final boolean alpha;
+    private final boolean premultiplied;
+    private final int[] bandOffsets;
+
+    public int bytesPerPixel() {
+        return bytesPerPixel;
+    }
+
+    /** True if this layout carries alpha */
+    public boolean hasAlpha() {
+        return alpha;
+    }
+
+    /** True if the colour channels are multiplied by alpha */
+    public boolean isPremultiplied() {
+        return premultiplied;
+    }
+
+    /** The byte offsets of red, green, blue and, if there is alpha, alpha within a
+     * pixel, as a PixelInterleavedSampleModel takes them */
+    public int[] bandOffsets() {
+        return bandOffsets.clone();
+    }
+
+    /** The smallest number of bytes which holds an image with this layout and stride */
+    public long minimumSize(int width, int height, int stride) {
+        if(width <= 0 || height <= 0)
+            throw new IllegalArgumentException("invalid size: " + width + "x" + height);
+        if(stride < width * bytesPerPixel)
+            throw new IllegalArgumentException("stride: " + stride + " is less than a row of " + width +
+                    " " + this + " pixels");
+        return (long) stride * (height - 1) + (long) width * bytesPerPixel;
+    }
+
+}
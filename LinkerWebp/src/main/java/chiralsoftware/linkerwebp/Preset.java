@@ -0,0 +1,23 @@
+package chiralsoftware.linkerwebp;
+
+/**
+ * The WebPPreset values, which WebPConfigPreset() uses to initialize a config for
+ * a kind of image. The ordinal is the C value.
+ */
+public enum Preset {
+    DEFAULT("default preset"),
+    PICTURE("digital picture, like portrait, inner shot"),
+    PHOTO("outdoor photograph, with natural lighting"),
+    DRAWING("hand or line drawing, with high-contrast details"),
+    ICON("small-sized colorful images"),
+    TEXT("text-like");
+
+    private Preset(String s) {
+        this.description = s;
+    }
+
+    public String description() {
+        return description;
+    }
+    private final String description;
+}
@@ -0,0 +1,56 @@
+package chiralsoftware.linkerwebp;
+
+import java.awt.image.DataBuffer;
+import java.util.logging.Logger;
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * A single bank TYPE_BYTE DataBuffer whose elements are in a MemorySegment rather
+ * than a Java array, so the pixels of a large image can stay off the heap while
+ * Java2D reads and writes them through the normal Raster API. The segment's scope
+ * controls the lifetime: once it is closed, every access throws
+ * IllegalStateException. Use {@link SegmentImages} to wrap one in a Raster or
+ * BufferedImage.
+ */
+public final class SegmentDataBuffer extends DataBuffer {
+
+    private static final Logger LOG = Logger.getLogger(SegmentDataBuffer.class.getName());
+
+    private final MemorySegment segment;
+
+    /** Use the whole segment. A DataBuffer is indexed by int, so the segment can't
+     * be larger than Integer.MAX_VALUE bytes. */
+    public SegmentDataBuffer(MemorySegment segment) {
+        super(TYPE_BYTE, checkSize(segment));
+        this.segment = segment;
+    }
+
+    private static int checkSize(MemorySegment segment) {
+        if(segment.byteSize() > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("a DataBuffer can't hold: " + segment.byteSize() + " bytes");
+        return (int) segment.byteSize();
+    }
+
+    public MemorySegment getSegment() {
+        return segment;
+    }
+
+    @Override
+    public int getElem(int bank, int i) {
+        if(bank != 0) throw new ArrayIndexOutOfBoundsException("there is only bank 0: " + bank);
+        return MemoryAccess.getByteAtOffset(segment, i) & 0xff;
+    }
+
+    @Override
+    public void setElem(int bank, int i, int val) {
+        if(bank != 0) throw new ArrayIndexOutOfBoundsException("there is only bank 0: " + bank);
+        MemoryAccess.setByteAtOffset(segment, i, (byte) val);
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentDataBuffer{" + "size=" + getSize() + ", segment=" + segment + '}';
+    }
+
+}
@@ -0,0 +1,78 @@
+package chiralsoftware.linkerwebp;
+
+import java.awt.Point;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.logging.Logger;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Create Rasters and BufferedImages over interleaved pixels in a MemorySegment,
+ * using a {@link SegmentDataBuffer}. Nothing is copied: changes through the image
+ * are changes to the segment, and the image can't be used once the segment's scope
+ * is closed. The images are TYPE_CUSTOM, so some Java2D operations take slower
+ * generic paths than they would with a heap image.
+ * <pre>try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+ *     final WebpCodec.DecodedPixels decoded = WebpCodec.decode(webp, PixelLayout.RGBA, scope);
+ *     final BufferedImage image = SegmentImages.createImage(decoded);
+ *     ...
+ * }</pre>
+ */
+public final class SegmentImages {
+
+    private static final Logger LOG = Logger.getLogger(SegmentImages.class.getName());
+
+    private SegmentImages() {
+        throw new RuntimeException("don't instantiate this");
+    }
+
+    /** A raster over the segment, with bands in R, G, B (, A) order
+     * @param stride bytes per row */
+    public static WritableRaster createRaster(MemorySegment segment, PixelLayout layout,
+            int width, int height, int stride) {
+        final long required = layout.minimumSize(width, height, stride);
+        if(segment.byteSize() < required)
+            throw new IllegalArgumentException("the segment is: " + segment.byteSize() +
+                    " bytes but a " + width + "x" + height + " " + layout + " image needs: " + required);
+        final PixelInterleavedSampleModel sampleModel = new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE,
+                width, height, layout.bytesPerPixel(), stride, layout.bandOffsets());
+        return Raster.createWritableRaster(sampleModel, new SegmentDataBuffer(segment), new Point(0, 0));
+    }
+
+    /** An sRGB image over the segment */
+    public static BufferedImage createImage(MemorySegment segment, PixelLayout layout,
+            int width, int height, int stride) {
+        final ColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                layout.hasAlpha(), layout.isPremultiplied(),
+                layout.hasAlpha() ? Transparency.TRANSLUCENT : Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+        return new BufferedImage(colorModel, createRaster(segment, layout, width, height, stride),
+                layout.isPremultiplied(), new Hashtable<>());
+    }
+
+    /** An image over the output of {@link WebpCodec#decode(MemorySegment, PixelLayout, ResourceScope)} */
+    public static BufferedImage createImage(WebpCodec.DecodedPixels decoded) {
+        return createImage(decoded.pixels(), decoded.layout(), decoded.width(), decoded.height(), decoded.stride());
+    }
+
+    /** A new image in native memory, reserved against the {@link NativeMemoryBudget}
+     * and freed when the scope is closed. The pixels are zero. */
+    public static BufferedImage allocate(PixelLayout layout, int width, int height, ResourceScope scope)
+            throws IOException {
+        final int stride = width * layout.bytesPerPixel();
+        final MemorySegment segment =
+                NativeMemoryBudget.getInstance().allocate(layout.minimumSize(width, height, stride), scope);
+        LOG.finer("allocated a " + width + "x" + height + " " + layout + " image");
+        return createImage(segment, layout, width, height, stride);
+    }
+
+}
@@ -0,0 +1,204 @@
+package chiralsoftware.linkerwebp;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Encode and decode on a dedicated pool of platform threads, returning futures.
+ * A native call pins the thread which makes it, so a virtual thread calling libwebp
+ * directly holds its carrier for the whole encode or decode, upcalls included.
+ * Through this class the caller only waits on a future, and the native work is
+ * limited to one platform thread per core however many callers are waiting.
+ * <p>
+ * Cancelling a future which hasn't started removes the work. Cancelling a running
+ * ImageIO encode aborts it through the writer's progress hook; other running work
+ * finishes and its result is discarded.
+ * <p>
+ * Work runs on another thread, so segments passed in must be heap segments or
+ * native segments in a shared or global scope, and must stay alive until the future
+ * completes.
+ */
+public final class WebpAsync {
+
+    private static final Logger LOG = Logger.getLogger(WebpAsync.class.getName());
+
+    /** The number of native worker threads */
+    public static final String THREADS_PROPERTY = "chiralsoftware.linkerwebp.nativeThreads";
+
+    private static final ExecutorService executor = newExecutor();
+
+    private WebpAsync() {
+        throw new RuntimeException("don't instantiate this");
+    }
+
+    /** The number of threads from {@value #THREADS_PROPERTY}, or the number of
+     * processors if it isn't set or isn't a positive number */
+    static int defaultThreads() {
+        final String property = System.getProperty(THREADS_PROPERTY);
+        final int processors = Runtime.getRuntime().availableProcessors();
+        if(property == null) return processors;
+        try {
+            final int threads = Integer.parseInt(property.trim());
+            if(threads >= 1) return threads;
+        } catch(NumberFormatException nfe) {
+            // logged below
+        }
+        LOG.warning(THREADS_PROPERTY + " must be a positive number of threads, not: " + property +
+                "; using: " + processors);
+        return processors;
+    }
+
+    private static ExecutorService newExecutor() {
+        final int threads = defaultThreads();
+        final AtomicInteger count = new AtomicInteger();
+        final ThreadPoolExecutor result = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    final Thread t = new Thread(r, "linkerwebp-native-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        // idle threads exit, so an application which stops using this doesn't keep them
+        result.allowCoreThreadTimeOut(true);
+        LOG.fine("native worker threads: " + threads);
+        return result;
+    }
+
+    /** Native work for one future. The future is passed in so the work can stop
+     * itself when it is cancelled. */
+    @FunctionalInterface
+    private static interface NativeTask<T> {
+        T run(CompletableFuture<T> future) throws Exception;
+    }
+
+    private static <T> CompletableFuture<T> submit(NativeTask<T> task) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final Future<?> queued = executor.submit(() -> {
+            if(result.isDone()) return;
+            try {
+                final T value = task.run(result);
+                // a result nobody will receive still has to be freed
+                if(! result.complete(value) && value instanceof AutoCloseable closeable) closeable.close();
+            } catch(Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        result.whenComplete((r, t) -> {
+            if(result.isCancelled()) queued.cancel(false);
+        });
+        return result;
+    }
+
+    /** Encode raw pixels with {@link WebpCodec} */
+    public static CompletableFuture<byte[]> encodeAsync(MemorySegment pixels, PixelLayout layout,
+            int width, int height, int stride, EncoderSettings settings) {
+        return submit(future -> WebpCodec.encode(pixels, layout, width, height, stride, settings));
+    }
+
+    /** Encode an image through a pooled ImageIO writer. Cancelling the future aborts
+     * the encode. */
+    public static CompletableFuture<byte[]> encodeAsync(RenderedImage image, EncoderSettings settings) {
+        return submit(future -> {
+            // the writer goes back to the pool when this is done, so a late cancel
+            // must not reach it; it is only aborted while this write is running
+            final Object lock = new Object();
+            final ImageWriter[] writing = new ImageWriter[1];
+            future.whenComplete((r, t) -> {
+                if(! future.isCancelled()) return;
+                synchronized(lock) {
+                    if(writing[0] != null) writing[0].abort();
+                }
+            });
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (InstancePool.Lease<ImageWriter> lease = writerSpi().getPool().lease();
+                    ImageOutputStream ios = new MemoryCacheImageOutputStream(baos)) {
+                final ImageWriter writer = lease.get();
+                final WebpWriteParam param = (WebpWriteParam) writer.getDefaultWriteParam();
+                param.setSettings(settings);
+                writer.setOutput(ios);
+                synchronized(lock) {
+                    if(future.isCancelled()) return null;
+                    writing[0] = writer;
+                }
+                try {
+                    writer.write(null, new IIOImage(image, null, null), param);
+                } finally {
+                    synchronized(lock) {
+                        writing[0] = null;
+                    }
+                }
+            }
+            return baos.toByteArray();
+        });
+    }
+
+    /** Decoded pixels with the shared scope they live in. Closing this frees them. */
+    public static record Decoded(WebpCodec.DecodedPixels pixels, ResourceScope scope) implements AutoCloseable {
+        @Override
+        public void close() {
+            if(scope.isAlive()) scope.close();
+        }
+    }
+
+    /** Decode into native pixels in a new shared scope, which the caller closes */
+    public static CompletableFuture<Decoded> decodeAsync(MemorySegment webp, PixelLayout layout) {
+        return submit(future -> {
+            final ResourceScope scope = ResourceScope.newSharedScope();
+            try {
+                return new Decoded(WebpCodec.decode(webp, layout, scope), scope);
+            } catch(IOException | RuntimeException e) {
+                scope.close();
+                throw e;
+            }
+        });
+    }
+
+    /** Decode into a BufferedImage through a pooled ImageIO reader */
+    public static CompletableFuture<BufferedImage> decodeAsync(byte[] webp) {
+        return submit(future -> {
+            try (InstancePool.Lease<ImageReader> lease = readerSpi().getPool().lease()) {
+                final ImageReader reader = lease.get();
+                reader.setInput(webp);
+                return reader.read(0);
+            }
+        });
+    }
+
+    /** SPIs for when the plugin isn't registered, created once so their pools are shared */
+    private static WebpWriterSpi writerSpi = null;
+    private static WebpReaderSpi readerSpi = null;
+
+    private static synchronized WebpWriterSpi writerSpi() {
+        if(writerSpi == null) {
+            final WebpWriterSpi spi = IIORegistry.getDefaultInstance().getServiceProviderByClass(WebpWriterSpi.class);
+            writerSpi = spi != null ? spi : new WebpWriterSpi();
+        }
+        return writerSpi;
+    }
+
+    private static synchronized WebpReaderSpi readerSpi() throws IOException {
+        if(readerSpi == null) {
+            final WebpReaderSpi spi = IIORegistry.getDefaultInstance().getServiceProviderByClass(WebpReaderSpi.class);
+            readerSpi = spi != null ? spi : new WebpReaderSpi();
+        }
+        return readerSpi;
+    }
+
+}
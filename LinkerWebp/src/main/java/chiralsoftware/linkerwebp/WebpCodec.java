@@ -0,0 +1,212 @@
+package chiralsoftware.linkerwebp;
+
+import chiralsoftware.linkerwebp.impl.LibWebp;
+import chiralsoftware.linkerwebp.impl.NativeDecoder;
+import chiralsoftware.linkerwebp.impl.NativeEncoder;
+import java.awt.Dimension;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import static java.util.logging.Level.WARNING;
+import java.util.logging.Logger;
+import javax.imageio.IIOException;
+import static jdk.incubator.foreign.CLinker.C_POINTER;
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Encode and decode raw interleaved pixels directly, without going through ImageIO.
+ * There is no SPI lookup, no ImageWriter or ImageReader, and no Raster copy, so this
+ * is the fast path for services which already hold pixel buffers. It uses the same
+ * native code as the ImageIO plugin, and the same {@link NativeMemoryBudget}.
+ * <p>
+ * Pixels and WebP data can be in any segment. Native and mapped segments are used
+ * in place; heap segments are copied into native memory first.
+ */
+public final class WebpCodec {
+
+    private static final Logger LOG = Logger.getLogger(WebpCodec.class.getName());
+
+    /** The quality libwebp's one-call lossless encoders use. Layouts they don't
+     * take are encoded through a config with the same quality, so the result
+     * doesn't depend on the layout. */
+    public static final float LOSSLESS_QUALITY = 70;
+
+    private WebpCodec() {
+        throw new RuntimeException("don't instantiate this");
+    }
+
+    /** Pixels decoded by {@link #decode(MemorySegment, PixelLayout, ResourceScope)} */
+    public static record DecodedPixels(int width, int height, int stride, PixelLayout layout,
+            MemorySegment pixels) { }
+
+    /** Encode with full control of the settings.
+     * @param stride bytes per row of the pixels
+     * @return the encoded WebP file, which is freed when the scope is closed */
+    public static MemorySegment encode(MemorySegment pixels, PixelLayout layout, int width, int height, int stride,
+            EncoderSettings settings, ResourceScope scope) throws IOException {
+        checkPixels(pixels, layout, width, height, stride);
+        final NativeMemoryBudget budget = NativeMemoryBudget.getInstance();
+        // import into the representation the encoder will use, as the writer does
+        final boolean useArgb = settings.lossless() || settings.sharpYuv();
+        try (ResourceScope encodeScope = ResourceScope.newConfinedScope()) {
+            // admit the whole encode at once, including a native copy of heap pixels
+            budget.admit(NativeEncoder.encodeBytes(width, height, useArgb) +
+                    (pixels.isNative() || pixels.isMapped() ? 0 : pixels.byteSize()), encodeScope);
+            final Config config = NativeEncoder.newConfig(settings, encodeScope);
+            final Picture picture = NativeEncoder.newPicture(width, height, encodeScope);
+            picture.setUseArgb(useArgb ? 1 : 0);
+            budget.reserve(LibWebp.pictureBytes(width, height, useArgb), encodeScope);
+            NativeEncoder.importPixels(picture, layout, budget.toNative(pixels, encodeScope), stride);
+            final MemorySegment encoded = NativeEncoder.encode(config, picture, encodeScope);
+            // the encode's memory is freed as soon as the result has been copied
+            final MemorySegment result = budget.allocateNow(encoded.byteSize(), scope);
+            result.copyFrom(encoded);
+            return result;
+        }
+    }
+
+    /** Encode with full control of the settings, and return the WebP file as a byte array */
+    public static byte[] encode(MemorySegment pixels, PixelLayout layout, int width, int height, int stride,
+            EncoderSettings settings) throws IOException {
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            return encode(pixels, layout, width, height, stride, settings, scope).toByteArray();
+        }
+    }
+
+    /** Lossless encode with libwebp's default settings, at {@link #LOSSLESS_QUALITY}.
+     * RGB, RGBA, BGR and BGRA use libwebp's one-call encoder. */
+    public static byte[] encodeLossless(MemorySegment pixels, PixelLayout layout, int width, int height, int stride)
+            throws IOException {
+        final LibWebp libWebp = LibWebp.getInstance();
+        final LibWebp.LazyHandle handle = switch(layout) {
+            case RGB -> libWebp.EncodeLosslessRGB;
+            case RGBA -> libWebp.EncodeLosslessRGBA;
+            case BGR -> libWebp.EncodeLosslessBGR;
+            case BGRA -> libWebp.EncodeLosslessBGRA;
+            default -> null;
+        };
+        if(handle == null)
+            return encode(pixels, layout, width, height, stride, EncoderSettings.lossless(LOSSLESS_QUALITY));
+        return simpleEncode(handle, true, pixels, layout, width, height, stride, 0);
+    }
+
+    /** Lossy encode with libwebp's default settings at this quality, from 0 to 100.
+     * RGB, RGBA, BGR and BGRA use libwebp's one-call encoder. */
+    public static byte[] encodeLossy(MemorySegment pixels, PixelLayout layout, int width, int height, int stride,
+            float quality) throws IOException {
+        final LibWebp libWebp = LibWebp.getInstance();
+        final LibWebp.LazyHandle handle = switch(layout) {
+            case RGB -> libWebp.EncodeRGB;
+            case RGBA -> libWebp.EncodeRGBA;
+            case BGR -> libWebp.EncodeBGR;
+            case BGRA -> libWebp.EncodeBGRA;
+            default -> null;
+        };
+        if(handle == null)
+            return encode(pixels, layout, width, height, stride, EncoderSettings.DEFAULT.withQuality(quality));
+        return simpleEncode(handle, false, pixels, layout, width, height, stride, quality);
+    }
+
+    private static byte[] simpleEncode(LibWebp.LazyHandle handle, boolean lossless, MemorySegment pixels,
+            PixelLayout layout, int width, int height, int stride, float quality) throws IOException {
+        checkPixels(pixels, layout, width, height, stride);
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            final NativeMemoryBudget budget = NativeMemoryBudget.getInstance();
+            // libwebp builds and frees its own picture inside the call, so admit that
+            // and the output along with the copy of the pixels
+            budget.admit((pixels.isNative() || pixels.isMapped() ? 0 : pixels.byteSize()) +
+                    LibWebp.pictureBytes(width, height, lossless) + LibWebp.outputBytes(width, height), scope);
+            final MemorySegment input = budget.toNative(pixels, scope);
+            final MemorySegment outputPointer = MemorySegment.allocateNative(C_POINTER, scope);
+            final long size;
+            try {
+                size = lossless ?
+                        (Long) handle.get().invoke(input.address(), width, height, stride, outputPointer.address()) :
+                        (Long) handle.get().invoke(input.address(), width, height, stride, quality,
+                                outputPointer.address());
+            } catch(IOException ioe) {
+                throw ioe;
+            } catch(Throwable t) {
+                throw new IIOException("encoding failed", t);
+            }
+            if(size == 0) throw new IIOException("libwebp couldn't encode the " + layout + " pixels");
+            final MemoryAddress output = MemoryAccess.getAddress(outputPointer);
+            budget.account(size, scope);
+            try {
+                return output.asSegment(size, scope).toByteArray();
+            } finally {
+                free(output);
+            }
+        }
+    }
+
+    private static void free(MemoryAddress address) {
+        try {
+            LibWebp.getInstance().Free.get().invoke(address);
+        } catch(Throwable t) {
+            LOG.log(WARNING, "couldn't free the encoder output", t);
+        }
+    }
+
+    /** The width and height from the header, without decoding */
+    public static Dimension getSize(MemorySegment webp) throws IOException {
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            final int[] size = NativeDecoder.getInfo(NativeMemoryBudget.getInstance().toNative(webp, scope));
+            return new Dimension(size[0], size[1]);
+        }
+    }
+
+    /** Decode the whole image into newly allocated, tightly packed pixels, which are
+     * freed when the scope is closed */
+    public static DecodedPixels decode(MemorySegment webp, PixelLayout layout, ResourceScope scope)
+            throws IOException {
+        try (ResourceScope decodeScope = ResourceScope.newConfinedScope()) {
+            final MemorySegment input = NativeMemoryBudget.getInstance().toNative(webp, decodeScope);
+            final int[] size = NativeDecoder.getInfo(input);
+            final int stride = size[0] * layout.bytesPerPixel();
+            final MemorySegment pixels =
+                    NativeMemoryBudget.getInstance().allocate((long) stride * size[1], scope);
+            NativeDecoder.decodeInto(input, layout, pixels, stride);
+            return new DecodedPixels(size[0], size[1], stride, layout, pixels);
+        }
+    }
+
+    /** Decode the whole image into memory the caller owns, such as a pooled buffer
+     * which is handed to another native library. The destination must be a native
+     * or mapped segment, so the pixels never touch the heap.
+     * @param stride bytes per row of the destination
+     * @return the size of the image */
+    public static Dimension decodeInto(MemorySegment webp, PixelLayout layout, MemorySegment destination, int stride)
+            throws IOException {
+        if(! destination.isNative() && ! destination.isMapped())
+            throw new IllegalArgumentException("the destination must be a native or mapped segment");
+        if(destination.isReadOnly())
+            throw new IllegalArgumentException("the destination is read only");
+        try (ResourceScope decodeScope = ResourceScope.newConfinedScope()) {
+            final MemorySegment input = NativeMemoryBudget.getInstance().toNative(webp, decodeScope);
+            final int[] size = NativeDecoder.getInfo(input);
+            checkPixels(destination, layout, size[0], size[1], stride);
+            NativeDecoder.decodeInto(input, layout, destination, stride);
+            return new Dimension(size[0], size[1]);
+        }
+    }
+
+    /** Decode into a direct ByteBuffer, starting at its position. The position and
+     * limit are not changed. */
+    public static Dimension decodeInto(MemorySegment webp, PixelLayout layout, ByteBuffer destination, int stride)
+            throws IOException {
+        if(! destination.isDirect())
+            throw new IllegalArgumentException("the destination must be a direct ByteBuffer");
+        return decodeInto(webp, layout, MemorySegment.ofByteBuffer(destination), stride);
+    }
+
+    private static void checkPixels(MemorySegment pixels, PixelLayout layout, int width, int height, int stride) {
+        final long required = layout.minimumSize(width, height, stride);
+        if(pixels.byteSize() < required)
+            throw new IllegalArgumentException("the pixels are: " + pixels.byteSize() +
+                    " bytes but a " + width + "x" + height + " " + layout + " image needs: " + required);
+    }
+
+}
@@ -0,0 +1,230 @@
+package chiralsoftware.linkerwebp;
+
+import chiralsoftware.linkerwebp.impl.LibWebp;
+import chiralsoftware.linkerwebp.impl.NativeEncoder;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+import javax.imageio.IIOException;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Encode one image at several widths and settings, such as the variants of a
+ * responsive image. The source is imported into a native picture once. Each width
+ * is made with libwebp's rescaler from the next larger width, so the smallest
+ * sizes are rescaled from small pictures rather than from the source, and each
+ * variant is encoded from a copy of its size with its own config. Variants are
+ * never made larger than the source.
+ * <p>
+ * The source picture is ARGB if any variant is lossless or uses sharp YUV, and
+ * YUVA otherwise. With an executor the encodes run in parallel; the import and
+ * the rescales are done first, on the calling thread.
+ */
+public final class WebpLadder {
+
+    private static final Logger LOG = Logger.getLogger(WebpLadder.class.getName());
+
+    /** One variant: the width to encode at, and the settings to encode with */
+    public static record Rung(int width, EncoderSettings settings) {
+        public Rung {
+            if(width < 1) throw new IllegalArgumentException("width must be positive; it was: " + width);
+            if(settings == null) throw new NullPointerException("settings can't be null");
+        }
+    }
+
+    /** An encoded variant. The width and height are the encoded size, which is
+     * smaller than the rung's width if the source is. */
+    public static record Output(Rung rung, int width, int height, byte[] webp) { }
+
+    private final List<Rung> rungs;
+
+    public WebpLadder(List<Rung> rungs) {
+        if(rungs.isEmpty()) throw new IllegalArgumentException("the ladder needs at least one rung");
+        this.rungs = List.copyOf(rungs);
+    }
+
+    public List<Rung> getRungs() {
+        return rungs;
+    }
+
+    /** Encode raw interleaved pixels on the calling thread
+     * @return the variants, in the order of the rungs */
+    public List<Output> encode(MemorySegment pixels, PixelLayout layout, int width, int height, int stride)
+            throws IOException {
+        return encode(pixels, layout, width, height, stride, null);
+    }
+
+    /** Encode raw interleaved pixels
+     * @param executor runs the encodes, or null to run them on the calling thread
+     * @return the variants, in the order of the rungs */
+    public List<Output> encode(MemorySegment pixels, PixelLayout layout, int width, int height, int stride,
+            Executor executor) throws IOException {
+        if(pixels.byteSize() < layout.minimumSize(width, height, stride))
+            throw new IllegalArgumentException("the pixels are: " + pixels.byteSize() +
+                    " bytes, which is too small for a " + width + "x" + height + " " + layout + " image");
+        try (ResourceScope scope = newScope(executor)) {
+            // the whole ladder is admitted at once, and each rung takes its share of it
+            NativeMemoryBudget.getInstance().admit(Picture.Picture.byteSize() +
+                    (pixels.isNative() || pixels.isMapped() ? 0 : pixels.byteSize()) +
+                    LibWebp.pictureBytes(width, height, needsArgb()) + ladderBytes(width, height), scope);
+            return encode(NativeEncoder.importPicture(pixels, layout, width, height, stride, needsArgb(), scope),
+                    scope, executor);
+        }
+    }
+
+    /** Encode an image with 3 or 4 interleaved byte bands, as the ImageIO writer
+     * accepts, on the calling thread */
+    public List<Output> encode(RenderedImage image) throws IOException {
+        return encode(image, null);
+    }
+
+    /** Encode an image with 3 or 4 interleaved byte bands, as the ImageIO writer
+     * accepts
+     * @param executor runs the encodes, or null to run them on the calling thread */
+    public List<Output> encode(RenderedImage image, Executor executor) throws IOException {
+        try (ResourceScope scope = newScope(executor)) {
+            NativeMemoryBudget.getInstance().admit(NativeEncoder.importBytes(image, needsArgb()) +
+                    ladderBytes(image.getWidth(), image.getHeight()), scope);
+            return encode(NativeEncoder.importImage(image, needsArgb(), scope), scope, executor);
+        }
+    }
+
+    /** Encodes on other threads use the pictures, so they need a shared scope */
+    static ResourceScope newScope(Executor executor) {
+        return executor == null ? ResourceScope.newConfinedScope() : ResourceScope.newSharedScope();
+    }
+
+    private boolean needsArgb() {
+        return rungs.stream().anyMatch(r -> r.settings().lossless() || r.settings().sharpYuv());
+    }
+
+    /** The height of a rung; it comes from the source, so rounding doesn't build up */
+    private static int rungHeight(int sourceWidth, int sourceHeight, int width) {
+        return (int) Math.max(1, Math.round((double) sourceHeight * width / sourceWidth));
+    }
+
+    /** An estimate of what the rescaled copies and the encodes of every rung need */
+    private long ladderBytes(int sourceWidth, int sourceHeight) {
+        final boolean useArgb = needsArgb();
+        final int[] widths = rungs.stream().mapToInt(r -> Math.min(r.width(), sourceWidth)).
+                distinct().sorted().toArray();
+        long bytes = 0;
+        long previous = LibWebp.pictureBytes(sourceWidth, sourceHeight, useArgb);
+        for(int i = widths.length - 1; i >= 0; i--) {
+            if(widths[i] == sourceWidth) continue;
+            final long rescaled =
+                    LibWebp.pictureBytes(widths[i], rungHeight(sourceWidth, sourceHeight, widths[i]), useArgb);
+            bytes += Picture.Picture.byteSize() + previous + rescaled;
+            previous = rescaled;
+        }
+        for(Rung rung : rungs) {
+            final int width = Math.min(rung.width(), sourceWidth);
+            bytes += NativeEncoder.encodeBytes(width, rungHeight(sourceWidth, sourceHeight, width), useArgb);
+        }
+        return bytes;
+    }
+
+    private List<Output> encode(Picture source, ResourceScope scope, Executor executor) throws IOException {
+        final int sourceWidth = source.getWidth();
+        final int sourceHeight = source.getHeight();
+        final int[] widths = rungs.stream().mapToInt(r -> Math.min(r.width(), sourceWidth)).
+                distinct().sorted().toArray();
+        // from the largest to the smallest, each rescaled from the one before it
+        final Map<Integer, Picture> sized = new HashMap<>();
+        Picture previous = source;
+        for(int i = widths.length - 1; i >= 0; i--) {
+            final int width = widths[i];
+            if(width == sourceWidth) {
+                sized.put(width, source);
+                continue;
+            }
+            final int height = rungHeight(sourceWidth, sourceHeight, width);
+            final Picture picture = NativeEncoder.copyPicture(previous, scope);
+            NativeEncoder.rescalePicture(picture, width, height, scope);
+            sized.put(width, picture);
+            previous = picture;
+        }
+        LOG.finer("rescaled " + sourceWidth + "x" + sourceHeight + " to widths: " + Arrays.toString(widths));
+
+        final List<Callable<Output>> work = new ArrayList<>(rungs.size());
+        for(Rung rung : rungs) {
+            final Picture picture = sized.get(Math.min(rung.width(), sourceWidth));
+            final int width = picture.getWidth();
+            final int height = picture.getHeight();
+            work.add(() -> encodeRung(rung, picture, width, height, scope));
+        }
+        return runAll(work, executor);
+    }
+
+    /** Run the work on the executor, or on this thread if it is null, and wait for
+     * all of it to finish, even if some of it fails, because it uses native memory
+     * the caller frees next.
+     * @return the results, in the order of the work */
+    static <T> List<T> runAll(List<Callable<T>> work, Executor executor) throws IOException {
+        final List<FutureTask<T>> tasks = new ArrayList<>(work.size());
+        for(Callable<T> callable : work) {
+            final FutureTask<T> task = new FutureTask<>(callable);
+            tasks.add(task);
+            if(executor == null) task.run();
+            else {
+                try {
+                    executor.execute(task);
+                } catch(RejectedExecutionException ree) {
+                    // the tasks already submitted may be running, so this can't just throw
+                    task.run();
+                }
+            }
+        }
+        final List<T> result = new ArrayList<>(tasks.size());
+        IOException failure = null;
+        for(FutureTask<T> task : tasks) {
+            try {
+                result.add(awaitUninterruptibly(task));
+            } catch(ExecutionException ee) {
+                if(failure == null) failure = ee.getCause() instanceof IOException ioe ? ioe :
+                        new IIOException("encoding failed", ee.getCause());
+            }
+        }
+        if(failure != null) throw failure;
+        return result;
+    }
+
+    /** WebPEncode can convert the picture it is given, so each encode gets a copy */
+    private static Output encodeRung(Rung rung, Picture picture, int width, int height, ResourceScope parent)
+            throws IOException {
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            NativeMemoryBudget.getInstance().admitFrom(
+                    NativeEncoder.encodeBytes(width, height, picture.getUseArgb() == 1), parent, scope);
+            final Config config = NativeEncoder.newConfig(rung.settings(), scope);
+            final Picture copy = NativeEncoder.copyPicture(picture, scope);
+            return new Output(rung, width, height, NativeEncoder.encode(config, copy, scope).toByteArray());
+        }
+    }
+
+    private static <T> T awaitUninterruptibly(FutureTask<T> task) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    return task.get();
+                } catch(InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if(interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+package chiralsoftware.linkerwebp;
+
+import chiralsoftware.linkerwebp.impl.NativeMux;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import jdk.incubator.foreign.MemorySegment;
+import org.w3c.dom.Node;
+
+/**
+ * The ICC profile, EXIF and XMP chunks of a WebP file. Metadata from the reader is
+ * parsed lazily, on the first call which needs it, and only the RIFF container is
+ * read: pixels are never decoded. The chunks are read-only slices of the input,
+ * not copies, so they are only valid until the reader is disposed or given new
+ * input. Copy them out to keep them longer.
+ * <p>
+ * The same object can be passed to the writer in the IIOImage, and its chunks are
+ * attached to the encoded file. In the native tree each chunk is a node named ICCP,
+ * EXIF or XMP whose user object is a MemorySegment; byte arrays are also accepted
+ * when merging.
+ */
+public final class WebpMetadata extends IIOMetadata {
+
+    private static final Logger LOG = Logger.getLogger(WebpMetadata.class.getName());
+
+    public static final String nativeMetadataFormatName = "chiralsoftware.imageio.WebpMetadata_1.0";
+
+    /** Chunk fourccs */
+    public static final String ICCP = "ICCP";
+    public static final String EXIF = "EXIF";
+    public static final String XMP = "XMP ";
+
+    private static final List<String> fourccs = List.of(ICCP, EXIF, XMP);
+
+    /** The file to parse on first use, or null once it is parsed; guarded by this */
+    private MemorySegment source;
+    /** guarded by this */
+    private final Map<String, MemorySegment> chunks = new LinkedHashMap<>();
+
+    /** Empty metadata, for writing */
+    public WebpMetadata() {
+        this(null);
+    }
+
+    private WebpMetadata(MemorySegment source) {
+        super(false, nativeMetadataFormatName, null, null, null);
+        this.source = source;
+    }
+
+    /** Metadata which will be parsed from this WebP file when it is first needed. The
+     * file must stay alive as long as the metadata is used. */
+    public static WebpMetadata of(MemorySegment webp) {
+        if(webp == null) throw new NullPointerException("webp can't be null");
+        return new WebpMetadata(webp.asReadOnly());
+    }
+
+    private synchronized void load() throws IOException {
+        if(source == null) return;
+        chunks.putAll(NativeMux.getChunks(source, fourccs));
+        source = null;
+        LOG.finer("found chunks: " + chunks.keySet());
+    }
+
+    /** @return the chunk, or null if it is not present */
+    public synchronized MemorySegment getChunk(String fourcc) throws IOException {
+        load();
+        return chunks.get(fourcc);
+    }
+
+    /** Set a chunk, or remove it if the data is null */
+    public synchronized void setChunk(String fourcc, MemorySegment data) throws IOException {
+        if(! fourccs.contains(fourcc)) throw new IllegalArgumentException("unsupported chunk: '" + fourcc + "'");
+        load();
+        if(data == null) chunks.remove(fourcc);
+        else chunks.put(fourcc, data.asReadOnly());
+    }
+
+    /** The chunks which are present, by fourcc */
+    public synchronized Map<String, MemorySegment> getChunks() throws IOException {
+        load();
+        return Collections.unmodifiableMap(new LinkedHashMap<>(chunks));
+    }
+
+    public MemorySegment getIccProfile() throws IOException {
+        return getChunk(ICCP);
+    }
+
+    public void setIccProfile(MemorySegment data) throws IOException {
+        setChunk(ICCP, data);
+    }
+
+    public MemorySegment getExif() throws IOException {
+        return getChunk(EXIF);
+    }
+
+    public void setExif(MemorySegment data) throws IOException {
+        setChunk(EXIF, data);
+    }
+
+    public MemorySegment getXmp() throws IOException {
+        return getChunk(XMP);
+    }
+
+    public void setXmp(MemorySegment data) throws IOException {
+        setChunk(XMP, data);
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    public Node getAsTree(String formatName) {
+        checkFormat(formatName);
+        final IIOMetadataNode root = new IIOMetadataNode(nativeMetadataFormatName);
+        try {
+            for(Map.Entry<String, MemorySegment> e : getChunks().entrySet()) {
+                final IIOMetadataNode node = new IIOMetadataNode(e.getKey().trim());
+                node.setAttribute("length", Long.toString(e.getValue().byteSize()));
+                node.setUserObject(e.getValue());
+                root.appendChild(node);
+            }
+        } catch(IOException ioe) {
+            throw new UncheckedIOException("couldn't read the metadata chunks", ioe);
+        }
+        return root;
+    }
+
+    @Override
+    public void mergeTree(String formatName, Node root) throws IIOInvalidTreeException {
+        checkFormat(formatName);
+        if(! nativeMetadataFormatName.equals(root.getNodeName()))
+            throw new IIOInvalidTreeException("the root must be: " + nativeMetadataFormatName, root);
+        for(Node n = root.getFirstChild(); n != null; n = n.getNextSibling()) {
+            final Node child = n;
+            final String fourcc = fourccs.stream().filter(f -> f.trim().equals(child.getNodeName())).
+                    findFirst().orElseThrow(() -> new IIOInvalidTreeException("unknown chunk: " +
+                            child.getNodeName(), child));
+            final Object userObject = child instanceof IIOMetadataNode node ? node.getUserObject() : null;
+            final MemorySegment data;
+            if(userObject instanceof MemorySegment segment) data = segment;
+            else if(userObject instanceof byte[] bytes) data = MemorySegment.ofArray(bytes);
+            else throw new IIOInvalidTreeException("the " + child.getNodeName() +
+                    " node needs a MemorySegment or byte[] user object", child);
+            try {
+                setChunk(fourcc, data);
+            } catch(IOException ioe) {
+                throw new IIOInvalidTreeException("couldn't read the existing metadata", ioe, child);
+            }
+        }
+    }
+
+    private void checkFormat(String formatName) {
+        if(! nativeMetadataFormatName.equals(formatName))
+            throw new IllegalArgumentException("unsupported metadata format: " + formatName);
+    }
+
+    @Override
+    public synchronized void reset() {
+        source = null;
+        chunks.clear();
+    }
+
+}
@@ -0,0 +1,45 @@
+package chiralsoftware.linkerwebp;
+
+import javax.imageio.ImageReadParam;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Read parameters for the WebP reader.
+ * <p>
+ * The reader honours setDestination() and setDestinationOffset(), so a frame loop
+ * can decode every frame into one image. A destination over native memory from
+ * {@link SegmentImages} is decoded into in place; heap images get a row copy.
+ */
+public final class WebpReadParam extends ImageReadParam {
+
+    private DecodedImageCache decodedImageCache = null;
+    private ResourceScope offHeapScope = null;
+
+    public WebpReadParam() {
+        super();
+    }
+
+    /** Look up decoded pixels in this cache before decoding, and add them after
+     decoding. Null (the default) means no caching. With an off-heap scope the image
+     is over the cached pixels, pinned until that scope is closed, and is read-only. */
+    public void setDecodedImageCache(DecodedImageCache decodedImageCache) {
+        this.decodedImageCache = decodedImageCache;
+    }
+
+    public DecodedImageCache getDecodedImageCache() {
+        return decodedImageCache;
+    }
+
+    /** Decode into native memory which is freed when this scope is closed, and return
+     an image over it made by {@link SegmentImages}, instead of a heap image. The
+     image can't be used after the scope is closed. Null (the default) means a heap
+     image. A destination image takes precedence over this. */
+    public void setOffHeapScope(ResourceScope offHeapScope) {
+        this.offHeapScope = offHeapScope;
+    }
+
+    public ResourceScope getOffHeapScope() {
+        return offHeapScope;
+    }
+
+}
@@ -16,8 +16,13 @@ public final class WebpReaderSpi extends ImageReaderSpi {
     
     public WebpReaderSpi() throws IOException {
         super();
+        nativeImageMetadataFormatName = WebpMetadata.nativeMetadataFormatName;
     }
     
+    /** Ready readers, which keep their native buffers between images */
+    private final InstancePool<ImageReader> pool = new InstancePool<>(InstancePool.defaultSize(),
+            () -> new WebpImageReader(this), ImageReader::reset, ImageReader::dispose);
+    
     private static final byte[] webpFirstHeader = { 'R', 'I', 'F', 'F' };
     private static final byte[] webpSecondHeader = { 'W', 'E', 'B', 'P' };
 
@@ -48,6 +53,12 @@ public final class WebpReaderSpi extends ImageReaderSpi {
         return new WebpImageReader(this);
     }
     
+    /** A pool of readers, as an alternative to createReaderInstance() for callers
+     which read many images. Readers are reset when they are returned. */
+    public InstancePool<ImageReader> getPool() {
+        return pool;
+    }
+    
     @Override
     public Class[] getInputTypes() {
         return new Class[] { byte[].class };
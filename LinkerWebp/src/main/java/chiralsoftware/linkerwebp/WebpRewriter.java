@@ -0,0 +1,129 @@
+package chiralsoftware.linkerwebp;
+
+import chiralsoftware.linkerwebp.impl.NativeMux;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Rewrite WebP files at the container level: remove, replace or add chunks, and
+ * extract single frames from animations. Only the RIFF structure is touched, so
+ * nothing is decoded or re-encoded, there is no loss, and the cost depends on the
+ * file size rather than the number of pixels. The file versions map the input and
+ * output, and the output is written to a temporary file which is then moved into
+ * place.
+ * <pre>final WebpRewriter stripper = new WebpRewriter().stripMetadata();
+ * stripper.rewrite(upload, stored);</pre>
+ * A rewriter holds only the list of changes, so one instance can be shared by many
+ * threads once it is set up.
+ */
+public final class WebpRewriter {
+
+    private static final Logger LOG = Logger.getLogger(WebpRewriter.class.getName());
+
+    /** fourcc to new data, or to null to remove the chunk */
+    private final Map<String, MemorySegment> changes = new LinkedHashMap<>();
+
+    /** Add or replace a chunk, such as {@link WebpMetadata#ICCP}. The data is not
+     * copied, so it must stay alive as long as this rewriter is used. */
+    public WebpRewriter set(String fourcc, MemorySegment data) {
+        if(data == null) throw new NullPointerException("data can't be null; use remove() to remove a chunk");
+        changes.put(checkFourcc(fourcc), data.asReadOnly());
+        return this;
+    }
+
+    /** Remove a chunk if it is present */
+    public WebpRewriter remove(String fourcc) {
+        changes.put(checkFourcc(fourcc), null);
+        return this;
+    }
+
+    /** Remove the EXIF and XMP chunks, which may hold location and camera details.
+     * The ICC profile is kept so the colours don't change. */
+    public WebpRewriter stripMetadata() {
+        return remove(WebpMetadata.EXIF).remove(WebpMetadata.XMP);
+    }
+
+    public Map<String, MemorySegment> getChanges() {
+        return Collections.unmodifiableMap(changes);
+    }
+
+    private static String checkFourcc(String fourcc) {
+        if(fourcc == null || fourcc.length() != 4)
+            throw new IllegalArgumentException("a fourcc must be four characters: '" + fourcc + "'");
+        return fourcc;
+    }
+
+    /** Apply the changes
+     * @return the new file, which is freed when the scope is closed */
+    public MemorySegment rewrite(MemorySegment webp, ResourceScope scope) throws IOException {
+        return NativeMux.setChunks(webp, changes, scope);
+    }
+
+    /** Apply the changes to a file. The output may be the same as the input. */
+    public void rewrite(Path input, Path output) throws IOException {
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            write(NativeMux.rewrite(map(input, scope), changes, scope), output);
+        }
+        LOG.finer("rewrote: " + input + " to: " + output);
+    }
+
+    /** The number of frames, which is 1 for a still image */
+    public static int frameCount(MemorySegment webp) throws IOException {
+        return NativeMux.frameCount(webp);
+    }
+
+    /** Extract one frame of an animation, or the image of a still file, as a still
+     * WebP file. Frame offsets, durations and blending are dropped.
+     * @param index counting from 0
+     * @return the frame, which is freed when the scope is closed */
+    public static MemorySegment extractFrame(MemorySegment webp, int index, ResourceScope scope) throws IOException {
+        try (ResourceScope muxScope = ResourceScope.newConfinedScope()) {
+            final MemorySegment frame = NativeMux.frame(webp, index, muxScope);
+            // the frame is freed as soon as it has been copied
+            final MemorySegment result = NativeMemoryBudget.getInstance().allocateNow(frame.byteSize(), scope);
+            result.copyFrom(frame);
+            return result;
+        }
+    }
+
+    /** Extract one frame of an animation file into a still file */
+    public static void extractFrame(Path input, int index, Path output) throws IOException {
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            write(NativeMux.frame(map(input, scope), index, scope), output);
+        }
+    }
+
+    private static MemorySegment map(Path input, ResourceScope scope) throws IOException {
+        return MemorySegment.mapFile(input, 0, Files.size(input), FileChannel.MapMode.READ_ONLY, scope);
+    }
+
+    /** Write the data through a mapping of a temporary file, then move it into place */
+    private static void write(MemorySegment data, Path output) throws IOException {
+        final Path directory = output.toAbsolutePath().getParent();
+        final Path temp = Files.createTempFile(directory, ".", ".tmp");
+        try {
+            // mapping a size past the end of the file extends it
+            try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+                final MemorySegment mapped = MemorySegment.mapFile(temp, 0, data.byteSize(),
+                        FileChannel.MapMode.READ_WRITE, scope);
+                mapped.copyFrom(data);
+                mapped.force();
+            }
+            Files.move(temp, output, ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch(IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package chiralsoftware.linkerwebp;
+
+import chiralsoftware.linkerwebp.impl.LibWebp;
+import chiralsoftware.linkerwebp.impl.NativeEncoder;
+import java.awt.Rectangle;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Cut a sprite sheet or map atlas into separately encoded WebP images. The sheet
+ * is imported into a native picture once, and each rectangle is encoded from a
+ * libwebp view of it, which shares the sheet's pixels instead of copying them.
+ * With an executor the rectangles are encoded in parallel.
+ * <p>
+ * The sheet is always imported as ARGB, because views of YUV pictures snap to
+ * even coordinates. Lossy encodes convert each view to YUVA in memory of its own.
+ * Unless the settings keep exact colours, libwebp may change the colour of fully
+ * transparent pixels in place, which can't be seen.
+ */
+public final class WebpSlicer {
+
+    private static final Logger LOG = Logger.getLogger(WebpSlicer.class.getName());
+
+    private final EncoderSettings settings;
+
+    public WebpSlicer(EncoderSettings settings) {
+        if(settings == null) throw new NullPointerException("settings can't be null");
+        this.settings = settings;
+    }
+
+    public EncoderSettings getSettings() {
+        return settings;
+    }
+
+    /** Encode rectangles of raw interleaved pixels
+     * @param executor runs the encodes, or null to run them on the calling thread
+     * @return the encoded rectangles, in the order they were given */
+    public List<byte[]> encode(MemorySegment pixels, PixelLayout layout, int width, int height, int stride,
+            List<Rectangle> rectangles, Executor executor) throws IOException {
+        if(pixels.byteSize() < layout.minimumSize(width, height, stride))
+            throw new IllegalArgumentException("the pixels are: " + pixels.byteSize() +
+                    " bytes, which is too small for a " + width + "x" + height + " " + layout + " image");
+        checkRectangles(rectangles, width, height);
+        try (ResourceScope scope = WebpLadder.newScope(executor)) {
+            // the whole sheet is admitted at once, and each rectangle takes its share of it
+            NativeMemoryBudget.getInstance().admit(Picture.Picture.byteSize() +
+                    (pixels.isNative() || pixels.isMapped() ? 0 : pixels.byteSize()) +
+                    LibWebp.pictureBytes(width, height, true) + sheetBytes(rectangles), scope);
+            return encode(NativeEncoder.importPicture(pixels, layout, width, height, stride, true, scope),
+                    rectangles, scope, executor);
+        }
+    }
+
+    /** Encode rectangles of an image with 3 or 4 interleaved byte bands, as the
+     * ImageIO writer accepts. The rectangles are relative to the image's minimum x
+     * and y.
+     * @param executor runs the encodes, or null to run them on the calling thread
+     * @return the encoded rectangles, in the order they were given */
+    public List<byte[]> encode(RenderedImage image, List<Rectangle> rectangles, Executor executor)
+            throws IOException {
+        checkRectangles(rectangles, image.getWidth(), image.getHeight());
+        try (ResourceScope scope = WebpLadder.newScope(executor)) {
+            NativeMemoryBudget.getInstance().admit(NativeEncoder.importBytes(image, true) + sheetBytes(rectangles),
+                    scope);
+            return encode(NativeEncoder.importImage(image, true, scope), rectangles, scope, executor);
+        }
+    }
+
+    /** An estimate of what the config and the encodes of every rectangle need */
+    private long sheetBytes(List<Rectangle> rectangles) {
+        long bytes = Config.Config.byteSize();
+        for(Rectangle r : rectangles) bytes += viewBytes(r, settings.lossless());
+        return bytes;
+    }
+
+    /** A lossy encode converts the view into YUVA planes of its own */
+    private static long viewBytes(Rectangle r, boolean lossless) {
+        return NativeEncoder.STRUCT_BYTES + (lossless ? 0 : LibWebp.pictureBytes(r.width, r.height, false)) +
+                LibWebp.outputBytes(r.width, r.height);
+    }
+
+    private static void checkRectangles(List<Rectangle> rectangles, int width, int height) {
+        final Rectangle bounds = new Rectangle(width, height);
+        for(Rectangle r : rectangles) {
+            if(r.isEmpty() || ! bounds.contains(r))
+                throw new IllegalArgumentException("the rectangle: " + r + " isn't inside the " +
+                        width + "x" + height + " image");
+        }
+    }
+
+    private List<byte[]> encode(Picture sheet, List<Rectangle> rectangles, ResourceScope scope, Executor executor)
+            throws IOException {
+        // WebPEncode only reads the config, so every encode can share one
+        final Config config = NativeEncoder.newConfig(settings, scope);
+        final List<Callable<byte[]>> work = new ArrayList<>(rectangles.size());
+        for(Rectangle r : rectangles) {
+            final Rectangle rectangle = new Rectangle(r);
+            work.add(() -> encodeView(config, sheet, rectangle, scope));
+        }
+        LOG.finer("encoding " + rectangles.size() + " rectangles of a " + sheet.getWidth() + "x" +
+                sheet.getHeight() + " sheet");
+        return WebpLadder.runAll(work, executor);
+    }
+
+    private static byte[] encodeView(Config config, Picture sheet, Rectangle r, ResourceScope parent)
+            throws IOException {
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            final boolean lossless = config.getLossless() == 1;
+            NativeMemoryBudget.getInstance().admitFrom(viewBytes(r, lossless), parent, scope);
+            final Picture view = NativeEncoder.viewPicture(sheet, r.x, r.y, r.width, r.height, scope);
+            if(! lossless)
+                NativeMemoryBudget.getInstance().reserve(LibWebp.pictureBytes(r.width, r.height, false), scope);
+            return NativeEncoder.encode(config, view, scope).toByteArray();
+        }
+    }
+
+}
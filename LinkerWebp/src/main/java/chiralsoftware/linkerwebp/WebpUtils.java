@@ -28,6 +28,8 @@ import static java.awt.color.ColorSpace.TYPE_RGB;
 import static java.awt.color.ColorSpace.TYPE_XYZ;
 import static java.awt.color.ColorSpace.TYPE_YCbCr;
 import static java.awt.color.ColorSpace.TYPE_Yxy;
+import chiralsoftware.linkerwebp.impl.LibWebp;
+import java.io.IOException;
 import java.util.logging.Logger;
 
 /**
@@ -41,6 +43,14 @@ public final class WebpUtils {
         throw new RuntimeException("don't instantiate this");
     }
     
+    /** Load libwebp and link all of its functions now rather than on first use.
+     * Call this before a service reports that it is ready, so the first request
+     * doesn't pay for the linking.
+     * @throws IOException if libwebp can't be found */
+    public static void prewarm() throws IOException {
+        LibWebp.prewarm();
+    }
+    
     public static String colorSpaceType(int i) {
         return switch(i) {
             case CS_CIEXYZ -> "CS_CIEXYZ";
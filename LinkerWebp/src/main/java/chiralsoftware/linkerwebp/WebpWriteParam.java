@@ -0,0 +1,89 @@
+package chiralsoftware.linkerwebp;
+
+import java.time.Instant;
+import java.util.Locale;
+import javax.imageio.ImageWriteParam;
+
+/**
+ * Write parameters for the WebP writer. The encoder settings can be set directly
+ * with {@link #setSettings(EncoderSettings)}, or through the standard ImageIO
+ * compression calls: in MODE_EXPLICIT the compression type selects lossy or
+ * lossless and the compression quality (0 to 1) is scaled to the WebP quality.
+ */
+public final class WebpWriteParam extends ImageWriteParam {
+
+    public static final String LOSSY = "Lossy";
+    public static final String LOSSLESS = "Lossless";
+
+    private EncoderSettings settings = EncoderSettings.DEFAULT;
+    
+    private EncodeCache encodeCache = null;
+    
+    private boolean contentAnalysis = false;
+    
+    private Instant deadline = null;
+
+    public WebpWriteParam(Locale locale) {
+        super(locale);
+        canWriteCompressed = true;
+        compressionTypes = new String[] { LOSSY, LOSSLESS };
+        compressionType = LOSSY;
+        compressionQuality = EncoderSettings.DEFAULT.quality() / 100f;
+    }
+
+    public void setSettings(EncoderSettings settings) {
+        if(settings == null) throw new NullPointerException("settings can't be null");
+        this.settings = settings;
+    }
+
+    /** The settings to encode with, including any explicit compression type and quality */
+    public EncoderSettings getSettings() {
+        if(getCompressionMode() != MODE_EXPLICIT) return settings;
+        return settings.withLossless(LOSSLESS.equals(getCompressionType())).
+                withQuality(getCompressionQuality() * 100f);
+    }
+
+    /** Check this cache before encoding, and store the result in it after encoding.
+     Null (the default) means no caching. */
+    public void setEncodeCache(EncodeCache encodeCache) {
+        this.encodeCache = encodeCache;
+    }
+
+    public EncodeCache getEncodeCache() {
+        return encodeCache;
+    }
+
+    /** Before encoding, make one pass over the pixels with {@link ContentAnalysis} to
+     choose the preset, lossless or lossy, and the image hint, and to drop an alpha
+     channel which is completely opaque. The quality and other settings are kept.
+     Off by default. */
+    public void setContentAnalysis(boolean contentAnalysis) {
+        this.contentAnalysis = contentAnalysis;
+    }
+
+    public boolean isContentAnalysis() {
+        return contentAnalysis;
+    }
+
+    /** Stop the encode if it is still running at this time, for example when the
+     request it is for has timed out. The write then fails with an IIOException.
+     libwebp checks between steps of the encode, so it stops shortly after the
+     deadline rather than exactly at it. Null (the default) means no deadline. */
+    public void setDeadline(Instant deadline) {
+        this.deadline = deadline;
+    }
+
+    public Instant getDeadline() {
+        return deadline;
+    }
+
+    /** Get the settings for any write param, or the defaults if it is null or
+     * doesn't specify anything */
+    public static EncoderSettings settingsOf(ImageWriteParam param) {
+        if(param instanceof WebpWriteParam wwp) return wwp.getSettings();
+        if(param != null && param.canWriteCompressed() && param.getCompressionMode() == MODE_EXPLICIT)
+            return EncoderSettings.DEFAULT.withQuality(param.getCompressionQuality() * 100f);
+        return EncoderSettings.DEFAULT;
+    }
+
+}
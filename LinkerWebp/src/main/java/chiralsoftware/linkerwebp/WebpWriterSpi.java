@@ -1,5 +1,6 @@
 package chiralsoftware.linkerwebp;
 
+import chiralsoftware.linkerwebp.impl.ImportType;
 import chiralsoftware.linkerwebp.impl.WebpImageReader;
 import chiralsoftware.linkerwebp.impl.WebpImageWriter;
 import java.io.IOException;
@@ -29,17 +30,18 @@ public final class WebpWriterSpi extends ImageWriterSpi {
                 null, // extraStreamMetadataFormatNames,
                 null, // extraStreamMetadataFormatClassNames
                 false, // supportStandardImageMetadataFormat
-                null, // nativeImageMeatadataFormatName
+                WebpMetadata.nativeMetadataFormatName, // nativeImageMeatadataFormatName
                 null, // nativeImageMetadataFormatClassName
                 null, // extraImageMetadataFormatNames,
                 null // extraIamgeMetadataFormatClassNames
                 );
     }
 
+    /** True for the layouts the writer imports: 3 or 4 interleaved RGB byte bands,
+     * in RGB, BGR or ABGR order, with straight alpha */
     @Override
     public boolean canEncodeImage(ImageTypeSpecifier type) {
-        final int bands = type.getNumBands();
-        return bands == 3 || bands == 4; // we do rgb or rgba
+        return ImportType.of(type.getColorModel(), type.getSampleModel()) != null;
     }
 
     @Override
@@ -47,6 +49,16 @@ public final class WebpWriterSpi extends ImageWriterSpi {
         return new WebpImageWriter(this);
     }
 
+    /** Ready writers */
+    private final InstancePool<ImageWriter> pool = new InstancePool<>(InstancePool.defaultSize(),
+            () -> new WebpImageWriter(this), ImageWriter::reset, ImageWriter::dispose);
+
+    /** A pool of writers, as an alternative to createWriterInstance() for callers
+     which write many images. Writers are reset when they are returned. */
+    public InstancePool<ImageWriter> getPool() {
+        return pool;
+    }
+
     @Override
     public String getDescription(Locale locale) {
         return "Chiral Software Webp Image Writer";
@@ -0,0 +1,129 @@
+package chiralsoftware.linkerwebp;
+
+import chiralsoftware.linkerwebp.impl.LibWebp;
+import chiralsoftware.linkerwebp.impl.NativeDecoder;
+import chiralsoftware.linkerwebp.impl.NativeEncoder;
+import java.io.IOException;
+import java.util.logging.Logger;
+import javax.imageio.IIOException;
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Encode from and decode to 4:2:0 planar YUV, which is libwebp's native format for
+ * lossy images. Frames which already are YUV (for example from a video pipeline)
+ * go straight into the picture with use_argb=0, so there is no conversion to RGB
+ * and back.
+ * <p>
+ * Note that unless the config's exact flag is set, libwebp may modify the Y, U and
+ * V samples under fully transparent areas of an image with alpha, to improve
+ * compression. Lossless encoding of YUV input converts it to ARGB first.
+ * <p>
+ * libwebp reads and writes the planes where they are, so they must be native or
+ * mapped segments. The WebP input may be a heap segment; it is copied to native
+ * memory first.
+ */
+public final class WebpYuv {
+
+    private static final Logger LOG = Logger.getLogger(WebpYuv.class.getName());
+
+    private WebpYuv() {
+        throw new RuntimeException("don't instantiate this");
+    }
+
+    /** Encode the planes directly. The picture points at the caller's memory; nothing
+     * is copied before the encode.
+     * @return the encoded WebP file, which is freed when the scope is closed */
+    public static MemorySegment encode(Yuv420Image image, EncoderSettings settings, ResourceScope scope) 
+            throws IOException {
+        checkPlanes(image);
+        final NativeMemoryBudget budget = NativeMemoryBudget.getInstance();
+        try (ResourceScope encodeScope = ResourceScope.newConfinedScope()) {
+            // the planes are the caller's, so the encode only needs its structs and output
+            budget.admit(NativeEncoder.STRUCT_BYTES + LibWebp.outputBytes(image.width(), image.height()), encodeScope);
+            final Config config = NativeEncoder.newConfig(settings, encodeScope);
+            final Picture picture = NativeEncoder.newPicture(image.width(), image.height(), encodeScope);
+            picture.setUseArgb(0);
+            picture.setColorspace(image.hasAlpha() ? Picture.WEBP_YUV420A : Picture.WEBP_YUV420);
+            picture.setY(image.y().address());
+            picture.setU(image.u().address());
+            picture.setV(image.v().address());
+            picture.setYStride(image.yStride());
+            picture.setUvStride(image.uvStride());
+            if(image.hasAlpha()) {
+                picture.setA(image.a().address());
+                picture.setAStride(image.aStride());
+            }
+            final MemorySegment encoded = NativeEncoder.encode(config, picture, encodeScope);
+            // copy the result out of libwebp's buffer into memory owned by the caller's scope
+            final MemorySegment result = budget.allocateNow(encoded.byteSize(), scope);
+            result.copyFrom(encoded);
+            return result;
+        }
+    }
+
+    /** Encode the planes and return the WebP file as a byte array */
+    public static byte[] encode(Yuv420Image image, EncoderSettings settings) throws IOException {
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            return encode(image, settings, scope).toByteArray();
+        }
+    }
+
+    /** Decode a WebP file into newly allocated planes. Alpha is not decoded. */
+    public static Yuv420Image decode(MemorySegment webp, ResourceScope scope) throws IOException {
+        try (ResourceScope inputScope = ResourceScope.newConfinedScope()) {
+            final MemorySegment input = NativeMemoryBudget.getInstance().toNative(webp, inputScope);
+            final int[] size = NativeDecoder.getInfo(input);
+            final Yuv420Image image = Yuv420Image.allocate(size[0], size[1], false, scope);
+            decodeNative(input, image);
+            return image;
+        }
+    }
+
+    /** Decode a WebP file into the caller's planes, which must match the image size.
+     * WebPDecodeYUVInto doesn't decode alpha, so the alpha plane, if any, is left alone. */
+    public static void decodeInto(MemorySegment webp, Yuv420Image destination) throws IOException {
+        checkPlanes(destination);
+        try (ResourceScope inputScope = ResourceScope.newConfinedScope()) {
+            decodeNative(NativeMemoryBudget.getInstance().toNative(webp, inputScope), destination);
+        }
+    }
+
+    /** The planes are passed to libwebp by address, so heap segments can't be used */
+    private static void checkPlanes(Yuv420Image image) {
+        checkPlane("Y", image.y());
+        checkPlane("U", image.u());
+        checkPlane("V", image.v());
+        if(image.hasAlpha()) checkPlane("A", image.a());
+    }
+
+    private static void checkPlane(String name, MemorySegment plane) {
+        if(! plane.isNative() && ! plane.isMapped())
+            throw new IllegalArgumentException("the " + name + " plane must be a native or mapped segment; " +
+                    "libwebp can't use a heap segment");
+    }
+
+    private static void decodeNative(MemorySegment webp, Yuv420Image destination) throws IOException {
+        final int[] size = NativeDecoder.getInfo(webp);
+        if(size[0] != destination.width() || size[1] != destination.height())
+            throw new IllegalArgumentException("the image is: " + size[0] + "x" + size[1] + 
+                    " but the destination is: " + destination.width() + "x" + destination.height());
+        final MemoryAddress result;
+        try {
+            result = (MemoryAddress) LibWebp.getInstance().DecodeYUVInto.get().invoke(
+                    webp.address(), webp.byteSize(),
+                    destination.y().address(), destination.y().byteSize(), destination.yStride(),
+                    destination.u().address(), destination.u().byteSize(), destination.uvStride(),
+                    destination.v().address(), destination.v().byteSize(), destination.uvStride());
+        } catch(IOException ioe) {
+            throw ioe;
+        } catch(Throwable t) {
+            throw new IIOException("decoding failed", t);
+        }
+        if(result.equals(MemoryAddress.NULL))
+            throw new IIOException("libwebp couldn't decode the input");
+        LOG.finer("decoded a " + size[0] + "x" + size[1] + " image to YUV");
+    }
+
+}
@@ -0,0 +1,65 @@
+package chiralsoftware.linkerwebp;
+
+import java.io.IOException;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * A 4:2:0 planar YUV image (Y'CbCr, as libwebp uses it) in native memory, with an
+ * optional alpha plane. The U and V planes are half the width and height of the
+ * image, rounded up. Strides are in bytes.
+ *
+ * @param a the alpha plane, or null if there is no alpha
+ */
+public record Yuv420Image(int width, int height,
+        MemorySegment y, int yStride,
+        MemorySegment u, MemorySegment v, int uvStride,
+        MemorySegment a, int aStride) {
+
+    public Yuv420Image {
+        if(width <= 0 || height <= 0)
+            throw new IllegalArgumentException("invalid size: " + width + "x" + height);
+        if(y == null || u == null || v == null) throw new NullPointerException("the Y, U and V planes are required");
+        if(yStride < width) throw new IllegalArgumentException("yStride: " + yStride + " is less than width: " + width);
+        if(uvStride < uvWidth(width))
+            throw new IllegalArgumentException("uvStride: " + uvStride + " is less than: " + uvWidth(width));
+        checkPlane("Y", y, yStride, width, height);
+        checkPlane("U", u, uvStride, uvWidth(width), uvHeight(height));
+        checkPlane("V", v, uvStride, uvWidth(width), uvHeight(height));
+        if(a != null) {
+            if(aStride < width) throw new IllegalArgumentException("aStride: " + aStride + " is less than width: " + width);
+            checkPlane("A", a, aStride, width, height);
+        }
+    }
+
+    private static void checkPlane(String name, MemorySegment plane, int stride, int w, int h) {
+        final long needed = (long) stride * (h - 1) + w;
+        if(plane.byteSize() < needed)
+            throw new IllegalArgumentException("the " + name + " plane is: " + plane.byteSize() + 
+                    " bytes, but it must be at least: " + needed);
+    }
+
+    public static int uvWidth(int width) {
+        return (width + 1) / 2;
+    }
+
+    public static int uvHeight(int height) {
+        return (height + 1) / 2;
+    }
+
+    public boolean hasAlpha() {
+        return a != null;
+    }
+
+    /** Allocate tightly packed planes, reserved against the {@link NativeMemoryBudget} */
+    public static Yuv420Image allocate(int width, int height, boolean alpha, ResourceScope scope) throws IOException {
+        final NativeMemoryBudget budget = NativeMemoryBudget.getInstance();
+        final int uvStride = uvWidth(width);
+        final long uvSize = (long) uvStride * uvHeight(height);
+        return new Yuv420Image(width, height,
+                budget.allocate((long) width * height, scope), width,
+                budget.allocate(uvSize, scope), budget.allocate(uvSize, scope), uvStride,
+                alpha ? budget.allocate((long) width * height, scope) : null, alpha ? width : 0);
+    }
+
+}
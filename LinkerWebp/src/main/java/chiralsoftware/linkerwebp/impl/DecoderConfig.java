@@ -0,0 +1,114 @@
+package chiralsoftware.linkerwebp.impl;
+
+import static jdk.incubator.foreign.CLinker.C_INT;
+import static jdk.incubator.foreign.CLinker.C_LONG;
+import static jdk.incubator.foreign.CLinker.C_POINTER;
+import jdk.incubator.foreign.GroupLayout;
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemoryLayout.PathElement;
+import static jdk.incubator.foreign.MemoryLayout.PathElement.groupElement;
+import static jdk.incubator.foreign.MemoryLayout.paddingLayout;
+import static jdk.incubator.foreign.MemoryLayout.sequenceLayout;
+import static jdk.incubator.foreign.MemoryLayout.structLayout;
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * Represent the WebPDecoderConfig struct of the advanced decoding API: the
+ * bitstream features, the output buffer and the decoding options. Only the RGBA
+ * member of the output buffer's union is mapped; the union is padded to the size
+ * of its larger YUVA member.
+ */
+public final class DecoderConfig {
+
+    /** Match struct WebPDecoderConfig */
+    public static final GroupLayout DecoderConfig = structLayout(
+            structLayout(
+                    C_INT.withName("width"),
+                    C_INT.withName("height"),
+                    C_INT.withName("has_alpha"),
+                    C_INT.withName("has_animation"),
+                    C_INT.withName("format"),
+                    sequenceLayout(5, C_INT).withName("pad")
+            ).withName("input"),
+            structLayout(
+                    C_INT.withName("colorspace"),
+                    C_INT.withName("width"),
+                    C_INT.withName("height"),
+                    C_INT.withName("is_external_memory"),
+                    structLayout(
+                            C_POINTER.withName("rgba"),
+                            C_INT.withName("stride"),
+                            paddingLayout(32),
+                            C_LONG.withName("size"),
+                            // WebPYUVABuffer is 80 bytes
+                            paddingLayout(56 * 8)
+                    ).withName("RGBA"),
+                    sequenceLayout(4, C_INT).withName("pad"),
+                    C_POINTER.withName("private_memory")
+            ).withName("output"),
+            structLayout(
+                    C_INT.withName("bypass_filtering"),
+                    C_INT.withName("no_fancy_upsampling"),
+                    C_INT.withName("use_cropping"),
+                    C_INT.withName("crop_left"),
+                    C_INT.withName("crop_top"),
+                    C_INT.withName("crop_width"),
+                    C_INT.withName("crop_height"),
+                    C_INT.withName("use_scaling"),
+                    C_INT.withName("scaled_width"),
+                    C_INT.withName("scaled_height"),
+                    C_INT.withName("use_threads"),
+                    C_INT.withName("dithering_strength"),
+                    C_INT.withName("flip"),
+                    C_INT.withName("alpha_dithering_strength"),
+                    sequenceLayout(5, C_INT).withName("pad")
+            ).withName("options"),
+            paddingLayout(32)
+    ).withBitAlignment(64);
+
+    public DecoderConfig(MemorySegment segment) {
+        if(segment == null) throw new NullPointerException("segment can't be null");
+        if(segment.byteSize() != DecoderConfig.byteSize())
+            throw new IllegalArgumentException("segment size was: " + segment.byteSize() +
+                    ", should have been: " + DecoderConfig.byteSize());
+        this.segment = segment;
+    }
+
+    private final MemorySegment segment;
+
+    public MemorySegment segment() {
+        return segment;
+    }
+
+    /** The address of the output WebPDecBuffer, for WebPFreeDecBuffer() */
+    public MemoryAddress output() {
+        return segment.address().addOffset(DecoderConfig.byteOffset(groupElement("output")));
+    }
+
+    private void setInt(int i, PathElement... path) {
+        DecoderConfig.varHandle(int.class, path).set(segment, i);
+    }
+
+    public void setOutputColorspace(int i) {
+        setInt(i, groupElement("output"), groupElement("colorspace"));
+    }
+
+    public void setOutputIsExternalMemory(int i) {
+        setInt(i, groupElement("output"), groupElement("is_external_memory"));
+    }
+
+    public void setOutputRgba(MemoryAddress m) {
+        DecoderConfig.varHandle(MemoryAddress.class, groupElement("output"), groupElement("RGBA"),
+                groupElement("rgba")).set(segment, m);
+    }
+
+    public void setOutputStride(int i) {
+        setInt(i, groupElement("output"), groupElement("RGBA"), groupElement("stride"));
+    }
+
+    public void setOutputSize(long l) {
+        DecoderConfig.varHandle(long.class, groupElement("output"), groupElement("RGBA"),
+                groupElement("size")).set(segment, l);
+    }
+
+}
@@ -1,31 +1,57 @@
 package chiralsoftware.linkerwebp.impl;
 
+import static java.awt.color.ColorSpace.TYPE_RGB;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
 import java.util.Arrays;
 
 /**
- *
+ * The byte order of an interleaved image's pixels, from the sample model's band
+ * offsets and whether the color model has alpha. The X types have a byte which
+ * is ignored; they are also used for images with alpha which turn out to be
+ * completely opaque.
  */
 public enum ImportType {
-    
-    RGB(new int[] { 0,1,2 }, false), 
-    RGBX(new int[] { 0,1,2,3 }, false), 
+
+    RGB(new int[] { 0,1,2 }, false),
+    RGBX(new int[] { 0,1,2,3 }, false),
     RGBA(new int[] { 0,1,2,3 }, true),
-    BGR(new int[] { 2,1,0 }, false), 
-    BGRX(new int[] { 3,2,1,0 }, false), 
-    ABGR(new int[] { 3,2,1,0 }, false);
+    BGR(new int[] { 2,1,0 }, false),
+    BGRX(new int[] { 2,1,0,3 }, false),
+    BGRA(new int[] { 2,1,0,3 }, true),
+    XBGR(new int[] { 3,2,1,0 }, false),
+    ABGR(new int[] { 3,2,1,0 }, true);
 
     private ImportType(int[] bandOffsets, boolean alpha) {
         this.bandOffsets = bandOffsets;
         this.alpha = alpha;
     }
-    
+
     private final int[] bandOffsets;
     private final boolean alpha;
-    
+
     private boolean offsetMatch(int[] offsets) {
         return Arrays.equals(offsets, bandOffsets);
     }
-    
+
+    /** The byte offset of alpha within a pixel, or -1 */
+    public int alphaOffset() {
+        return alpha ? bandOffsets[3] : -1;
+    }
+
+    /** The same byte order with the alpha byte ignored */
+    public ImportType opaque() {
+        return switch(this) {
+            case RGBA -> RGBX;
+            case BGRA -> BGRX;
+            case ABGR -> XBGR;
+            default -> this;
+        };
+    }
+
     /** Return which type of image format is used, or return null if none match */
     public static ImportType findType(int[] offsets, boolean alpha) {
         for(ImportType it : ImportType.values()) {
@@ -33,4 +59,16 @@ public enum ImportType {
         }
         return null;
     }
+
+    /** The type of an image with these models, or null if the writer can't import it */
+    public static ImportType of(ColorModel colorModel, SampleModel sampleModel) {
+        if(! (colorModel instanceof ComponentColorModel) ||
+                colorModel.getColorSpace().getType() != TYPE_RGB ||
+                colorModel.isAlphaPremultiplied()) return null;
+        if(! (sampleModel instanceof ComponentSampleModel csm) ||
+                csm.getDataType() != DataBuffer.TYPE_BYTE) return null;
+        final int bands = csm.getNumBands();
+        if(bands < 3 || bands > 4 || (colorModel.hasAlpha() && bands != 4)) return null;
+        return findType(csm.getBandOffsets(), colorModel.hasAlpha());
+    }
 }
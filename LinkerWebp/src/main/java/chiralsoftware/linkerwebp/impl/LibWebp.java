@@ -1,13 +1,19 @@
 package chiralsoftware.linkerwebp.impl;
 
+import chiralsoftware.linkerwebp.Preset;
 import java.io.IOException;
 import java.lang.invoke.MethodHandle;
 import static java.lang.invoke.MethodHandles.insertArguments;
 import java.lang.invoke.MethodType;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Optional;
-import static java.util.logging.Level.WARNING;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 import jdk.incubator.foreign.CLinker;
 import static jdk.incubator.foreign.CLinker.C_FLOAT;
 import static jdk.incubator.foreign.CLinker.C_INT;
@@ -24,61 +30,223 @@ import jdk.incubator.foreign.MemoryAddress;
  * for a good reference on that.
  * To run, this will require:
  * --enable-native-access=ALL-UNNAMED --add-modules jdk.incubator.foreign
+ * <p>
+ * Nothing is loaded or linked when this class is initialized. Each library is
+ * loaded, and each downcall handle is linked, the first time it is used. The
+ * library location can be set with a system property, for example
+ * <code>-Dchiralsoftware.linkerwebp.libwebp=/opt/lib/libwebp.so</code>. Otherwise
+ * it is found on <code>java.library.path</code> with System.loadLibrary(), and
+ * finally in the usual system library directories. The optional libraries
+ * (libwebpmux, libwebpdemux, libsharpyuv) are found the same way. Services which
+ * want all the linking done before they report ready can call {@link #prewarm()}.
  */
 public final class LibWebp {
 
     private static final Logger LOG = Logger.getLogger(LibWebp.class.getName());
 
-    private static final String libraryPath = "/usr/lib/x86_64-linux-gnu/libwebp.so";
-    private static final String libraryName = "webp";
+    /** System properties which give the path to each library are this prefix
+     followed by the library file name, for example chiralsoftware.linkerwebp.libwebpmux */
+    public static final String LIBRARY_PROPERTY_PREFIX = "chiralsoftware.linkerwebp.lib";
+
+    /** Searched after the property and java.library.path */
+    private static final List<String> libraryDirectories = List.of(
+            "/usr/lib/x86_64-linux-gnu", "/usr/lib/aarch64-linux-gnu",
+            "/usr/lib64", "/usr/lib", "/usr/local/lib", "/opt/homebrew/lib");
 
     private final SymbolLookup symbolLookup;
+    
+    private final CLinker cLinker;
 
-    private static final LibWebp libWebp;
+    /** Every handle, so they can all be linked by prewarm() */
+    private final List<LazyHandle> handles = new ArrayList<>();
+
+    private static final LibWebp libWebp = new LibWebp();
 
     /**
      * Unfortunately this has to be hard-coded
      */
     public static final int WEBP_ENCODER_ABI_VERSION = 0x020e;
 
-    static {
-        try {
-            System.load(libraryPath);
-//            System.loadLibrary(libraryName);
-            libWebp = new LibWebp();
-        } catch (IOException ioe) {
-            LOG.log(WARNING, "couldn't load libwebp", ioe);
-            throw new RuntimeException(ioe);
+    /** From mux.h. Only the major version (the high byte) has to match the library. */
+    public static final int WEBP_MUX_ABI_VERSION = 0x0108;
+
+    /** From demux.h */
+    public static final int WEBP_DEMUX_ABI_VERSION = 0x0107;
+
+    /** From decode.h */
+    public static final int WEBP_DECODER_ABI_VERSION = 0x0209;
+
+    public static LibWebp getInstance() {
+        return libWebp;
+    }
+
+    /** Load libwebp and link all the downcall handles now, instead of on first use.
+     * The optional libraries are linked if they can be found.
+     * @throws IOException if libwebp itself can't be loaded or a symbol is missing */
+    public static void prewarm() throws IOException {
+        final long start = System.nanoTime();
+        for(LazyHandle handle : libWebp.handles) {
+            if(handle.library.required || handle.library.isAvailable()) handle.get();
         }
+        LOG.fine("linked libwebp in: " + (System.nanoTime() - start) / 1000 + " microseconds");
     }
 
-    static LibWebp getInstance() {
-        return libWebp;
+    /** The native libraries this class uses. Only libwebp is required. */
+    public static enum Library {
+        WEBP("webp", true),
+        MUX("webpmux", false),
+        DEMUX("webpdemux", false),
+        SHARPYUV("sharpyuv", false);
+
+        private Library(String name, boolean required) {
+            this.name = name;
+            this.required = required;
+        }
+
+        private final String name;
+        private final boolean required;
+        /** null if no attempt has been made to load it yet */
+        private Boolean loaded = null;
+        private String failure = null;
+
+        /** Load the library if it hasn't been loaded yet
+         @throws IOException if it can't be found */
+        public synchronized void load() throws IOException {
+            if(loaded == null) {
+                try {
+                    failure = tryLoad();
+                } catch(RuntimeException | UnsatisfiedLinkError e) {
+                    failure = e.toString();
+                }
+                loaded = failure == null;
+            }
+            if(! loaded) throw new IOException("couldn't load lib" + name + ": " + failure);
+        }
+
+        /** Try to load the library and report whether it is available */
+        public boolean isAvailable() {
+            try {
+                load();
+                return true;
+            } catch(IOException ioe) {
+                LOG.fine(ioe.getMessage());
+                return false;
+            }
+        }
+
+        /** @return null on success, otherwise a description of what was tried */
+        private String tryLoad() {
+            final String property = System.getProperty(LIBRARY_PROPERTY_PREFIX + name);
+            if(property != null) {
+                System.load(property);
+                LOG.fine("loaded lib" + name + " from: " + property);
+                return null;
+            }
+            try {
+                System.loadLibrary(name);
+                LOG.fine("loaded lib" + name + " from java.library.path");
+                return null;
+            } catch(UnsatisfiedLinkError ule) {
+                LOG.finer("lib" + name + " isn't on java.library.path: " + ule.getMessage());
+            }
+            // distributions often only ship the versioned name, like libwebp.so.7,
+            // unless the development package is installed
+            final String fileName = System.mapLibraryName(name);
+            for(String directory : libraryDirectories) {
+                final Path found = findLibrary(Path.of(directory), fileName);
+                if(found != null) {
+                    System.load(found.toString());
+                    LOG.fine("loaded lib" + name + " from: " + found);
+                    return null;
+                }
+            }
+            return "not found using property " + LIBRARY_PROPERTY_PREFIX + name + 
+                    ", java.library.path or in: " + libraryDirectories;
+        }
+    }
+
+    private static Path findLibrary(Path directory, String fileName) {
+        if(! Files.isDirectory(directory)) return null;
+        final Path exact = directory.resolve(fileName);
+        if(Files.isReadable(exact)) return exact;
+        try (Stream<Path> stream = Files.list(directory)) {
+            return stream.filter(p -> p.getFileName().toString().startsWith(fileName + ".")).
+                    max(Comparator.comparing(p -> version(p.getFileName().toString().substring(fileName.length() + 1)),
+                            LibWebp::compareVersions)).orElse(null);
+        } catch(IOException ioe) {
+            LOG.finer("couldn't list: " + directory);
+            return null;
+        }
+    }
+
+    /** The numeric parts of a version suffix like 7.1.8; parts which aren't numbers
+     * count as 0 */
+    private static int[] version(String suffix) {
+        return Arrays.stream(suffix.split("\\.")).mapToInt(part -> {
+            try {
+                return Integer.parseInt(part);
+            } catch(NumberFormatException nfe) {
+                return 0;
+            }
+        }).toArray();
+    }
+
+    /** Compare versions part by part, so 10 is newer than 7 */
+    private static int compareVersions(int[] a, int[] b) {
+        for(int i = 0; i < Math.max(a.length, b.length); i++) {
+            final int result = Integer.compare(i < a.length ? a[i] : 0, i < b.length ? b[i] : 0);
+            if(result != 0) return result;
+        }
+        return 0;
     }
 
-    public static enum ImageHint {
-        DEFAULT, // default preset
-        PICTURE, // digital picture, like portrait, inner shot
-        PHOTO, // outdoor photograph, with natural lighting
-        GRAPH // Discrete tone image (graph, map-tile etc).
+    /** Create a MethodHandle when it is first needed */
+    @FunctionalInterface
+    private static interface HandleFactory {
+        MethodHandle create() throws IOException;
     }
 
-    public static enum Preset {
-        DEFAULT("default preset"),
-        PICTURE("digital picture, like portrait, inner shot"),
-        PHOTO("outdoor photograph, with natural lighting"),
-        DRAWING("hand or line drawing, with high-contrast details"),
-        ICON("small-sized colorful images"),
-        TEXT("text-like");
+    /** A MethodHandle which is linked the first time it is used. Call {@link #get()}
+     and then invoke the result. */
+    public static final class LazyHandle {
 
-        private Preset(String s) {
-            this.description = s;
+        private LazyHandle(Library library, String name, HandleFactory factory) {
+            this.library = library;
+            this.name = name;
+            this.factory = factory;
         }
 
-        public String description() {
-            return description;
+        private final Library library;
+        private final String name;
+        private final HandleFactory factory;
+        private volatile MethodHandle handle = null;
+
+        /** @return the linked handle
+         @throws IOException if the library or the symbol can't be found */
+        public MethodHandle get() throws IOException {
+            MethodHandle result = handle;
+            if(result == null) {
+                synchronized(this) {
+                    result = handle;
+                    if(result == null) {
+                        library.load();
+                        result = factory.create();
+                        handle = result;
+                    }
+                }
+            }
+            return result;
+        }
+
+        /** True if the library containing this function can be loaded */
+        public boolean isAvailable() {
+            return library.isAvailable();
+        }
+
+        @Override
+        public String toString() {
+            return "LazyHandle{" + "library=" + library + ", name=" + name + ", linked=" + (handle != null) + '}';
         }
-        private final String description;
     }
 
     public static enum EncodingError {
@@ -107,23 +275,18 @@ public final class LibWebp {
         }
     }
 
-    private LibWebp() throws IOException {
-
-        LOG.info("Initializing the linker!");
-        final Path path = Path.of(libraryPath);
+    private LibWebp() {
 
         symbolLookup = SymbolLookup.loaderLookup();
 
-        final CLinker cLinker = CLinker.getInstance();
+        cLinker = CLinker.getInstance();
 
         // int WebPGetInfo(const uint8_t* data, size_t data_size, int* width, int* height);
-        GetInfo = loadMethodHandle(cLinker, symbolLookup, "WebPGetInfo",
+        GetInfo = downcall(Library.WEBP, "WebPGetInfo",
                 MethodType.methodType(int.class, MemoryAddress.class, long.class, MemoryAddress.class, MemoryAddress.class),
                 FunctionDescriptor.of(CLinker.C_INT, C_POINTER, C_LONG, C_POINTER, C_POINTER));
 
-        LOG.info("Cool, here is GetInfo: " + GetInfo);
-
-        DecodeARGBInto = loadMethodHandle(cLinker, symbolLookup, "WebPDecodeARGBInto",
+        DecodeARGBInto = downcall(Library.WEBP, "WebPDecodeARGBInto",
                 MethodType.methodType(MemoryAddress.class, // returns - pointer to output buffer
                         MemoryAddress.class, long.class, // input data and size 
                         MemoryAddress.class, long.class, // output buffer and size
@@ -135,8 +298,34 @@ public final class LibWebp {
                         C_INT)
         );
 
+        // the other interleaved decoders have the same signature as WebPDecodeARGBInto
+        final MethodType decodeIntoType = MethodType.methodType(MemoryAddress.class,
+                MemoryAddress.class, long.class, MemoryAddress.class, long.class, int.class);
+        final FunctionDescriptor decodeIntoDescriptor = FunctionDescriptor.of(C_POINTER,
+                C_POINTER, C_LONG, C_POINTER, C_LONG, C_INT);
+        DecodeRGBAInto = downcall(Library.WEBP, "WebPDecodeRGBAInto", decodeIntoType, decodeIntoDescriptor);
+        DecodeBGRAInto = downcall(Library.WEBP, "WebPDecodeBGRAInto", decodeIntoType, decodeIntoDescriptor);
+        DecodeRGBInto = downcall(Library.WEBP, "WebPDecodeRGBInto", decodeIntoType, decodeIntoDescriptor);
+        DecodeBGRInto = downcall(Library.WEBP, "WebPDecodeBGRInto", decodeIntoType, decodeIntoDescriptor);
+
+        // uint8_t* WebPDecodeYUVInto(const uint8_t* data, size_t data_size,
+        //     uint8_t* luma, size_t luma_size, int luma_stride,
+        //     uint8_t* u, size_t u_size, int u_stride,
+        //     uint8_t* v, size_t v_size, int v_stride);
+        DecodeYUVInto = downcall(Library.WEBP, "WebPDecodeYUVInto",
+                MethodType.methodType(MemoryAddress.class,
+                        MemoryAddress.class, long.class,
+                        MemoryAddress.class, long.class, int.class,
+                        MemoryAddress.class, long.class, int.class,
+                        MemoryAddress.class, long.class, int.class),
+                FunctionDescriptor.of(C_POINTER,
+                        C_POINTER, C_LONG,
+                        C_POINTER, C_LONG, C_INT,
+                        C_POINTER, C_LONG, C_INT,
+                        C_POINTER, C_LONG, C_INT));
+
         // size_t WebPEncodeLosslessRGB(const uint8_t* rgb, int width, int height, int stride, uint8_t** output);
-        EncodeLosslessRGB = loadMethodHandle(cLinker, symbolLookup, "WebPEncodeLosslessRGB",
+        EncodeLosslessRGB = downcall(Library.WEBP, "WebPEncodeLosslessRGB",
                 MethodType.methodType(long.class, // returns - size_t
                         MemoryAddress.class, // buffer with source bytes
                         int.class, int.class, // width and height
@@ -145,7 +334,27 @@ public final class LibWebp {
                 ),
                 FunctionDescriptor.of(C_LONG, C_POINTER, C_INT, C_INT, C_INT, C_POINTER)
         );
-        Free = loadMethodHandle(cLinker, symbolLookup, "WebPFree",
+        // size_t WebPEncodeRGB(const uint8_t* rgb, int width, int height, int stride,
+        //     float quality_factor, uint8_t** output);
+        final MethodType encodeType = MethodType.methodType(long.class,
+                MemoryAddress.class, int.class, int.class, int.class, float.class, MemoryAddress.class);
+        final FunctionDescriptor encodeDescriptor = FunctionDescriptor.of(C_LONG,
+                C_POINTER, C_INT, C_INT, C_INT, C_FLOAT, C_POINTER);
+        EncodeRGB = downcall(Library.WEBP, "WebPEncodeRGB", encodeType, encodeDescriptor);
+        EncodeRGBA = downcall(Library.WEBP, "WebPEncodeRGBA", encodeType, encodeDescriptor);
+        EncodeBGR = downcall(Library.WEBP, "WebPEncodeBGR", encodeType, encodeDescriptor);
+        EncodeBGRA = downcall(Library.WEBP, "WebPEncodeBGRA", encodeType, encodeDescriptor);
+        final MethodType encodeLosslessType = MethodType.methodType(long.class,
+                MemoryAddress.class, int.class, int.class, int.class, MemoryAddress.class);
+        final FunctionDescriptor encodeLosslessDescriptor = FunctionDescriptor.of(C_LONG,
+                C_POINTER, C_INT, C_INT, C_INT, C_POINTER);
+        EncodeLosslessRGBA = downcall(Library.WEBP, "WebPEncodeLosslessRGBA", encodeLosslessType, 
+                encodeLosslessDescriptor);
+        EncodeLosslessBGR = downcall(Library.WEBP, "WebPEncodeLosslessBGR", encodeLosslessType, 
+                encodeLosslessDescriptor);
+        EncodeLosslessBGRA = downcall(Library.WEBP, "WebPEncodeLosslessBGRA", encodeLosslessType, 
+                encodeLosslessDescriptor);
+        Free = downcall(Library.WEBP, "WebPFree",
                 MethodType.methodType(void.class, // returns void
                         MemoryAddress.class // pointer to be freed
                 ),
@@ -154,7 +363,7 @@ public final class LibWebp {
         // annoyingly, the WebPConfigPreset function we would like to access
         // is defined as an inline
         // int WebPConfigInitInternal(WebPConfig*, WebPPreset, float, int);
-        ConfigInitInternal = loadMethodHandle(cLinker, symbolLookup, "WebPConfigInitInternal",
+        ConfigInitInternal = downcall(Library.WEBP, "WebPConfigInitInternal",
                 MethodType.methodType(int.class, // returns false in case of error 
                         MemoryAddress.class, // WebPConfig *
                         int.class, // WebPPreset preset - the enum
@@ -163,93 +372,273 @@ public final class LibWebp {
                 ),
                 FunctionDescriptor.of(C_INT, C_POINTER, C_INT, C_FLOAT, C_INT));
 
-        PictureInitInternal = loadMethodHandle(cLinker, symbolLookup, "WebPPictureInitInternal",
+        // int WebPValidateConfig(const WebPConfig* config);
+        ValidateConfig = downcall(Library.WEBP, "WebPValidateConfig",
+                MethodType.methodType(int.class, MemoryAddress.class),
+                FunctionDescriptor.of(C_INT, C_POINTER));
+
+        PictureInitInternal = downcall(Library.WEBP, "WebPPictureInitInternal",
                 MethodType.methodType(int.class, MemoryAddress.class, // Picture 
                         int.class // WEBP_ENCODER_ABI_VERSION
                 ), FunctionDescriptor.of(C_INT, C_POINTER, C_INT));
 
-        PictureInit = insertArguments(PictureInitInternal, 1, WEBP_ENCODER_ABI_VERSION);
+        PictureInit = derived(PictureInitInternal, "WebPPictureInit", 
+                () -> insertArguments(PictureInitInternal.get(), 1, WEBP_ENCODER_ABI_VERSION));
 
-        ConfigPreset = insertArguments(ConfigInitInternal, 3, WEBP_ENCODER_ABI_VERSION);
+        ConfigPreset = derived(ConfigInitInternal, "WebPConfigPreset",
+                () -> insertArguments(ConfigInitInternal.get(), 3, WEBP_ENCODER_ABI_VERSION));
 
         // this is kinda miraculous if this works
-        ConfigInit = insertArguments(ConfigInitInternal, 1,
-                Preset.DEFAULT.ordinal(), 75f, WEBP_ENCODER_ABI_VERSION);
+        ConfigInit = derived(ConfigInitInternal, "WebPConfigInit",
+                () -> insertArguments(ConfigInitInternal.get(), 1,
+                        Preset.DEFAULT.ordinal(), 75f, WEBP_ENCODER_ABI_VERSION));
         
 //        int WebPPictureAlloc(WebPPicture* picture)
-        PictureAlloc = loadMethodHandle(cLinker, symbolLookup, "WebPPictureAlloc",
+        PictureAlloc = downcall(Library.WEBP, "WebPPictureAlloc",
                 MethodType.methodType(int.class, MemoryAddress.class),
                 FunctionDescriptor.of(C_INT, C_POINTER));
+
+//        void WebPPictureFree(WebPPicture* picture)
+        PictureFree = downcall(Library.WEBP, "WebPPictureFree",
+                MethodType.methodType(void.class, MemoryAddress.class),
+                FunctionDescriptor.ofVoid(C_POINTER));
+
+//        int WebPPictureCopy(const WebPPicture* src, WebPPicture* dst)
+        PictureCopy = downcall(Library.WEBP, "WebPPictureCopy",
+                MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class),
+                FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER));
+
+//        int WebPPictureView(const WebPPicture* src, int left, int top, int width, int height, WebPPicture* dst)
+        PictureView = downcall(Library.WEBP, "WebPPictureView",
+                MethodType.methodType(int.class, MemoryAddress.class, int.class, int.class, int.class, int.class,
+                        MemoryAddress.class),
+                FunctionDescriptor.of(C_INT, C_POINTER, C_INT, C_INT, C_INT, C_INT, C_POINTER));
+
+//        int WebPPictureRescale(WebPPicture* picture, int width, int height)
+        PictureRescale = downcall(Library.WEBP, "WebPPictureRescale",
+                MethodType.methodType(int.class, MemoryAddress.class, int.class, int.class),
+                FunctionDescriptor.of(C_INT, C_POINTER, C_INT, C_INT));
         
-        PictureImportRGB = loadMethodHandle(cLinker, symbolLookup, "WebPPictureImportRGB",
+        PictureImportRGB = downcall(Library.WEBP, "WebPPictureImportRGB",
                 MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class),
                 FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT));
 
-        PictureImportRGBA = loadMethodHandle(cLinker, symbolLookup, "WebPPictureImportRGBA",
+        PictureImportRGBA = downcall(Library.WEBP, "WebPPictureImportRGBA",
                 MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class),
                 FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT));
         
-        PictureImportRGBX = loadMethodHandle(cLinker, symbolLookup, "WebPPictureImportRGBX",
+        PictureImportRGBX = downcall(Library.WEBP, "WebPPictureImportRGBX",
                 MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class),
                 FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT));
         
-        PictureImportBGR = loadMethodHandle(cLinker, symbolLookup, "WebPPictureImportBGR",
+        PictureImportBGR = downcall(Library.WEBP, "WebPPictureImportBGR",
                 MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class),
                 FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT));
         
-        PictureImportBGRA = loadMethodHandle(cLinker, symbolLookup, "WebPPictureImportBGRA",
+        PictureImportBGRA = downcall(Library.WEBP, "WebPPictureImportBGRA",
                 MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class),
                 FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT));
 
-        PictureImportBGRX = loadMethodHandle(cLinker, symbolLookup, "WebPPictureImportBGRX",
+        PictureImportBGRX = downcall(Library.WEBP, "WebPPictureImportBGRX",
                 MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class),
                 FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT));
         
+        // void WebPMemoryWriterInit(WebPMemoryWriter* writer);
+        MemoryWriterInit = downcall(Library.WEBP, "WebPMemoryWriterInit",
+                MethodType.methodType(void.class, MemoryAddress.class),
+                FunctionDescriptor.ofVoid(C_POINTER));
+
+        // void WebPMemoryWriterClear(WebPMemoryWriter* writer);
+        MemoryWriterClear = downcall(Library.WEBP, "WebPMemoryWriterClear",
+                MethodType.methodType(void.class, MemoryAddress.class),
+                FunctionDescriptor.ofVoid(C_POINTER));
+
 //        int WebPEncode(const WebPConfig* config, WebPPicture* picture)
-        Encode = loadMethodHandle(cLinker, symbolLookup, "WebPEncode", 
+        Encode = downcall(Library.WEBP, "WebPEncode", 
+                MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class),
+                FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER));
+
+        // WebPMux* WebPMuxCreateInternal(const WebPData*, int copy_data, int version);
+        MuxCreateInternal = downcall(Library.MUX, "WebPMuxCreateInternal",
+                MethodType.methodType(MemoryAddress.class, MemoryAddress.class, int.class, int.class),
+                FunctionDescriptor.of(C_POINTER, C_POINTER, C_INT, C_INT));
+        MuxCreate = derived(MuxCreateInternal, "WebPMuxCreate",
+                () -> insertArguments(MuxCreateInternal.get(), 2, WEBP_MUX_ABI_VERSION));
+
+        // void WebPMuxDelete(WebPMux* mux);
+        MuxDelete = downcall(Library.MUX, "WebPMuxDelete",
+                MethodType.methodType(void.class, MemoryAddress.class),
+                FunctionDescriptor.ofVoid(C_POINTER));
+
+        // WebPMuxError WebPMuxGetChunk(const WebPMux* mux, const char fourcc[4], WebPData* chunk_data);
+        MuxGetChunk = downcall(Library.MUX, "WebPMuxGetChunk",
+                MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, MemoryAddress.class),
+                FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_POINTER));
+
+        // WebPMuxError WebPMuxSetChunk(WebPMux* mux, const char fourcc[4], const WebPData* chunk_data,
+        //     int copy_data);
+        MuxSetChunk = downcall(Library.MUX, "WebPMuxSetChunk",
+                MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, MemoryAddress.class,
+                        int.class),
+                FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_POINTER, C_INT));
+
+        // WebPMuxError WebPMuxDeleteChunk(WebPMux* mux, const char fourcc[4]);
+        MuxDeleteChunk = downcall(Library.MUX, "WebPMuxDeleteChunk",
                 MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class),
                 FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER));
+
+        // WebPMux* WebPNewInternal(int version);
+        MuxNewInternal = downcall(Library.MUX, "WebPNewInternal",
+                MethodType.methodType(MemoryAddress.class, int.class),
+                FunctionDescriptor.of(C_POINTER, C_INT));
+        MuxNew = derived(MuxNewInternal, "WebPMuxNew",
+                () -> insertArguments(MuxNewInternal.get(), 0, WEBP_MUX_ABI_VERSION));
+
+        // WebPMuxError WebPMuxSetImage(WebPMux* mux, const WebPData* bitstream, int copy_data);
+        MuxSetImage = downcall(Library.MUX, "WebPMuxSetImage",
+                MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class),
+                FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT));
+
+        // WebPMuxError WebPMuxGetFrame(const WebPMux* mux, uint32_t nth, WebPMuxFrameInfo* frame);
+        MuxGetFrame = downcall(Library.MUX, "WebPMuxGetFrame",
+                MethodType.methodType(int.class, MemoryAddress.class, int.class, MemoryAddress.class),
+                FunctionDescriptor.of(C_INT, C_POINTER, C_INT, C_POINTER));
+
+        // WebPMuxError WebPMuxAssemble(WebPMux* mux, WebPData* assembled_data);
+        MuxAssemble = downcall(Library.MUX, "WebPMuxAssemble",
+                MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class),
+                FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER));
+
+        // WebPDemuxer* WebPDemuxInternal(const WebPData*, int allow_partial, WebPDemuxState*, int version);
+        DemuxInternal = downcall(Library.DEMUX, "WebPDemuxInternal",
+                MethodType.methodType(MemoryAddress.class, MemoryAddress.class, int.class, MemoryAddress.class,
+                        int.class),
+                FunctionDescriptor.of(C_POINTER, C_POINTER, C_INT, C_POINTER, C_INT));
+        Demux = derived(DemuxInternal, "WebPDemux",
+                () -> insertArguments(DemuxInternal.get(), 1, 0, MemoryAddress.NULL, WEBP_DEMUX_ABI_VERSION));
+
+        // uint32_t WebPDemuxGetI(const WebPDemuxer* dmux, WebPFormatFeature feature);
+        DemuxGetI = downcall(Library.DEMUX, "WebPDemuxGetI",
+                MethodType.methodType(int.class, MemoryAddress.class, int.class),
+                FunctionDescriptor.of(C_INT, C_POINTER, C_INT));
+
+        // void WebPDemuxDelete(WebPDemuxer* dmux);
+        DemuxDelete = downcall(Library.DEMUX, "WebPDemuxDelete",
+                MethodType.methodType(void.class, MemoryAddress.class),
+                FunctionDescriptor.ofVoid(C_POINTER));
+
+        // int WebPInitDecoderConfigInternal(WebPDecoderConfig*, int);
+        InitDecoderConfigInternal = downcall(Library.WEBP, "WebPInitDecoderConfigInternal",
+                MethodType.methodType(int.class, MemoryAddress.class, int.class),
+                FunctionDescriptor.of(C_INT, C_POINTER, C_INT));
+        InitDecoderConfig = derived(InitDecoderConfigInternal, "WebPInitDecoderConfig",
+                () -> insertArguments(InitDecoderConfigInternal.get(), 1, WEBP_DECODER_ABI_VERSION));
+
+        // VP8StatusCode WebPDecode(const uint8_t* data, size_t data_size, WebPDecoderConfig* config);
+        Decode = downcall(Library.WEBP, "WebPDecode",
+                MethodType.methodType(int.class, MemoryAddress.class, long.class, MemoryAddress.class),
+                FunctionDescriptor.of(C_INT, C_POINTER, C_LONG, C_POINTER));
+
+        // void WebPFreeDecBuffer(WebPDecBuffer* buffer);
+        FreeDecBuffer = downcall(Library.WEBP, "WebPFreeDecBuffer",
+                MethodType.methodType(void.class, MemoryAddress.class),
+                FunctionDescriptor.ofVoid(C_POINTER));
         
     }
 
-    private MethodHandle loadMethodHandle(CLinker cLinker, SymbolLookup symbolLookup,
-            String name, MethodType methodType, FunctionDescriptor functionDescriptor) throws IOException {
+    /** Declare a downcall handle which will be linked on first use */
+    private LazyHandle downcall(Library library, String name, MethodType methodType, 
+            FunctionDescriptor functionDescriptor) {
+        final LazyHandle result = new LazyHandle(library, name,
+                () -> loadMethodHandle(name, methodType, functionDescriptor));
+        handles.add(result);
+        return result;
+    }
+
+    /** Declare a handle which adapts another handle, for example by binding constant arguments */
+    private LazyHandle derived(LazyHandle from, String name, HandleFactory factory) {
+        final LazyHandle result = new LazyHandle(from.library, name, factory);
+        handles.add(result);
+        return result;
+    }
+
+    /** The address of a function in libwebp, for use as a function pointer */
+    public MemoryAddress symbol(String name) throws IOException {
+        Library.WEBP.load();
+        return symbolLookup.lookup(name).
+                orElseThrow(() -> new IOException("couldn't library lookup for symbol: " + name));
+    }
+
+    private MethodHandle loadMethodHandle(String name, MethodType methodType, 
+            FunctionDescriptor functionDescriptor) throws IOException {
         final Optional<MemoryAddress> oSymbolAddress = symbolLookup.lookup(name);
         if (oSymbolAddress.isEmpty())
             throw new IOException("couldn't library lookup for symbol: " + name);
         final MethodHandle mh = cLinker.downcallHandle(oSymbolAddress.get(), methodType, functionDescriptor);
+        LOG.finer("linked: " + name);
         return mh;
     }
 
-    public final MethodHandle GetInfo;
+    public final LazyHandle GetInfo;
 
     /**
      * uint8_t* WebPDecodeARGBInto(const uint8_t* data, size_t data_size,
      * uint8_t* output_buffer, int output_buffer_size, int output_stride);
      *
      */
-    public final MethodHandle DecodeARGBInto;
+    public final LazyHandle DecodeARGBInto;
+
+    /** Same as {@link #DecodeARGBInto}, for the other interleaved orders. RGB and BGR
+     * output three bytes per pixel. */
+    public final LazyHandle DecodeRGBAInto;
+    public final LazyHandle DecodeBGRAInto;
+    public final LazyHandle DecodeRGBInto;
+    public final LazyHandle DecodeBGRInto;
+
+    /** Decode into separate Y, U and V planes. The U and V planes are half the
+     * width and height of the luma plane, rounded up. Any alpha is ignored.
+     * Returns the luma pointer, or NULL on error.
+     * <pre>uint8_t* WebPDecodeYUVInto(const uint8_t* data, size_t data_size,
+     *     uint8_t* luma, size_t luma_size, int luma_stride,
+     *     uint8_t* u, size_t u_size, int u_stride,
+     *     uint8_t* v, size_t v_size, int v_stride);</pre> */
+    public final LazyHandle DecodeYUVInto;
 
     /**
      * size_t WebPEncodeLosslessRGB(const uint8_t* rgb, int width, int height,
      * int stride, uint8_t** output);
      *
      */
-    public final MethodHandle EncodeLosslessRGB;
+    public final LazyHandle EncodeLosslessRGB;
+
+    /** The simple lossless encoders for the other input orders. Same as {@link #EncodeLosslessRGB}. */
+    public final LazyHandle EncodeLosslessRGBA;
+    public final LazyHandle EncodeLosslessBGR;
+    public final LazyHandle EncodeLosslessBGRA;
+
+    /** The simple lossy encoders, using the default config at the given quality.
+     * Returns the size of the output, or 0 on error. The output must be freed with
+     * WebPFree().
+     * <pre>size_t WebPEncodeRGB(const uint8_t* rgb, int width, int height, int stride,
+     *     float quality_factor, uint8_t** output);</pre> */
+    public final LazyHandle EncodeRGB;
+    public final LazyHandle EncodeRGBA;
+    public final LazyHandle EncodeBGR;
+    public final LazyHandle EncodeBGRA;
 
     /**
      * void WebPFree(void* ptr);
      */
-    public final MethodHandle Free;
+    public final LazyHandle Free;
 
-    private final MethodHandle PictureInitInternal;
+    private final LazyHandle PictureInitInternal;
 
     /**
      * Calls PictureInitInternal but with the ABI version constant
      */
-    public final MethodHandle PictureInit;
+    public final LazyHandle PictureInit;
 
-    public final MethodHandle ConfigInitInternal;
+    public final LazyHandle ConfigInitInternal;
 
     /**
      * Configure based on one of the preset image types. This is the best way to
@@ -262,13 +651,18 @@ public final class LibWebp {
      * FIXME - use MethodHandles.insertArguments to create a ConfigInit method
      * that has the constant already bound to it! This is a cool use
      */
-    public final MethodHandle ConfigPreset;
+    public final LazyHandle ConfigPreset;
 
     /**
      * Also an inline call t oConfigInitInternal, using the DEFAULT preset, and
      * 75 quality level
      */
-    public final MethodHandle ConfigInit;
+    public final LazyHandle ConfigInit;
+
+    /** Returns true if 'config' is non-NULL and all configuration parameters are
+     * within their valid ranges.
+     * int WebPValidateConfig(const WebPConfig* config); */
+    public final LazyHandle ValidateConfig;
     
     /** Convenience allocation / deallocation based on picture->width/height:
      * Allocate y/u/v buffers as per colorspace/width/height specification.
@@ -276,23 +670,71 @@ public final class LibWebp {
      * Returns false in case of memory error.
      * 
      * int WebPPictureAlloc(WebPPicture* picture); */
-    public final MethodHandle PictureAlloc;
+    public final LazyHandle PictureAlloc;
+
+    /** Release the memory allocated by WebPPictureAlloc() or WebPPictureImport*().
+     * Note that this function does _not_ free the memory used by the 'picture'
+     * object itself.
+     * Besides memory (which is reclaimed) all other fields of 'picture' are
+     * preserved.
+     *
+     * void WebPPictureFree(WebPPicture* picture); */
+    public final LazyHandle PictureFree;
+
+    /** Copy the picture, allocating new planes for dst. The previous planes of dst
+     * are not freed, so dst should have none. Returns false in case of memory error.
+     *
+     * int WebPPictureCopy(const WebPPicture* src, WebPPicture* dst); */
+    public final LazyHandle PictureCopy;
+
+    /** Make dst a view of a rectangle of src, sharing its planes, so src must
+     * outlive dst. For YUV pictures, left and top are snapped to even values.
+     * Returns false in case of invalid parameters.
+     *
+     * int WebPPictureView(const WebPPicture* src, int left, int top, int width, int height,
+     *         WebPPicture* dst); */
+    public final LazyHandle PictureView;
+
+    /** Rescale the picture's planes in place, replacing them with new ones. If width
+     * or height (but not both) is 0, it is computed from the aspect ratio. Returns
+     * false in case of error.
+     *
+     * int WebPPictureRescale(WebPPicture* picture, int width, int height); */
+    public final LazyHandle PictureRescale;
+
+    /** Estimate how many bytes libwebp allocates for the planes of a picture, so the
+     * allocation can be reserved against the {@link chiralsoftware.linkerwebp.NativeMemoryBudget}.
+     * ARGB pictures use four bytes per pixel. YUVA pictures use one byte per pixel for
+     * each of Y and A, plus a quarter-size U and V plane. */
+    public static long pictureBytes(int width, int height, boolean useArgb) {
+        final long pixels = (long) width * height;
+        if(useArgb) return pixels * 4;
+        final long uvPixels = (long) ((width + 1) / 2) * ((height + 1) / 2);
+        return pixels * 2 + uvPixels * 2;
+    }
     
+    /** Estimate the size of an encoded picture, so the output can be admitted with
+     * the rest of an encode. One byte per pixel is generous for lossy output; output
+     * which turns out larger is accounted for without waiting once its size is known. */
+    public static long outputBytes(int width, int height) {
+        return (long) width * height;
+    }
+
     /** Colorspace conversion function to import RGB samples.
      * Previous buffer will be free'd, if any.
      *rgb buffer should have a size of at least height * rgb_stride.
      * Returns false in case of memory error. */
-    public final MethodHandle PictureImportRGB;
+    public final LazyHandle PictureImportRGB;
     
     /** int WebPPictureImportRGBA(WebPPicture* picture, const uint8_t* rgba, int rgba_stride); */
-    public final MethodHandle PictureImportRGBA;
+    public final LazyHandle PictureImportRGBA;
     
     /**  Same, but for RGBA buffer. Imports the RGB direct from the 32-bit format
      * input buffer ignoring the alpha channel. Avoids needing to copy the data
      * to a temporary 24-bit RGB buffer to import the RGB only.
 <pre>WEBP_EXTERN int WebPPictureImportRGBX(
     WebPPicture* picture, const uint8_t* rgbx, int rgbx_stride);</pre> */
-    public final MethodHandle PictureImportRGBX;
+    public final LazyHandle PictureImportRGBX;
 
     /** Variants of the above, but taking BGR(A|X) input. 
      * <pre>WEBP_EXTERN int WebPPictureImportBGR(
@@ -302,10 +744,24 @@ WEBP_EXTERN int WebPPictureImportBGRA(
 WEBP_EXTERN int WebPPictureImportBGRX(
     WebPPicture* picture, const uint8_t* bgrx, int bgrx_stride);</pre>
      */
-    public final MethodHandle PictureImportBGR;
-    public final MethodHandle PictureImportBGRA;
-    public final MethodHandle PictureImportBGRX;
+    public final LazyHandle PictureImportBGR;
+    public final LazyHandle PictureImportBGRA;
+    public final LazyHandle PictureImportBGRX;
     
+    /** The following must be called first before any use of a WebPMemoryWriter.
+     * void WebPMemoryWriterInit(WebPMemoryWriter* writer); */
+    public final LazyHandle MemoryWriterInit;
+
+    /** The following must be called to deallocate writer->mem memory. The 'writer'
+     * object itself is not deallocated.
+     * void WebPMemoryWriterClear(WebPMemoryWriter* writer); */
+    public final LazyHandle MemoryWriterClear;
+
+    /** The name of the writer function which appends to a WebPMemoryWriter set as
+     * picture->custom_ptr. Use {@link #symbol(String)} to get its address.
+     * int WebPMemoryWrite(const uint8_t* data, size_t data_size, const WebPPicture* picture); */
+    public static final String MemoryWrite = "WebPMemoryWrite";
+
     /** Main encoding call, after config and picture have been initialized.
      * 'picture' must be less than 16384x16384 in dimension (cf WEBP_MAX_DIMENSION),
      * and the 'config' object must be a valid one.
@@ -318,6 +774,159 @@ WEBP_EXTERN int WebPPictureImportBGRX(
      * another is provided but they both incur some loss.
 <pre>WEBP_EXTERN int WebPEncode(const WebPConfig* config, WebPPicture* picture);<pre>
  */
-    public final MethodHandle Encode;
+    public final LazyHandle Encode;
+
+
+    /** Error codes returned by the WebPMux functions */
+    public static enum MuxError {
+        OK(1),
+        NOT_FOUND(0),
+        INVALID_ARGUMENT(-1),
+        BAD_DATA(-2),
+        MEMORY_ERROR(-3),
+        NOT_ENOUGH_DATA(-4);
+
+        private MuxError(int code) {
+            this.code = code;
+        }
+        private final int code;
+
+        public int code() {
+            return code;
+        }
+
+        public static MuxError of(int code) {
+            for(MuxError e : values()) if(e.code == code) return e;
+            throw new IllegalArgumentException("unknown WebPMuxError: " + code);
+        }
+    }
+
+    private final LazyHandle MuxCreateInternal;
+
+    /** Create a mux object from a complete WebP file. With copy_data = 0 the mux
+     * refers to the input, which must outlive it. Returns NULL on error. Must be
+     * released with WebPMuxDelete().
+     * <pre>WebPMux* WebPMuxCreate(const WebPData* bitstream, int copy_data);</pre> */
+    public final LazyHandle MuxCreate;
+
+    /** <pre>void WebPMuxDelete(WebPMux* mux);</pre> */
+    public final LazyHandle MuxDelete;
+
+    /** Get a reference to the data of the chunk with this fourcc, such as "ICCP",
+     * "EXIF" or "XMP ". The data is not copied; it belongs to the mux, or to the
+     * input if the mux was created without copying.
+     * <pre>WebPMuxError WebPMuxGetChunk(const WebPMux* mux, const char fourcc[4], WebPData* chunk_data);</pre> */
+    public final LazyHandle MuxGetChunk;
+
+    /** Add or replace the chunk with this fourcc. With copy_data = 0 the data must
+     * outlive the mux.
+     * <pre>WebPMuxError WebPMuxSetChunk(WebPMux* mux, const char fourcc[4],
+     *     const WebPData* chunk_data, int copy_data);</pre> */
+    public final LazyHandle MuxSetChunk;
+
+    /** <pre>WebPMuxError WebPMuxDeleteChunk(WebPMux* mux, const char fourcc[4]);</pre> */
+    public final LazyHandle MuxDeleteChunk;
+
+    /** Write the mux out as a WebP file. The output is allocated by libwebp and must
+     * be freed with WebPFree() (WebPDataClear).
+     * <pre>WebPMuxError WebPMuxAssemble(WebPMux* mux, WebPData* assembled_data);</pre> */
+    public final LazyHandle MuxAssemble;
+
+
+    private final LazyHandle MuxNewInternal;
+
+    /** An empty mux. Must be released with WebPMuxDelete().
+     * <pre>WebPMux* WebPMuxNew(void);</pre> */
+    public final LazyHandle MuxNew;
+
+    /** Set the image of a mux which has no frames, replacing any existing image.
+     * The bitstream may be a raw VP8/VP8L bitstream or a single-image WebP file.
+     * <pre>WebPMuxError WebPMuxSetImage(WebPMux* mux, const WebPData* bitstream, int copy_data);</pre> */
+    public final LazyHandle MuxSetImage;
+
+    /** Get the nth frame, counting from 1; 0 means the last frame. For a still image
+     * nth = 1 returns the image. The frame's bitstream is allocated by libwebp and
+     * must be freed with WebPDataClear().
+     * <pre>WebPMuxError WebPMuxGetFrame(const WebPMux* mux, uint32_t nth, WebPMuxFrameInfo* frame);</pre> */
+    public final LazyHandle MuxGetFrame;
+
+    /** Features which can be read with WebPDemuxGetI */
+    public static enum FormatFeature {
+        FORMAT_FLAGS,
+        CANVAS_WIDTH,
+        CANVAS_HEIGHT,
+        LOOP_COUNT,
+        BACKGROUND_COLOR,
+        FRAME_COUNT
+    }
+
+    private final LazyHandle DemuxInternal;
+
+    /** Parse a complete WebP file. The data is not copied and must outlive the
+     * demuxer. Returns NULL on error. Must be released with WebPDemuxDelete().
+     * <pre>WebPDemuxer* WebPDemux(const WebPData* data);</pre> */
+    public final LazyHandle Demux;
+
+    /** <pre>uint32_t WebPDemuxGetI(const WebPDemuxer* dmux, WebPFormatFeature feature);</pre> */
+    public final LazyHandle DemuxGetI;
+
+    /** <pre>void WebPDemuxDelete(WebPDemuxer* dmux);</pre> */
+    public final LazyHandle DemuxDelete;
+
+    /** The output colorspaces of the advanced decoding API. The lower case letters
+     * of the premultiplied modes are the channels multiplied by alpha. */
+    public static enum CspMode {
+        MODE_RGB(0),
+        MODE_RGBA(1),
+        MODE_BGR(2),
+        MODE_BGRA(3),
+        MODE_ARGB(4),
+        MODE_rgbA(7),
+        MODE_bgrA(8),
+        MODE_Argb(9);
+
+        private CspMode(int code) {
+            this.code = code;
+        }
+        private final int code;
+
+        public int code() {
+            return code;
+        }
+    }
+
+    /** Status codes returned by the advanced decoding API */
+    public static enum VP8StatusCode {
+        OK,
+        OUT_OF_MEMORY,
+        INVALID_PARAM,
+        BITSTREAM_ERROR,
+        UNSUPPORTED_FEATURE,
+        SUSPENDED,
+        USER_ABORT,
+        NOT_ENOUGH_DATA;
+
+        public static VP8StatusCode of(int code) {
+            if(code < 0 || code >= values().length)
+                throw new IllegalArgumentException("unknown VP8StatusCode: " + code);
+            return values()[code];
+        }
+    }
+
+    private final LazyHandle InitDecoderConfigInternal;
+
+    /** Set a WebPDecoderConfig to the defaults. Returns false if the library's
+     * decoder ABI doesn't match.
+     * <pre>int WebPInitDecoderConfig(WebPDecoderConfig* config);</pre> */
+    public final LazyHandle InitDecoderConfig;
+
+    /** Decode the whole image into config->output, with config->options. Returns a
+     * VP8StatusCode. If the output is not external memory it must be released with
+     * WebPFreeDecBuffer().
+     * <pre>VP8StatusCode WebPDecode(const uint8_t* data, size_t data_size, WebPDecoderConfig* config);</pre> */
+    public final LazyHandle Decode;
+
+    /** <pre>void WebPFreeDecBuffer(WebPDecBuffer* buffer);</pre> */
+    public final LazyHandle FreeDecBuffer;
 
 }
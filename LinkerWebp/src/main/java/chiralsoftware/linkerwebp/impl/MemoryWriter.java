@@ -0,0 +1,60 @@
+package chiralsoftware.linkerwebp.impl;
+
+import static jdk.incubator.foreign.CLinker.C_INT;
+import static jdk.incubator.foreign.CLinker.C_LONG;
+import static jdk.incubator.foreign.CLinker.C_POINTER;
+import jdk.incubator.foreign.GroupLayout;
+import jdk.incubator.foreign.MemoryAddress;
+import static jdk.incubator.foreign.MemoryLayout.PathElement.groupElement;
+import static jdk.incubator.foreign.MemoryLayout.paddingLayout;
+import static jdk.incubator.foreign.MemoryLayout.structLayout;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Represent the WebPMemoryWriter struct. libwebp's WebPMemoryWrite() appends the
+ * encoded bytes to the buffer it manages, which avoids an upcall for every chunk.
+ * The buffer must be released with WebPMemoryWriterClear().
+ */
+public final class MemoryWriter {
+
+    /** Match struct WebPMemoryWriter */
+    public static final GroupLayout MemoryWriter = structLayout(
+            C_POINTER.withName("mem"), // final buffer (of size 'max_size', larger than 'size').
+            C_LONG.withName("size"), // final size
+            C_LONG.withName("max_size"), // total capacity
+            C_INT.withName("pad"), // padding for later use
+            paddingLayout(32)
+    ).withBitAlignment(64);
+
+    public MemoryWriter(MemorySegment segment) {
+        if(segment == null) throw new NullPointerException("segment can't be null");
+        if(segment.byteSize() != MemoryWriter.byteSize())
+            throw new IllegalArgumentException("segment size was: " + segment.byteSize() +
+                    ", should have been: " + MemoryWriter.byteSize());
+        this.segment = segment;
+    }
+
+    private final MemorySegment segment;
+
+    public MemorySegment segment() {
+        return segment;
+    }
+
+    /** The buffer holding the encoded bytes */
+    public MemoryAddress getMem() {
+        return (MemoryAddress) MemoryWriter.varHandle(MemoryAddress.class, groupElement("mem")).get(segment);
+    }
+
+    /** Number of encoded bytes */
+    public long getSize() {
+        return (Long) MemoryWriter.varHandle(long.class, groupElement("size")).get(segment);
+    }
+
+    /** A view of the encoded bytes. The scope must be the one which clears the writer,
+     so the view can't be used after the bytes are freed. */
+    public MemorySegment output(ResourceScope scope) {
+        return getMem().asSegment(getSize(), scope);
+    }
+
+}
@@ -0,0 +1,70 @@
+package chiralsoftware.linkerwebp.impl;
+
+import chiralsoftware.linkerwebp.NativeMemoryBudget;
+import java.io.IOException;
+import java.util.logging.Logger;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * A grow-only native buffer, for scratch memory which is reused from one image to
+ * the next. It only reallocates when a larger size is asked for, and then grows by
+ * at least half, so a stream of similar images settles on one allocation. The
+ * memory is reserved against the {@link NativeMemoryBudget} and freed by close().
+ * This is not thread safe, but it may be closed from a different thread than the
+ * one which used it.
+ */
+public final class NativeBuffer implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(NativeBuffer.class.getName());
+
+    private ResourceScope scope = null;
+    private MemorySegment segment = null;
+
+    /** A segment of exactly this size, reusing the buffer if it is big enough. The
+     * contents are whatever was left from the last use. The segment is only valid
+     * until the next call to get() or close(). */
+    public MemorySegment get(long size) throws IOException {
+        if(size < 0) throw new IllegalArgumentException("invalid size: " + size);
+        if(segment == null || segment.byteSize() < size) grow(size);
+        return segment.asSlice(0, size);
+    }
+
+    private void grow(long size) throws IOException {
+        final long capacity = segment == null ? size : Math.max(size, segment.byteSize() + segment.byteSize() / 2);
+        close();
+        // shared, so the owner can be closed from another thread
+        final ResourceScope newScope = ResourceScope.newSharedScope();
+        try {
+            segment = NativeMemoryBudget.getInstance().allocate(capacity, newScope);
+        } catch(IOException | RuntimeException e) {
+            newScope.close();
+            throw e;
+        }
+        scope = newScope;
+        LOG.finer("grew to: " + capacity);
+    }
+
+    /** The current allocation, in bytes */
+    public long capacity() {
+        return segment == null ? 0 : segment.byteSize();
+    }
+
+    /** Free the memory if more than this is allocated, so a buffer which grew for
+     * one unusually large image doesn't keep that much while it waits */
+    public void trim(long maxCapacity) {
+        if(capacity() > maxCapacity) {
+            LOG.finer("trimming: " + capacity() + " bytes");
+            close();
+        }
+    }
+
+    /** Free the memory. The buffer can still be used afterwards, and reallocates. */
+    @Override
+    public void close() {
+        if(scope != null && scope.isAlive()) scope.close();
+        scope = null;
+        segment = null;
+    }
+
+}
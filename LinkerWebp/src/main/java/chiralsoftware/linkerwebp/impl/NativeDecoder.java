@@ -0,0 +1,124 @@
+package chiralsoftware.linkerwebp.impl;
+
+import chiralsoftware.linkerwebp.PixelLayout;
+import java.io.IOException;
+import java.util.logging.Logger;
+import javax.imageio.IIOException;
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * The native steps of a decode which are shared by the public APIs: reading the
+ * size from the header, and decoding into interleaved pixels in caller-owned memory.
+ * Both the input and the output must be native or mapped segments.
+ */
+public final class NativeDecoder {
+
+    private static final Logger LOG = Logger.getLogger(NativeDecoder.class.getName());
+
+    private NativeDecoder() {
+        throw new RuntimeException("don't instantiate this");
+    }
+
+    /** @return the width and height */
+    public static int[] getInfo(MemorySegment webp) throws IOException {
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            final MemorySegment sizeSegment = MemorySegment.allocateNative(8, scope);
+            final int result = (Integer) LibWebp.getInstance().GetInfo.get().invoke(webp.address(), webp.byteSize(),
+                    sizeSegment.address(), sizeSegment.address().addOffset(4));
+            if(result != 1) throw new IIOException("the input isn't a valid WebP file");
+            return new int[] { MemoryAccess.getIntAtOffset(sizeSegment, 0), MemoryAccess.getIntAtOffset(sizeSegment, 4) };
+        } catch(IOException ioe) {
+            throw ioe;
+        } catch(Throwable t) {
+            throw new IIOException("couldn't read the WebP header", t);
+        }
+    }
+
+    /** The WebPDecode*Into function for this layout
+     * @throws IllegalArgumentException for the premultiplied layouts, which only the
+     * advanced API decodes to */
+    public static LibWebp.LazyHandle decoder(PixelLayout layout) {
+        final LibWebp libWebp = LibWebp.getInstance();
+        return switch(layout) {
+            case RGB -> libWebp.DecodeRGBInto;
+            case RGBA, RGBX -> libWebp.DecodeRGBAInto;
+            case BGR -> libWebp.DecodeBGRInto;
+            case BGRA, BGRX -> libWebp.DecodeBGRAInto;
+            case ARGB -> libWebp.DecodeARGBInto;
+            case RGBA_PREMULTIPLIED, BGRA_PREMULTIPLIED, ARGB_PREMULTIPLIED ->
+                throw new IllegalArgumentException("there's no simple decoder for " + layout);
+        };
+    }
+
+    /** The advanced API's output mode for this layout */
+    public static LibWebp.CspMode mode(PixelLayout layout) {
+        return switch(layout) {
+            case RGB -> LibWebp.CspMode.MODE_RGB;
+            case RGBA, RGBX -> LibWebp.CspMode.MODE_RGBA;
+            case BGR -> LibWebp.CspMode.MODE_BGR;
+            case BGRA, BGRX -> LibWebp.CspMode.MODE_BGRA;
+            case ARGB -> LibWebp.CspMode.MODE_ARGB;
+            case RGBA_PREMULTIPLIED -> LibWebp.CspMode.MODE_rgbA;
+            case BGRA_PREMULTIPLIED -> LibWebp.CspMode.MODE_bgrA;
+            case ARGB_PREMULTIPLIED -> LibWebp.CspMode.MODE_Argb;
+        };
+    }
+
+    /** Decode the whole image into the destination, which must hold the image at this stride */
+    public static void decodeInto(MemorySegment webp, PixelLayout layout, MemorySegment destination, int stride)
+            throws IOException {
+        if(layout.isPremultiplied()) {
+            decodeAdvanced(webp, mode(layout), destination, stride);
+            return;
+        }
+        final MemoryAddress result;
+        try {
+            result = (MemoryAddress) decoder(layout).get().invoke(webp.address(), webp.byteSize(),
+                    destination.address(), destination.byteSize(), stride);
+        } catch(IOException ioe) {
+            throw ioe;
+        } catch(Throwable t) {
+            throw new IIOException("decoding failed", t);
+        }
+        if(result.equals(MemoryAddress.NULL))
+            throw new IIOException("libwebp couldn't decode the input to " + layout);
+        LOG.finer("decoded to " + layout);
+    }
+
+    /** Decode with WebPDecode() into external memory, which is the only way to get
+     * the premultiplied modes. libwebp premultiplies as it writes each row, so there
+     * is no separate pass over the pixels. */
+    public static void decodeAdvanced(MemorySegment webp, LibWebp.CspMode mode, MemorySegment destination,
+            int stride) throws IOException {
+        final LibWebp libWebp = LibWebp.getInstance();
+        final int status;
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            final DecoderConfig config =
+                    new DecoderConfig(MemorySegment.allocateNative(DecoderConfig.DecoderConfig, scope));
+            if((Integer) libWebp.InitDecoderConfig.get().invoke(config.segment().address()) != 1)
+                throw new IIOException("the decoder version doesn't match libwebp");
+            config.setOutputColorspace(mode.code());
+            config.setOutputIsExternalMemory(1);
+            config.setOutputRgba(destination.address());
+            config.setOutputStride(stride);
+            config.setOutputSize(destination.byteSize());
+            status = (Integer) libWebp.Decode.get().invoke(webp.address(), webp.byteSize(),
+                    config.segment().address());
+            // nothing is allocated for external memory, but this is safe and releases
+            // any internal state
+            libWebp.FreeDecBuffer.get().invoke(config.output());
+        } catch(IOException ioe) {
+            throw ioe;
+        } catch(Throwable t) {
+            throw new IIOException("decoding failed", t);
+        }
+        if(status != 0)
+            throw new IIOException("libwebp couldn't decode the input to " + mode + ": " +
+                    LibWebp.VP8StatusCode.of(status));
+        LOG.finer("decoded to " + mode);
+    }
+
+}
@@ -0,0 +1,360 @@
+package chiralsoftware.linkerwebp.impl;
+
+import chiralsoftware.linkerwebp.Config;
+import chiralsoftware.linkerwebp.EncoderSettings;
+import chiralsoftware.linkerwebp.NativeMemoryBudget;
+import chiralsoftware.linkerwebp.Picture;
+import chiralsoftware.linkerwebp.PixelLayout;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import static java.util.logging.Level.WARNING;
+import java.util.logging.Logger;
+import javax.imageio.IIOException;
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * The native steps of an encode which are shared by the public APIs: building a
+ * config from settings, creating a picture whose planes are freed with its scope,
+ * and encoding into memory with libwebp's memory writer. Everything allocated is
+ * reserved against the {@link NativeMemoryBudget} and released when the scope
+ * passed in is closed. Callers estimate an operation's total with the methods
+ * here and admit it before the first allocation.
+ */
+public final class NativeEncoder {
+
+    private static final Logger LOG = Logger.getLogger(NativeEncoder.class.getName());
+
+    private NativeEncoder() {
+        throw new RuntimeException("don't instantiate this");
+    }
+
+    /** The config, picture and memory writer structs of one encode */
+    public static final long STRUCT_BYTES = Config.Config.byteSize() + Picture.Picture.byteSize() +
+            MemoryWriter.MemoryWriter.byteSize();
+
+    /** An estimate of what encoding a picture of this size needs besides its input:
+     * the structs, the planes in the representation it is imported into, and the
+     * output */
+    public static long encodeBytes(int width, int height, boolean useArgb) {
+        return STRUCT_BYTES + LibWebp.pictureBytes(width, height, useArgb) + LibWebp.outputBytes(width, height);
+    }
+
+    /** What {@link #importImage} allocates for this image: a copy of a compact tile
+     * and its planes, or the buffers of a tiled import */
+    public static long importBytes(RenderedImage image, boolean useArgb) {
+        final Raster raster = TiledImport.wholeRaster(image);
+        if(raster == null) return TiledImport.importBytes(image);
+        final ImportType importType = ImportType.findType(
+                ((ComponentSampleModel) image.getSampleModel()).getBandOffsets(), image.getColorModel().hasAlpha());
+        final boolean abgr = importType == ImportType.ABGR || importType == ImportType.XBGR;
+        return Picture.Picture.byteSize() + ((DataBufferByte) raster.getDataBuffer()).getData().length +
+                LibWebp.pictureBytes(image.getWidth(), image.getHeight(), useArgb || abgr);
+    }
+
+    /** A validated config for these settings */
+    public static Config newConfig(EncoderSettings settings, ResourceScope scope) throws IOException {
+        final LibWebp libWebp = LibWebp.getInstance();
+        final MemorySegment configSegment = 
+                NativeMemoryBudget.getInstance().allocate(Config.Config.byteSize(), scope);
+        try {
+            int result = (Integer) libWebp.ConfigPreset.get().invoke(configSegment.address(),
+                    settings.preset().ordinal(), settings.quality());
+            if(result != 1)
+                throw new IIOException("couldn't initialize the config segment: " + result);
+            final Config config = new Config(configSegment);
+            settings.applyTo(config);
+            result = (Integer) libWebp.ValidateConfig.get().invoke(configSegment.address());
+            if(result != 1)
+                throw new IIOException("invalid encoder settings: " + settings);
+            return config;
+        } catch(IOException ioe) {
+            throw ioe;
+        } catch(Throwable t) {
+            throw new IIOException("couldn't create the config", t);
+        }
+    }
+
+    /** An initialized picture of this size. Any planes libwebp allocates for it are
+     * freed when the scope is closed. Nothing is allocated for the planes yet. */
+    public static Picture newPicture(int width, int height, ResourceScope scope) throws IOException {
+        final LibWebp libWebp = LibWebp.getInstance();
+        final MemorySegment pictureSegment = 
+                NativeMemoryBudget.getInstance().allocate(Picture.Picture.byteSize(), scope);
+        try {
+            final int result = (Integer) libWebp.PictureInit.get().invoke(pictureSegment.address());
+            if(result != 1)
+                throw new IIOException("couldn't initialize Picture object: " + result);
+        } catch(IOException ioe) {
+            throw ioe;
+        } catch(Throwable t) {
+            throw new IIOException("couldn't initialize Picture object", t);
+        }
+        // take the address now: the segment can't be used once its scope is closing
+        final MemoryAddress pictureAddress = pictureSegment.address();
+        scope.addCloseAction(() -> freePicture(pictureAddress));
+        final Picture picture = new Picture(pictureSegment);
+        picture.setWidth(width);
+        picture.setHeight(height);
+        return picture;
+    }
+
+    /** The WebPPictureImport* function for this layout
+     * @throws IllegalArgumentException if libwebp can't import this layout */
+    public static LibWebp.LazyHandle importer(PixelLayout layout) {
+        final LibWebp libWebp = LibWebp.getInstance();
+        return switch(layout) {
+            case RGB -> libWebp.PictureImportRGB;
+            case RGBA -> libWebp.PictureImportRGBA;
+            case RGBX -> libWebp.PictureImportRGBX;
+            case BGR -> libWebp.PictureImportBGR;
+            case BGRA -> libWebp.PictureImportBGRA;
+            case BGRX -> libWebp.PictureImportBGRX;
+            case ARGB, RGBA_PREMULTIPLIED, BGRA_PREMULTIPLIED, ARGB_PREMULTIPLIED ->
+                throw new IllegalArgumentException("libwebp can't import " + layout + " pixels");
+        };
+    }
+
+    /** Import interleaved pixels into the picture, converting to ARGB or YUVA as the
+     * picture's use_argb says. The pixels must be in a native or mapped segment. */
+    public static void importPixels(Picture picture, PixelLayout layout, MemorySegment pixels, int stride) 
+            throws IOException {
+        importPixels(picture, importer(layout), pixels, stride);
+    }
+
+    /** A new picture of this size holding the pixels, in ARGB or YUVA. Its planes
+     * are freed when the scope is closed. */
+    public static Picture importPicture(MemorySegment pixels, PixelLayout layout, int width, int height, int stride,
+            boolean useArgb, ResourceScope scope) throws IOException {
+        final NativeMemoryBudget budget = NativeMemoryBudget.getInstance();
+        final Picture picture = newPicture(width, height, scope);
+        picture.setUseArgb(useArgb ? 1 : 0);
+        budget.reserve(LibWebp.pictureBytes(width, height, useArgb), scope);
+        importPixels(picture, layout, budget.toNative(pixels, scope), stride);
+        return picture;
+    }
+
+    /** A new picture holding an image with 3 or 4 interleaved byte bands, as the
+     * ImageIO writer accepts. A single compact tile is imported in place, in ARGB or
+     * YUVA; anything else is imported tile by tile, and is always ARGB, as are ABGR
+     * images. Its planes are freed when the scope is closed. */
+    public static Picture importImage(RenderedImage image, boolean useArgb, ResourceScope scope) throws IOException {
+        if(! (image.getSampleModel() instanceof ComponentSampleModel sampleModel) ||
+                sampleModel.getDataType() != DataBuffer.TYPE_BYTE)
+            throw new IIOException("the image must have a ComponentSampleModel of bytes; it was: " +
+                    image.getSampleModel());
+        final boolean hasAlpha = image.getColorModel().hasAlpha();
+        if(image.getColorModel().isAlphaPremultiplied())
+            throw new IIOException("premultiplied alpha isn't supported; the image must have straight alpha");
+        final ImportType importType = ImportType.findType(sampleModel.getBandOffsets(), hasAlpha);
+        if(importType == null)
+            throw new IIOException("couldn't find an importer for band offsets: " +
+                    Arrays.toString(sampleModel.getBandOffsets()) + " and alpha: " + hasAlpha);
+        final Raster raster = TiledImport.wholeRaster(image);
+        if(raster == null) return TiledImport.importTiles(image, importer(importType), scope);
+        final NativeMemoryBudget budget = NativeMemoryBudget.getInstance();
+        final byte[] bytes = ((DataBufferByte) raster.getDataBuffer()).getData();
+        final int stride = ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+        final Picture picture = newPicture(image.getWidth(), image.getHeight(), scope);
+        // there is no importer from ABGR to YUVA, so that is always ARGB
+        final boolean argb = useArgb || importType == ImportType.ABGR || importType == ImportType.XBGR;
+        picture.setUseArgb(argb ? 1 : 0);
+        budget.reserve(LibWebp.pictureBytes(image.getWidth(), image.getHeight(), argb), scope);
+        importer(importType).importPixels(picture, budget.toNative(MemorySegment.ofArray(bytes), scope), stride);
+        return picture;
+    }
+
+    /** Import with a specific WebPPictureImport* function */
+    public static void importPixels(Picture picture, LibWebp.LazyHandle importer, MemorySegment pixels, int stride) 
+            throws IOException {
+        final int result;
+        try {
+            result = (Integer) importer.get().invoke(picture.segment().address(), pixels.address(), stride);
+        } catch(IOException ioe) {
+            throw ioe;
+        } catch(Throwable t) {
+            throw new IIOException("couldn't import the pixels", t);
+        }
+        if(result != 1)
+            throw new IIOException("couldn't import the pixels into the picture: " + picture.getErrorCode().message());
+    }
+
+    /** Puts interleaved pixels into a picture */
+    @FunctionalInterface
+    public static interface Importer {
+        void importPixels(Picture picture, MemorySegment pixels, int stride) throws IOException;
+    }
+
+    /** An importer which calls a WebPPictureImport* function */
+    public static Importer importer(LibWebp.LazyHandle handle) {
+        return (picture, pixels, stride) -> importPixels(picture, handle, pixels, stride);
+    }
+
+    /** The importer for an image's band layout */
+    public static Importer importer(ImportType importType) {
+        final LibWebp libWebp = LibWebp.getInstance();
+        return switch(importType) {
+            case RGB -> importer(libWebp.PictureImportRGB);
+            case RGBX -> importer(libWebp.PictureImportRGBX);
+            case RGBA -> importer(libWebp.PictureImportRGBA);
+            case BGR -> importer(libWebp.PictureImportBGR);
+            case BGRX -> importer(libWebp.PictureImportBGRX);
+            case BGRA -> importer(libWebp.PictureImportBGRA);
+            case ABGR -> NativeEncoder::importAbgr;
+            case XBGR -> NativeEncoder::importXbgr;
+        };
+    }
+
+    /** Import pixels whose bytes are A, B, G, R, as in TYPE_4BYTE_ABGR. libwebp has
+     * no importer for that order, so the ARGB plane is filled here, one int per pixel:
+     * read little endian the pixel is 0xRRGGBBAA, and rotating it by a byte gives
+     * libwebp's 0xAARRGGBB. The picture is always made ARGB. */
+    public static void importAbgr(Picture picture, MemorySegment pixels, int stride) throws IOException {
+        importAbgr(picture, pixels, stride, 0);
+    }
+
+    /** Import pixels like {@link #importAbgr}, but with the first byte ignored and
+     * every pixel made opaque */
+    public static void importXbgr(Picture picture, MemorySegment pixels, int stride) throws IOException {
+        importAbgr(picture, pixels, stride, 0xff000000);
+    }
+
+    private static void importAbgr(Picture picture, MemorySegment pixels, int stride, int opaque)
+            throws IOException {
+        picture.setUseArgb(1);
+        allocPicture(picture);
+        final int width = picture.getWidth();
+        final int height = picture.getHeight();
+        final int argbStride = picture.getArgbStride();
+        final MemorySegment argb = picture.getArgb().asSegment((long) argbStride * height * 4, pixels.scope());
+        for(int y = 0; y < height; y++) {
+            final long source = (long) y * stride;
+            final long target = (long) y * argbStride * 4;
+            for(int x = 0; x < width; x++) {
+                final int abgr = MemoryAccess.getIntAtOffset(pixels, source + x * 4L, ByteOrder.LITTLE_ENDIAN);
+                MemoryAccess.setIntAtOffset(argb, target + x * 4L, Integer.rotateRight(abgr, 8) | opaque);
+            }
+        }
+    }
+
+    /** Allocate the picture's planes for its size and use_argb. They are freed with
+     * the scope the picture was created in. */
+    public static void allocPicture(Picture picture) throws IOException {
+        final int result;
+        try {
+            result = (Integer) LibWebp.getInstance().PictureAlloc.get().invoke(picture.segment().address());
+        } catch(Throwable t) {
+            throw new IIOException("couldn't allocate the picture", t);
+        }
+        if(result != 1) throw new IIOException("couldn't allocate a " + picture.getWidth() + "x" +
+                picture.getHeight() + " picture: " + picture.getErrorCode().message());
+    }
+
+    /** A copy of the picture with its own planes, in ARGB or YUVA as the source is.
+     * The planes are freed when the scope is closed. */
+    public static Picture copyPicture(Picture source, ResourceScope scope) throws IOException {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final Picture copy = newPicture(width, height, scope);
+        NativeMemoryBudget.getInstance().reserve(LibWebp.pictureBytes(width, height, source.getUseArgb() == 1), scope);
+        final int result;
+        try {
+            result = (Integer) LibWebp.getInstance().PictureCopy.get().invoke(source.segment().address(),
+                    copy.segment().address());
+        } catch(Throwable t) {
+            throw new IIOException("couldn't copy the picture", t);
+        }
+        if(result != 1) throw new IIOException("couldn't copy a " + width + "x" + height + " picture");
+        return copy;
+    }
+
+    /** A picture of a rectangle of the source which uses the source's planes. The
+     * source must outlive it. Anything libwebp allocates for the view while
+     * encoding it is freed when the scope is closed. */
+    public static Picture viewPicture(Picture source, int left, int top, int width, int height, ResourceScope scope)
+            throws IOException {
+        final Picture view = newPicture(width, height, scope);
+        final int result;
+        try {
+            result = (Integer) LibWebp.getInstance().PictureView.get().invoke(source.segment().address(),
+                    left, top, width, height, view.segment().address());
+        } catch(Throwable t) {
+            throw new IIOException("couldn't make a view of the picture", t);
+        }
+        if(result != 1) throw new IIOException("couldn't make a " + width + "x" + height + " view at " +
+                left + "," + top + " of a " + source.getWidth() + "x" + source.getHeight() + " picture");
+        return view;
+    }
+
+    /** Rescale the picture in place with libwebp's rescaler. The new planes are
+     * reserved against the budget too, and the old ones stay reserved until the
+     * scope is closed, though libwebp frees them now. */
+    public static void rescalePicture(Picture picture, int width, int height, ResourceScope scope)
+            throws IOException {
+        NativeMemoryBudget.getInstance().reserve(LibWebp.pictureBytes(width, height, picture.getUseArgb() == 1),
+                scope);
+        final int result;
+        try {
+            result = (Integer) LibWebp.getInstance().PictureRescale.get().invoke(picture.segment().address(),
+                    width, height);
+        } catch(Throwable t) {
+            throw new IIOException("couldn't rescale the picture", t);
+        }
+        if(result != 1) throw new IIOException("couldn't rescale a " + picture.getWidth() + "x" +
+                picture.getHeight() + " picture to " + width + "x" + height);
+    }
+
+    /** Release the planes libwebp allocated for this picture */
+    public static void freePicture(MemoryAddress picture) {
+        try {
+            LibWebp.getInstance().PictureFree.get().invoke(picture);
+        } catch(Throwable t) {
+            LOG.log(WARNING, "couldn't free the picture", t);
+        }
+    }
+
+    /** Encode the picture into memory. The picture's writer and custom_ptr are replaced.
+     * @return the encoded bytes, which are freed when the scope is closed */
+    public static MemorySegment encode(Config config, Picture picture, ResourceScope scope) throws IOException {
+        final LibWebp libWebp = LibWebp.getInstance();
+        final MemorySegment writerSegment = 
+                NativeMemoryBudget.getInstance().allocate(MemoryWriter.MemoryWriter.byteSize(), scope);
+        final MemoryWriter memoryWriter = new MemoryWriter(writerSegment);
+        try {
+            libWebp.MemoryWriterInit.get().invoke(writerSegment.address());
+            final MemoryAddress writerAddress = writerSegment.address();
+            scope.addCloseAction(() -> clearWriter(writerAddress));
+            picture.setWriter(libWebp.symbol(LibWebp.MemoryWrite).toRawLongValue());
+            picture.setCustomPtr(writerSegment.address());
+            final int result = (Integer) libWebp.Encode.get().invoke(config.segment().address(), 
+                    picture.segment().address());
+            if(result != 1)
+                throw new IIOException("encoding failed: " + picture.getErrorCode().message());
+        } catch(IOException ioe) {
+            throw ioe;
+        } catch(Throwable t) {
+            throw new IIOException("encoding failed", t);
+        }
+        // the output was allocated by libwebp, so account for it now that its size is
+        // known; this must not wait, since the memory is already in use
+        NativeMemoryBudget.getInstance().account(memoryWriter.getSize(), scope);
+        return memoryWriter.output(scope);
+    }
+
+    private static void clearWriter(MemoryAddress writer) {
+        try {
+            LibWebp.getInstance().MemoryWriterClear.get().invoke(writer);
+        } catch(Throwable t) {
+            LOG.log(WARNING, "couldn't clear the memory writer", t);
+        }
+    }
+
+}
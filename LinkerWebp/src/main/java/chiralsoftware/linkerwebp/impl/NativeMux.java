@@ -0,0 +1,241 @@
+package chiralsoftware.linkerwebp.impl;
+
+import chiralsoftware.linkerwebp.NativeMemoryBudget;
+import chiralsoftware.linkerwebp.impl.LibWebp.MuxError;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import static java.util.logging.Level.WARNING;
+import java.util.logging.Logger;
+import javax.imageio.IIOException;
+import jdk.incubator.foreign.CLinker;
+import static jdk.incubator.foreign.CLinker.C_INT;
+import jdk.incubator.foreign.GroupLayout;
+import jdk.incubator.foreign.MemoryAddress;
+import static jdk.incubator.foreign.MemoryLayout.paddingLayout;
+import static jdk.incubator.foreign.MemoryLayout.structLayout;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Container-level access to WebP files through libwebpmux and libwebpdemux. This
+ * only parses and writes the RIFF chunks; it never decodes or encodes pixels, so
+ * the cost depends on the file size and not the number of pixels.
+ */
+public final class NativeMux {
+
+    private static final Logger LOG = Logger.getLogger(NativeMux.class.getName());
+
+    private NativeMux() {
+        throw new RuntimeException("don't instantiate this");
+    }
+
+    /** Find chunks by fourcc, without copying them.
+     * @return a slice of the input for each chunk which is present */
+    public static Map<String, MemorySegment> getChunks(MemorySegment webp, Collection<String> fourccs)
+            throws IOException {
+        final LibWebp libWebp = LibWebp.getInstance();
+        final Map<String, MemorySegment> result = new LinkedHashMap<>();
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            // a heap input is parsed from a temporary copy, but the results are still
+            // slices of the caller's segment, at the same offsets
+            final MemorySegment input = NativeMemoryBudget.getInstance().toNative(webp, scope);
+            final MemoryAddress mux = create(input, scope);
+            final WebpData chunk = new WebpData(MemorySegment.allocateNative(WebpData.WebpData, scope));
+            for(String fourcc : fourccs) {
+                final MuxError error = MuxError.of((Integer) libWebp.MuxGetChunk.get().invoke(mux,
+                        fourcc(fourcc, scope), chunk.segment().address()));
+                switch(error) {
+                    case OK -> result.put(fourcc,
+                            webp.asSlice(chunk.getBytes().segmentOffset(input), chunk.getSize()));
+                    case NOT_FOUND -> { }
+                    default -> throw new IIOException("couldn't get the " + fourcc + " chunk: " + error);
+                }
+            }
+        } catch(IOException ioe) {
+            throw ioe;
+        } catch(Throwable t) {
+            throw new IIOException("couldn't read the chunks", t);
+        }
+        return result;
+    }
+
+    /** Rewrite the container with chunks added, replaced or, where the value is null,
+     * removed. The image data is copied as it is.
+     * @return the new WebP file, which is freed when the scope is closed */
+    public static MemorySegment setChunks(MemorySegment webp, Map<String, MemorySegment> chunks,
+            ResourceScope scope) throws IOException {
+        final NativeMemoryBudget budget = NativeMemoryBudget.getInstance();
+        try (ResourceScope muxScope = ResourceScope.newConfinedScope()) {
+            // the copies of heap inputs, all admitted before the first is made
+            long copies = webp.isNative() || webp.isMapped() ? 0 : webp.byteSize();
+            for(MemorySegment chunk : chunks.values()) {
+                if(chunk != null && ! chunk.isNative() && ! chunk.isMapped()) copies += chunk.byteSize();
+            }
+            budget.admit(copies, muxScope);
+            final MemorySegment assembled = rewrite(webp, chunks, muxScope);
+            // the assembled file is freed as soon as it has been copied
+            final MemorySegment result = budget.allocateNow(assembled.byteSize(), scope);
+            result.copyFrom(assembled);
+            return result;
+        }
+    }
+
+    /** Same as {@link #setChunks}, but the result is libwebp's own buffer, which is
+     * freed when the scope is closed. The input must stay alive until then. */
+    public static MemorySegment rewrite(MemorySegment webp, Map<String, MemorySegment> chunks,
+            ResourceScope scope) throws IOException {
+        final LibWebp libWebp = LibWebp.getInstance();
+        final NativeMemoryBudget budget = NativeMemoryBudget.getInstance();
+        try {
+            final MemoryAddress mux = create(budget.toNative(webp, scope), scope);
+            for(Map.Entry<String, MemorySegment> e : chunks.entrySet()) {
+                final MuxError error;
+                if(e.getValue() == null) {
+                    error = MuxError.of((Integer) libWebp.MuxDeleteChunk.get().invoke(mux,
+                            fourcc(e.getKey(), scope)));
+                    if(error == MuxError.NOT_FOUND) continue;
+                } else {
+                    // not copied: the data is in the scope or owned by the caller, and
+                    // both outlive the assemble
+                    final WebpData data = WebpData.of(budget.toNative(e.getValue(), scope), scope);
+                    error = MuxError.of((Integer) libWebp.MuxSetChunk.get().invoke(mux,
+                            fourcc(e.getKey(), scope), data.segment().address(), 0));
+                }
+                if(error != MuxError.OK)
+                    throw new IIOException("couldn't update the " + e.getKey() + " chunk: " + error);
+            }
+            return assemble(mux, scope);
+        } catch(IOException ioe) {
+            throw ioe;
+        } catch(Throwable t) {
+            throw new IIOException("couldn't rewrite the chunks", t);
+        }
+    }
+
+    /** Match struct WebPMuxFrameInfo */
+    private static final GroupLayout FrameInfo = structLayout(
+            WebpData.WebpData.withName("bitstream"),
+            C_INT.withName("x_offset"),
+            C_INT.withName("y_offset"),
+            C_INT.withName("duration"),
+            C_INT.withName("id"),
+            C_INT.withName("dispose_method"),
+            C_INT.withName("blend_method"),
+            C_INT.withName("pad"),
+            paddingLayout(32)
+    ).withBitAlignment(64);
+
+    /** Extract one frame as a still WebP file. The frame's own image data is copied
+     * as it is, without decoding. Its offset, duration and blending are dropped.
+     * @param index counting from 0
+     * @return libwebp's buffer, which is freed when the scope is closed */
+    public static MemorySegment frame(MemorySegment webp, int index, ResourceScope scope) throws IOException {
+        if(index < 0) throw new IndexOutOfBoundsException("invalid frame: " + index);
+        final LibWebp libWebp = LibWebp.getInstance();
+        try {
+            final MemoryAddress mux = create(NativeMemoryBudget.getInstance().toNative(webp, scope), scope);
+            final MemorySegment frameInfo = MemorySegment.allocateNative(FrameInfo, scope);
+            MuxError error = MuxError.of((Integer) libWebp.MuxGetFrame.get().invoke(mux, index + 1,
+                    frameInfo.address()));
+            if(error == MuxError.NOT_FOUND) throw new IndexOutOfBoundsException("there is no frame: " + index);
+            if(error != MuxError.OK) throw new IIOException("couldn't get frame: " + index + ": " + error);
+            final WebpData bitstream = new WebpData(frameInfo.asSlice(0, WebpData.WebpData.byteSize()));
+            // read the pointer now, since the struct can't be read once the scope is closing
+            final MemoryAddress bitstreamBytes = bitstream.getBytes();
+            scope.addCloseAction(() -> free(bitstreamBytes));
+            final MemoryAddress still = (MemoryAddress) libWebp.MuxNew.get().invoke();
+            if(still.equals(MemoryAddress.NULL)) throw new IIOException("couldn't create a mux");
+            scope.addCloseAction(() -> delete(still));
+            error = MuxError.of((Integer) libWebp.MuxSetImage.get().invoke(still, bitstream.segment().address(), 0));
+            if(error != MuxError.OK) throw new IIOException("couldn't set the image: " + error);
+            return assemble(still, scope);
+        } catch(IOException | IndexOutOfBoundsException e) {
+            throw e;
+        } catch(Throwable t) {
+            throw new IIOException("couldn't extract frame: " + index, t);
+        }
+    }
+
+    /** The number of frames, which is 1 for a still image. This uses libwebpdemux. */
+    public static int frameCount(MemorySegment webp) throws IOException {
+        final LibWebp libWebp = LibWebp.getInstance();
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            final WebpData data = WebpData.of(NativeMemoryBudget.getInstance().toNative(webp, scope), scope);
+            final MemoryAddress demux = (MemoryAddress) libWebp.Demux.get().invoke(data.segment().address());
+            if(demux.equals(MemoryAddress.NULL)) throw new IIOException("the input isn't a valid WebP container");
+            try {
+                return (Integer) libWebp.DemuxGetI.get().invoke(demux, LibWebp.FormatFeature.FRAME_COUNT.ordinal());
+            } finally {
+                libWebp.DemuxDelete.get().invoke(demux);
+            }
+        } catch(IOException ioe) {
+            throw ioe;
+        } catch(Throwable t) {
+            throw new IIOException("couldn't count the frames", t);
+        }
+    }
+
+    /** Parse a WebP file without copying it. The mux is deleted when the scope is
+     * closed, and the input must stay alive until then. */
+    public static MemoryAddress create(MemorySegment webp, ResourceScope scope) throws IOException {
+        final WebpData data = WebpData.of(webp, scope);
+        final MemoryAddress mux;
+        try {
+            mux = (MemoryAddress) LibWebp.getInstance().MuxCreate.get().invoke(data.segment().address(), 0);
+        } catch(IOException ioe) {
+            throw ioe;
+        } catch(Throwable t) {
+            throw new IIOException("couldn't create the mux", t);
+        }
+        if(mux.equals(MemoryAddress.NULL)) throw new IIOException("the input isn't a valid WebP container");
+        scope.addCloseAction(() -> delete(mux));
+        return mux;
+    }
+
+    /** Assemble the mux. The result is libwebp's buffer, which is reserved against
+     * the budget and freed when the scope is closed. */
+    public static MemorySegment assemble(MemoryAddress mux, ResourceScope scope) throws IOException {
+        final LibWebp libWebp = LibWebp.getInstance();
+        final WebpData assembled = new WebpData(MemorySegment.allocateNative(WebpData.WebpData, scope));
+        try {
+            final MuxError error = MuxError.of((Integer) libWebp.MuxAssemble.get().invoke(mux,
+                    assembled.segment().address()));
+            if(error != MuxError.OK) throw new IIOException("couldn't assemble the container: " + error);
+        } catch(IOException ioe) {
+            throw ioe;
+        } catch(Throwable t) {
+            throw new IIOException("couldn't assemble the container", t);
+        }
+        final MemoryAddress bytes = assembled.getBytes();
+        scope.addCloseAction(() -> free(bytes));
+        // libwebp has already allocated this, so it is only accounted for
+        NativeMemoryBudget.getInstance().account(assembled.getSize(), scope);
+        return assembled.data(scope);
+    }
+
+    /** A fourcc as a native string, checking that it is four characters */
+    public static MemoryAddress fourcc(String fourcc, ResourceScope scope) {
+        if(fourcc == null || fourcc.length() != 4)
+            throw new IllegalArgumentException("a fourcc must be four characters: '" + fourcc + "'");
+        return CLinker.toCString(fourcc, scope).address();
+    }
+
+    private static void free(MemoryAddress address) {
+        try {
+            LibWebp.getInstance().Free.get().invoke(address);
+        } catch(Throwable t) {
+            LOG.log(WARNING, "couldn't free the data", t);
+        }
+    }
+
+    private static void delete(MemoryAddress mux) {
+        try {
+            LibWebp.getInstance().MuxDelete.get().invoke(mux);
+        } catch(Throwable t) {
+            LOG.log(WARNING, "couldn't delete the mux", t);
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+package chiralsoftware.linkerwebp.impl;
+
+import static java.lang.Long.rotateLeft;
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * A fast non-cryptographic 64 bit hash of the contents of a memory segment. This
+ * follows the structure of xxHash64: four independent lanes consume 32 bytes per
+ * step so the loop runs at close to memory bandwidth, then the lanes are merged
+ * and the result is avalanched. It is used for digests of small structs such as
+ * the encoder config; caches keyed by content use SHA-256, since content can be
+ * chosen to collide with this hash.
+ */
+public final class SegmentHash {
+
+    private SegmentHash() {
+        throw new RuntimeException("don't instantiate this");
+    }
+
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+
+    public static long hash(MemorySegment segment) {
+        return hash(segment, 0);
+    }
+
+    public static long hash(MemorySegment segment, long seed) {
+        final long size = segment.byteSize();
+        long offset = 0;
+        long h;
+        if(size >= 32) {
+            long v1 = seed + P1 + P2;
+            long v2 = seed + P2;
+            long v3 = seed;
+            long v4 = seed - P1;
+            for(; offset + 32 <= size; offset += 32) {
+                v1 = round(v1, MemoryAccess.getLongAtOffset(segment, offset));
+                v2 = round(v2, MemoryAccess.getLongAtOffset(segment, offset + 8));
+                v3 = round(v3, MemoryAccess.getLongAtOffset(segment, offset + 16));
+                v4 = round(v4, MemoryAccess.getLongAtOffset(segment, offset + 24));
+            }
+            h = rotateLeft(v1, 1) + rotateLeft(v2, 7) + rotateLeft(v3, 12) + rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        } else {
+            h = seed + P5;
+        }
+        h += size;
+        for(; offset + 8 <= size; offset += 8) {
+            h ^= round(0, MemoryAccess.getLongAtOffset(segment, offset));
+            h = rotateLeft(h, 27) * P1 + P4;
+        }
+        for(; offset < size; offset++) {
+            h ^= (MemoryAccess.getByteAtOffset(segment, offset) & 0xffL) * P5;
+            h = rotateLeft(h, 11) * P1;
+        }
+        return avalanche(h);
+    }
+
+    /** Combine an additional value into a hash, for building composite keys */
+    public static long combine(long h, long value) {
+        h ^= round(0, value);
+        return avalanche(rotateLeft(h, 27) * P1 + P4);
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * P2;
+        acc = rotateLeft(acc, 31);
+        return acc * P1;
+    }
+
+    private static long merge(long h, long v) {
+        h ^= round(0, v);
+        return h * P1 + P4;
+    }
+
+    private static long avalanche(long h) {
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+}
@@ -0,0 +1,240 @@
+package chiralsoftware.linkerwebp.impl;
+
+import chiralsoftware.linkerwebp.NativeMemoryBudget;
+import chiralsoftware.linkerwebp.Picture;
+import java.awt.Rectangle;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Logger;
+import javax.imageio.IIOException;
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Get the pixels of a RenderedImage into a picture without RenderedImage.getData(),
+ * which copies the whole image into a new Raster. An image which is a single compact
+ * tile, like most BufferedImages, is used as it is. Anything else is imported one
+ * tile at a time: each tile is copied into a tile-sized native buffer, imported into
+ * a tile-sized band picture, and its ARGB rows copied into the full picture. Tiles
+ * of lazily computed images are only computed as they are reached, so the peak
+ * memory is about one native picture plus one tile.
+ * <p>
+ * A lossy encode works on YUVA, so it can be imported in bands of whole rows
+ * instead: each band is imported into YUVA and its planes copied into the full
+ * picture. The bands are an even number of rows tall, so each 2x2 block of pixels
+ * which shares a chroma sample is in one band, and the result is the same as
+ * importing the whole image at once.
+ */
+public final class TiledImport {
+
+    private static final Logger LOG = Logger.getLogger(TiledImport.class.getName());
+
+    private TiledImport() {
+        throw new RuntimeException("don't instantiate this");
+    }
+
+    /** The image's only tile, if native code can import it in place: it covers the
+     * whole image, is pixel interleaved, and is a single bank of bytes whose first
+     * pixel is at the start of the array. Otherwise null. */
+    public static Raster wholeRaster(RenderedImage image) {
+        if(image.getNumXTiles() != 1 || image.getNumYTiles() != 1) return null;
+        final Raster tile = image.getTile(image.getMinTileX(), image.getMinTileY());
+        if(tile.getMinX() != image.getMinX() || tile.getMinY() != image.getMinY() ||
+                tile.getWidth() != image.getWidth() || tile.getHeight() != image.getHeight()) return null;
+        if(tile.getSampleModelTranslateX() != tile.getMinX() ||
+                tile.getSampleModelTranslateY() != tile.getMinY()) return null;
+        if(! (tile.getDataBuffer() instanceof DataBufferByte dataBufferByte) ||
+                dataBufferByte.getNumBanks() != 1 || dataBufferByte.getOffset() != 0) return null;
+        if(! (tile.getSampleModel() instanceof ComponentSampleModel sampleModel) ||
+                sampleModel.getPixelStride() != sampleModel.getNumBands()) return null;
+        return tile;
+    }
+
+    /** What {@link #importTiles} allocates for this image: the picture and its
+     * planes, and a band picture and buffer the size of one tile */
+    public static long importBytes(RenderedImage image) {
+        final int tileWidth = Math.min(image.getTileWidth(), image.getWidth());
+        final int tileHeight = Math.min(image.getTileHeight(), image.getHeight());
+        return 2 * Picture.Picture.byteSize() + LibWebp.pictureBytes(image.getWidth(), image.getHeight(), true) +
+                LibWebp.pictureBytes(tileWidth, tileHeight, true) +
+                (long) tileWidth * tileHeight * image.getSampleModel().getNumBands();
+    }
+
+    /** The height of the bands {@link #importBands} imports: a tile's height, rounded
+     * up to an even number of rows */
+    private static int bandHeight(RenderedImage image) {
+        final int rows = Math.min(image.getTileHeight(), image.getHeight());
+        return rows + (rows & 1);
+    }
+
+    /** What {@link #importBands} allocates for this image: the picture and its planes,
+     * and a band picture and buffer the size of one band */
+    public static long importBandBytes(RenderedImage image) {
+        final int bandHeight = bandHeight(image);
+        return 2 * Picture.Picture.byteSize() + LibWebp.pictureBytes(image.getWidth(), image.getHeight(), false) +
+                LibWebp.pictureBytes(image.getWidth(), bandHeight, false) +
+                (long) image.getWidth() * bandHeight * image.getSampleModel().getNumBands();
+    }
+
+    /** Import the image in bands of whole rows into a new YUVA picture, whose planes
+     * are freed when the scope is closed.
+     * @param importer the importer for the tiles' band layout, which must be able to
+     * import into YUVA
+     * @param alpha if the picture gets an alpha plane */
+    public static Picture importBands(RenderedImage image, NativeEncoder.Importer importer, boolean alpha,
+            ResourceScope scope) throws IOException {
+        final NativeMemoryBudget budget = NativeMemoryBudget.getInstance();
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int bytesPerPixel = image.getSampleModel().getNumBands();
+        final int[] bandOffsets = ((ComponentSampleModel) image.getSampleModel()).getBandOffsets();
+
+        final Picture picture = NativeEncoder.newPicture(width, height, scope);
+        picture.setUseArgb(0);
+        picture.setColorspace(alpha ? Picture.WEBP_YUV420A : Picture.WEBP_YUV420);
+        budget.reserve(LibWebp.pictureBytes(width, height, false), scope);
+        NativeEncoder.allocPicture(picture);
+        final int uvWidth = (width + 1) / 2;
+        final int uvHeight = (height + 1) / 2;
+        final MemorySegment y = picture.getY().asSegment((long) picture.getYStride() * height, scope);
+        final MemorySegment u = picture.getU().asSegment((long) picture.getUvStride() * uvHeight, scope);
+        final MemorySegment v = picture.getV().asSegment((long) picture.getUvStride() * uvHeight, scope);
+        final MemorySegment a = alpha ? picture.getA().asSegment((long) picture.getAStride() * height, scope) : null;
+
+        final int bandHeight = bandHeight(image);
+        final Picture band = NativeEncoder.newPicture(width, bandHeight, scope);
+        band.setUseArgb(0);
+        budget.reserve(LibWebp.pictureBytes(width, bandHeight, false), scope);
+        final long pixelRow = (long) width * bytesPerPixel;
+        final MemorySegment bandPixels = budget.allocate(pixelRow * bandHeight, scope);
+
+        final Rectangle bounds = new Rectangle(image.getMinX(), image.getMinY(), width, height);
+        final int lastTileY = image.getMinTileY() + image.getNumYTiles() - 1;
+        int bands = 0;
+        for(int top = 0; top < height; top += bandHeight) {
+            final Rectangle rows = new Rectangle(bounds.x, bounds.y + top, width, Math.min(bandHeight, height - top));
+            // only the tiles which overlap these rows
+            final int firstTile = Math.max(image.getMinTileY(),
+                    Math.floorDiv(rows.y - image.getTileGridYOffset(), image.getTileHeight()));
+            final int lastTile = Math.min(lastTileY,
+                    Math.floorDiv(rows.y + rows.height - 1 - image.getTileGridYOffset(), image.getTileHeight()));
+            for(int ty = firstTile; ty <= lastTile; ty++) {
+                for(int tx = image.getMinTileX(); tx < image.getMinTileX() + image.getNumXTiles(); tx++) {
+                    final Raster tile = image.getTile(tx, ty);
+                    final Rectangle r = tile.getBounds().intersection(rows);
+                    if(r.isEmpty()) continue;
+                    copyTile(tile, r, bytesPerPixel, bandOffsets, bandPixels,
+                            (r.y - rows.y) * pixelRow + (long) (r.x - bounds.x) * bytesPerPixel, pixelRow);
+                }
+            }
+            band.setHeight(rows.height);
+            importer.importPixels(band, bandPixels.asSlice(0, pixelRow * rows.height), (int) pixelRow);
+            copyPlane(band.getY(), band.getYStride(), y, picture.getYStride(), top, width, rows.height, scope);
+            final int uvRows = (rows.height + 1) / 2;
+            copyPlane(band.getU(), band.getUvStride(), u, picture.getUvStride(), top / 2, uvWidth, uvRows, scope);
+            copyPlane(band.getV(), band.getUvStride(), v, picture.getUvStride(), top / 2, uvWidth, uvRows, scope);
+            if(a != null) {
+                // the import leaves out the alpha plane of a band which is all opaque
+                if(band.getA().equals(MemoryAddress.NULL)) {
+                    for(int row = 0; row < rows.height; row++)
+                        a.asSlice((long) (top + row) * picture.getAStride(), width).fill((byte) 0xff);
+                } else {
+                    copyPlane(band.getA(), band.getAStride(), a, picture.getAStride(), top, width, rows.height,
+                            scope);
+                }
+            }
+            bands++;
+        }
+        LOG.finer("imported " + bands + " bands of " + width + "x" + bandHeight);
+        return picture;
+    }
+
+    /** Copy rows of a plane of a band picture into the full picture */
+    private static void copyPlane(MemoryAddress source, int sourceStride, MemorySegment destination,
+            int destinationStride, int top, int width, int rows, ResourceScope scope) {
+        final MemorySegment from = source.asSegment((long) sourceStride * rows, scope);
+        for(int row = 0; row < rows; row++) {
+            destination.asSlice((long) (top + row) * destinationStride, width).
+                    copyFrom(from.asSlice((long) row * sourceStride, width));
+        }
+    }
+
+    /** Import the image tile by tile into a new ARGB picture, whose planes are freed
+     * when the scope is closed.
+     * @param importer the importer for the tiles' band layout */
+    public static Picture importTiles(RenderedImage image, NativeEncoder.Importer importer, ResourceScope scope)
+            throws IOException {
+        final NativeMemoryBudget budget = NativeMemoryBudget.getInstance();
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int bytesPerPixel = image.getSampleModel().getNumBands();
+        final int[] bandOffsets = ((ComponentSampleModel) image.getSampleModel()).getBandOffsets();
+
+        final Picture picture = NativeEncoder.newPicture(width, height, scope);
+        picture.setUseArgb(1);
+        budget.reserve(LibWebp.pictureBytes(width, height, true), scope);
+        NativeEncoder.allocPicture(picture);
+        final int argbStride = picture.getArgbStride();
+        final MemorySegment argb = picture.getArgb().asSegment((long) argbStride * height * 4, scope);
+
+        final int tileWidth = Math.min(image.getTileWidth(), width);
+        final int tileHeight = Math.min(image.getTileHeight(), height);
+        final Picture band = NativeEncoder.newPicture(tileWidth, tileHeight, scope);
+        band.setUseArgb(1);
+        budget.reserve(LibWebp.pictureBytes(tileWidth, tileHeight, true), scope);
+        final MemorySegment tilePixels = budget.allocate((long) tileWidth * tileHeight * bytesPerPixel, scope);
+
+        final Rectangle bounds = new Rectangle(image.getMinX(), image.getMinY(), width, height);
+        int tiles = 0;
+        for(int ty = image.getMinTileY(); ty < image.getMinTileY() + image.getNumYTiles(); ty++) {
+            for(int tx = image.getMinTileX(); tx < image.getMinTileX() + image.getNumXTiles(); tx++) {
+                final Raster tile = image.getTile(tx, ty);
+                // tiles at the right and bottom edges can extend past the image
+                final Rectangle r = tile.getBounds().intersection(bounds);
+                if(r.isEmpty()) continue;
+                copyTile(tile, r, bytesPerPixel, bandOffsets, tilePixels, 0, (long) r.width * bytesPerPixel);
+                band.setWidth(r.width);
+                band.setHeight(r.height);
+                importer.importPixels(band, tilePixels.asSlice(0, (long) r.width * r.height * bytesPerPixel),
+                        r.width * bytesPerPixel);
+                final int bandStride = band.getArgbStride();
+                final MemorySegment bandArgb = band.getArgb().asSegment((long) bandStride * r.height * 4, scope);
+                final long rowBytes = (long) r.width * 4;
+                for(int row = 0; row < r.height; row++) {
+                    final long target = ((long) (r.y - bounds.y + row) * argbStride + (r.x - bounds.x)) * 4;
+                    argb.asSlice(target, rowBytes).copyFrom(bandArgb.asSlice((long) row * bandStride * 4, rowBytes));
+                }
+                tiles++;
+            }
+        }
+        LOG.finer("imported " + tiles + " tiles of " + tileWidth + "x" + tileHeight);
+        return picture;
+    }
+
+    /** Copy the region of the tile into rows of the destination, starting at the offset */
+    private static void copyTile(Raster tile, Rectangle r, int bytesPerPixel, int[] bandOffsets,
+            MemorySegment destination, long offset, long destinationStride) throws IIOException {
+        if(! (tile.getSampleModel() instanceof ComponentSampleModel sampleModel) ||
+                sampleModel.getPixelStride() != bytesPerPixel ||
+                ! Arrays.equals(sampleModel.getBandOffsets(), bandOffsets) ||
+                ! (tile.getDataBuffer() instanceof DataBufferByte dataBufferByte) ||
+                dataBufferByte.getNumBanks() != 1)
+            throw new IIOException("every tile must be pixel interleaved bytes in one bank, with band offsets: " +
+                    Arrays.toString(bandOffsets));
+        final MemorySegment data = MemorySegment.ofArray(dataBufferByte.getData());
+        final long rowBytes = (long) r.width * bytesPerPixel;
+        for(int row = 0; row < r.height; row++) {
+            // sample model coordinates are the raster's minus its translation
+            final long source = dataBufferByte.getOffset() +
+                    (long) (r.y + row - tile.getSampleModelTranslateY()) * sampleModel.getScanlineStride() +
+                    (long) (r.x - tile.getSampleModelTranslateX()) * bytesPerPixel;
+            destination.asSlice(offset + row * destinationStride, rowBytes).copyFrom(data.asSlice(source, rowBytes));
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+package chiralsoftware.linkerwebp.impl;
+
+import static jdk.incubator.foreign.CLinker.C_LONG;
+import static jdk.incubator.foreign.CLinker.C_POINTER;
+import jdk.incubator.foreign.GroupLayout;
+import jdk.incubator.foreign.MemoryAddress;
+import static jdk.incubator.foreign.MemoryLayout.PathElement.groupElement;
+import static jdk.incubator.foreign.MemoryLayout.structLayout;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Represent the WebPData struct, which the mux and demux APIs use to pass a
+ * pointer and a size.
+ */
+public final class WebpData {
+
+    /** Match struct WebPData */
+    public static final GroupLayout WebpData = structLayout(
+            C_POINTER.withName("bytes"),
+            C_LONG.withName("size")
+    ).withBitAlignment(64);
+
+    public WebpData(MemorySegment segment) {
+        if(segment == null) throw new NullPointerException("segment can't be null");
+        if(segment.byteSize() != WebpData.byteSize())
+            throw new IllegalArgumentException("segment size was: " + segment.byteSize() +
+                    ", should have been: " + WebpData.byteSize());
+        this.segment = segment;
+    }
+
+    /** A new struct pointing at the data, which must be native or mapped */
+    public static WebpData of(MemorySegment data, ResourceScope scope) {
+        final WebpData result = new WebpData(MemorySegment.allocateNative(WebpData, scope));
+        result.setBytes(data.address());
+        result.setSize(data.byteSize());
+        return result;
+    }
+
+    private final MemorySegment segment;
+
+    public MemorySegment segment() {
+        return segment;
+    }
+
+    public MemoryAddress getBytes() {
+        return (MemoryAddress) WebpData.varHandle(MemoryAddress.class, groupElement("bytes")).get(segment);
+    }
+
+    public void setBytes(MemoryAddress m) {
+        WebpData.varHandle(MemoryAddress.class, groupElement("bytes")).set(segment, m);
+    }
+
+    public long getSize() {
+        return (Long) WebpData.varHandle(long.class, groupElement("size")).get(segment);
+    }
+
+    public void setSize(long l) {
+        WebpData.varHandle(long.class, groupElement("size")).set(segment, l);
+    }
+
+    /** A view of the data, which is only valid as long as whatever owns it */
+    public MemorySegment data(ResourceScope scope) {
+        return getBytes().asSegment(getSize(), scope);
+    }
+
+}
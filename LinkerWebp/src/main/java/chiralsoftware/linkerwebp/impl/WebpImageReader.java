@@ -1,28 +1,40 @@
 package chiralsoftware.linkerwebp.impl;
 
+import chiralsoftware.linkerwebp.DecodedImageCache;
+import chiralsoftware.linkerwebp.NativeMemoryBudget;
+import chiralsoftware.linkerwebp.PixelLayout;
+import chiralsoftware.linkerwebp.SegmentDataBuffer;
+import chiralsoftware.linkerwebp.SegmentImages;
+import chiralsoftware.linkerwebp.WebpMetadata;
+import chiralsoftware.linkerwebp.WebpReadParam;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
 import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import static java.util.logging.Level.WARNING;
 import java.util.logging.Logger;
+import javax.imageio.IIOException;
 import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.spi.ImageReaderSpi;
-import static jdk.incubator.foreign.CLinker.C_INT;
 import java.lang.foreign.MemoryAccess;
 import static java.lang.foreign.MemoryHandles.varHandle;
-import jdk.incubator.foreign.MemoryLayout;
 import jdk.incubator.foreign.MemorySegment;
-import static jdk.incubator.foreign.MemorySegment.allocateNative;
-import static jdk.incubator.foreign.ResourceScope.newImplicitScope;
 
 /**
  * Read a Webp image
@@ -34,25 +46,54 @@ public final class WebpImageReader extends ImageReader {
     private final LibWebp libWebp;
     private int width = -1, height = -1;
     
+    /** A slice of the input buffer holding the current input */
     private MemorySegment inputSegment = null;
     
+    /** Native buffers kept from one input to the next, so a reader which is reused
+     * for many images stops allocating once they are big enough */
+    private final NativeBuffer inputBuffer = new NativeBuffer();
+    private final NativeBuffer outputBuffer = new NativeBuffer();
+    private final NativeBuffer headerBuffer = new NativeBuffer();
+
+    /** The most reset() keeps in each buffer, enough for a 2048x2048 RGBA image */
+    public static final long MAX_IDLE_BUFFER = 16L * 1024 * 1024;
+    
     /** This method must be called to release native memory segments.
      If it is not called the application will leak memory. This is safe to call
-     multiple times */
+     multiple times. To reuse the reader for another image, call setInput() or
+     reset() instead; they keep the buffers, though reset() frees any larger than
+     {@link #MAX_IDLE_BUFFER}. */
     @Override
     public void dispose() {
         super.dispose();
         LOG.fine("disposing resources of this reader");
-//        if(inputSegment != null && inputSegment.isAlive()) inputSegment.close();
+        inputBuffer.close();
+        outputBuffer.close();
+        headerBuffer.close();
         inputSegment = null;
         width = height = -1;
     }
     
+    /** Pooled readers are reset when they are returned, so an idle reader doesn't
+     * hold a large image's buffers reserved against the budget */
+    @Override
+    public void reset() {
+        super.reset();
+        inputBuffer.trim(MAX_IDLE_BUFFER);
+        outputBuffer.trim(MAX_IDLE_BUFFER);
+        headerBuffer.trim(MAX_IDLE_BUFFER);
+    }
+
     public WebpImageReader(ImageReaderSpi irspi) {
         super(irspi);
         this.libWebp = LibWebp.getInstance();
     }
 
+    @Override
+    public ImageReadParam getDefaultReadParam() {
+        return new WebpReadParam();
+    }
+
     /** This should decode a WebP container to see how many frames it contains. For now, always returns 1 */
     @Override
     public int getNumImages(boolean allowSearch) throws IOException {
@@ -76,14 +117,10 @@ public final class WebpImageReader extends ImageReader {
     public Iterator<ImageTypeSpecifier> getImageTypes(int imageIndex) throws IOException {
         if(height < 0) throw new IllegalStateException("there's no image read");
         if(imageIndex != 0) throw new IndexOutOfBoundsException("this only supports single frame images");
-        LOG.info("Ok, I need to get the ImageSpecifier for this");
-        final ImageTypeSpecifier imageTypeSpecifier =
-                ImageTypeSpecifier.createInterleaved(ColorSpace.getInstance(ColorSpace.TYPE_RGB), 
-                        new int[] { 0,1,2} ,
-                        DataBuffer.TYPE_BYTE,
-                        true, false);
-        
-        return List.of(imageTypeSpecifier).iterator();
+        // the premultiplied types composite without Java2D premultiplying every pixel first
+        return List.of(ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_4BYTE_ABGR),
+                ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_4BYTE_ABGR_PRE),
+                ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_ARGB_PRE)).iterator();
     }
 
     @Override
@@ -95,88 +132,272 @@ public final class WebpImageReader extends ImageReader {
     @Override
     public IIOMetadata getImageMetadata(int imageIndex) throws IOException {
         if(imageIndex != 0) throw new IndexOutOfBoundsException("only one frame is supported");
-        return new WebpMetaData();
+        if(inputSegment == null) throw new IllegalStateException("there's no input");
+        // nothing is parsed until the metadata is used
+        return WebpMetadata.of(inputSegment);
     }
     
     /** Read in the image header to get image info */
-    private void readHeader() {
+    private void readHeader() throws IOException {
         if(inputSegment == null) throw new NullPointerException("can't read the header of null input");
-//        if(! inputSegment.isAlive()) throw new IllegalStateException("this image has already been disposed");
 
-        final MemorySegment sizeSegment = 
-                allocateNative(MemoryLayout.structLayout(C_INT.withName("width"), 
-                        C_INT.withName("height")), newImplicitScope());
-        
+        final MemorySegment sizeSegment = headerBuffer.get(8);
+        final int result;
         try {
             // WebPGetInfo(const uint8_t* data, size_t data_size, int* width, int* height)
-            libWebp.GetInfo.invoke(inputSegment.address(), (long) inputSegment.byteSize(), sizeSegment.address(), 
-                    sizeSegment.address().addOffset(4));
+            result = (Integer) libWebp.GetInfo.get().invoke(inputSegment.address(), (long) inputSegment.byteSize(), 
+                    sizeSegment.address(), sizeSegment.address().addOffset(4));
+        } catch (IOException ioe) {
+            throw ioe;
         } catch (Throwable ex) {
-            LOG.log(WARNING, "oh no!", ex);
+            throw new IIOException("couldn't read the header", ex);
         }
+        if(result != 1) throw new IIOException("the input isn't a valid WebP file");
 
-        // we could simplify this by using: MemoryAccess.getIntAt(..)
         width = MemoryAccess.getIntAtOffset(sizeSegment, 0);
         height = MemoryAccess.getIntAtOffset(sizeSegment, 4);
-
     }
 
+    /** Decode into the param's destination at its destination offset, or into a new
+     * image of the destination type. Any image with RGB bytes in a layout libwebp
+     * decodes to, or packed RGB ints, can be a destination, as well as the ABGR
+     * types. Pixels which fall outside the destination are clipped. */
     @Override
     public BufferedImage read(int imageIndex, ImageReadParam param) throws IOException {
-        LOG.info("reading from the input stream! ignoring iimageIndex and param for now.");
         if(imageIndex != 0) 
             throw new IndexOutOfBoundsException("image index must be 0; it was: " + imageIndex);
         
         if(inputSegment == null) 
             throw new NullPointerException("Input stream was null!");
         readHeader();
-        LOG.info("Ok i read the header; size is: " + width  + ", " + height);
-        final MemorySegment outputSegment = MemorySegment.allocateNative(width * height * 4, newImplicitScope());
-        
-        // uint8_t* WebPDecodeARGBInto(const uint8_t* data, size_t data_size,
-        //                    uint8_t* output_buffer, int output_buffer_size, int output_stride);
+        LOG.fine("read the header; size is: " + width  + ", " + height);
+        final Point offset = param == null ? new Point() : param.getDestinationOffset();
+        if(param instanceof WebpReadParam wrp && wrp.getOffHeapScope() != null && param.getDestination() == null) {
+            // decode straight into the caller's native memory; nothing goes on the heap
+            final boolean premultiplied = param.getDestinationType() != null &&
+                    param.getDestinationType().getColorModel().isAlphaPremultiplied();
+            final PixelLayout layout = premultiplied ? PixelLayout.RGBA_PREMULTIPLIED : PixelLayout.RGBA;
+            if(wrp.getDecodedImageCache() != null) return cachedImage(wrp, layout);
+            final MemorySegment pixels = 
+                    NativeMemoryBudget.getInstance().allocate((long) width * height * 4, wrp.getOffHeapScope());
+            NativeDecoder.decodeInto(inputSegment, layout, pixels, width * 4);
+            return SegmentImages.createImage(pixels, layout, width, height, width * 4);
+        }
+        final BufferedImage destination = destination(param, offset);
+        final Target target = target(destination);
+        // the part of the destination the image covers; the rest is left alone
+        final Rectangle region = new Rectangle(offset.x, offset.y, width, height).
+                intersection(new Rectangle(destination.getWidth(), destination.getHeight()));
+        if(region.isEmpty()) return destination;
+        if(decodeInPlace(destination, target, region, offset)) return destination;
+        final PixelLayout layout = target.layout();
+        final int stride = width * layout.bytesPerPixel();
+        final DecodedImageCache cache = 
+                param instanceof WebpReadParam wrp ? wrp.getDecodedImageCache() : null;
+        if(cache != null) {
+            try (DecodedImageCache.Entry entry = cache.acquire(cacheKey(layout), width, height, stride, 
+                    pixels -> NativeDecoder.decodeInto(inputSegment, layout, pixels, stride))) {
+                copyInto(destination, target, entry.pixels(), stride, region, offset);
+                return destination;
+            }
+        }
+        // the output buffer is reused by the next read
+        final MemorySegment outputSegment = outputBuffer.get((long) stride * height);
+        NativeDecoder.decodeInto(inputSegment, layout, outputSegment, stride);
+        copyInto(destination, target, outputSegment, stride, region, offset);
+        return destination;
+    }
+    
+    private DecodedImageCache.Key cacheKey(PixelLayout layout) {
+        return DecodedImageCache.Key.of(inputSegment, layout.name(), width, height);
+    }
+
+    /** An image over the cached pixels, decoding them on a miss. The entry stays
+     * pinned until the param's off-heap scope is closed. The pixels are shared with
+     * the cache, so the image is read-only. */
+    private BufferedImage cachedImage(WebpReadParam param, PixelLayout layout) throws IOException {
+        final int stride = width * 4;
+        final DecodedImageCache.Entry entry = param.getDecodedImageCache().acquire(cacheKey(layout),
+                width, height, stride, pixels -> NativeDecoder.decodeInto(inputSegment, layout, pixels, stride));
         try {
-            libWebp.DecodeARGBInto.invoke(inputSegment.address(), (long) inputSegment.byteSize(),
-                outputSegment.address(), outputSegment.byteSize(), width * 4);
-        } catch (Throwable ex) {
-            LOG.log(WARNING, "oh no!", ex);
+            param.getOffHeapScope().addCloseAction(entry::close);
+        } catch(RuntimeException re) {
+            entry.close();
+            throw re;
         }
-        LOG.fine("Cool! I just did a decode!!!");
-        // now we can read the decoded bytes into a raster
-        final BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
-        final WritableRaster writableRaster = bufferedImage.getRaster();
-        final DataBuffer dataBuffer = writableRaster.getDataBuffer();
-        LOG.finest("cool, I have a databuffer: "+ dataBuffer.getClass());
-        LOG.finest("It has properties: size="+ dataBuffer.getSize() + ", banks=" + dataBuffer.getNumBanks());
-        final DataBufferByte dataBufferByte = (DataBufferByte) dataBuffer;
-        final byte[] bank1 = dataBufferByte.getData();
-        LOG.finest("I got bank1, size is: " + bank1.length);
-        final byte[] outputByteArray = outputSegment.toByteArray();
-        LOG.info("the outputByteArray size is: "+ outputByteArray.length);
-        for(int i = 0; i < bank1.length / 4; i++) { 
-//            bank1[i * 4 + 0] = -1;
-            bank1[i * 4 + 0] = outputByteArray[i * 4 + 0]; // A
-            bank1[i * 4 + 1] = outputByteArray[i * 4 + 3]; // B
-            bank1[i * 4 + 2] = outputByteArray[i * 4 + 2]; // G
-            bank1[i * 4 + 3] = outputByteArray[i * 4 + 1]; // R
+        return SegmentImages.createImage(entry.pixels(), layout, width, height, stride);
+    }
+
+    /** The param's destination, or a new image of the param's destination type, or
+     * TYPE_4BYTE_ABGR, big enough to hold the image at the offset */
+    private BufferedImage destination(ImageReadParam param, Point offset) {
+        if(param != null && param.getDestination() != null) return param.getDestination();
+        final int w = width + Math.max(0, offset.x);
+        final int h = height + Math.max(0, offset.y);
+        if(param != null && param.getDestinationType() != null)
+            return param.getDestinationType().createBufferedImage(w, h);
+        return new BufferedImage(w, h, BufferedImage.TYPE_4BYTE_ABGR);
+    }
+    
+    /** How decoded pixels get into a destination: the layout to decode to, and
+     * whether each pixel is reordered from ARGB to ABGR on the way, because
+     * libwebp has no ABGR mode */
+    private static record Target(PixelLayout layout, boolean abgr) { }
+    
+    /** The target for an image whose raster is interleaved bytes in a layout libwebp
+     * decodes to, such as TYPE_3BYTE_BGR or an image from {@link SegmentImages}; 
+     * the ABGR byte types; or the packed RGB int types. Ints are in native order. */
+    private static Target target(BufferedImage image) throws IIOException {
+        final ColorModel colorModel = image.getColorModel();
+        final SampleModel sampleModel = image.getSampleModel();
+        final boolean alpha = colorModel.hasAlpha();
+        final boolean premultiplied = colorModel.isAlphaPremultiplied();
+        final boolean littleEndian = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+        if(colorModel.getColorSpace().getType() != ColorSpace.TYPE_RGB)
+            throw new IIOException("this reader can only decode to RGB images; the color space type is: " +
+                    colorModel.getColorSpace().getType());
+        if(sampleModel instanceof ComponentSampleModel csm && sampleModel.getDataType() == DataBuffer.TYPE_BYTE &&
+                image.getRaster().getDataBuffer().getNumBanks() == 1) {
+            final int[] bandOffsets = csm.getBandOffsets();
+            if(csm.getPixelStride() == 4 && alpha && Arrays.equals(bandOffsets, new int[] { 3, 2, 1, 0 }))
+                return new Target(premultiplied ? PixelLayout.ARGB_PREMULTIPLIED : PixelLayout.ARGB, true);
+            for(PixelLayout layout : PixelLayout.values()) {
+                if(layout.bytesPerPixel() == csm.getPixelStride() && layout.hasAlpha() == alpha &&
+                        layout.isPremultiplied() == premultiplied && Arrays.equals(layout.bandOffsets(), bandOffsets))
+                    return new Target(layout, false);
+            }
+        } else if(sampleModel instanceof SinglePixelPackedSampleModel sppsm &&
+                image.getRaster().getDataBuffer() instanceof DataBufferInt) {
+            final int[] masks = sppsm.getBitMasks();
+            final boolean rgb = masks[0] == 0xff0000 && masks[1] == 0xff00 && masks[2] == 0xff;
+            if(rgb && (! alpha || masks[3] == 0xff000000)) {
+                if(! littleEndian) 
+                    return new Target(premultiplied ? PixelLayout.ARGB_PREMULTIPLIED : PixelLayout.ARGB, false);
+                if(! alpha) return new Target(PixelLayout.BGRX, false);
+                return new Target(premultiplied ? PixelLayout.BGRA_PREMULTIPLIED : PixelLayout.BGRA, false);
+            }
+            if(! alpha && littleEndian && masks[0] == 0xff && masks[1] == 0xff00 && masks[2] == 0xff0000)
+                return new Target(PixelLayout.RGBX, false);
         }
-        return bufferedImage;
+        throw new IIOException("this reader can't decode to an image with sample model: " + sampleModel + 
+                " and color model: " + colorModel);
+    }
+    
+    /** The destination's pixels as bytes, with where its first element is and its
+     * pixel and row sizes in bytes */
+    private static record Pixels(MemorySegment segment, long base, int pixelBytes, int scanBytes,
+            int translateX, int translateY) {
+        /** The byte offset of a pixel of the image */
+        long offset(int x, int y) {
+            return base + (long) (y - translateY) * scanBytes + (long) (x - translateX) * pixelBytes;
+        }
+    }
+    
+    private static Pixels pixels(BufferedImage image) {
+        final WritableRaster raster = image.getRaster();
+        final DataBuffer dataBuffer = raster.getDataBuffer();
+        final int translateX = raster.getSampleModelTranslateX();
+        final int translateY = raster.getSampleModelTranslateY();
+        if(dataBuffer instanceof DataBufferInt dataBufferInt) {
+            final SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            return new Pixels(MemorySegment.ofArray(dataBufferInt.getData()), dataBuffer.getOffset() * 4L, 4,
+                    sampleModel.getScanlineStride() * 4, translateX, translateY);
+        }
+        final ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+        final MemorySegment segment = dataBuffer instanceof SegmentDataBuffer sdb ? sdb.getSegment() :
+                MemorySegment.ofArray(((DataBufferByte) dataBuffer).getData());
+        return new Pixels(segment, dataBuffer.getOffset(), sampleModel.getPixelStride(),
+                sampleModel.getScanlineStride(), translateX, translateY);
+    }
+    
+    /** Decode straight into the destination, with its stride, if its pixels are in
+     * native memory in a layout libwebp decodes to, and the whole image fits.
+     * @return false if the pixels have to be copied in */
+    private boolean decodeInPlace(BufferedImage destination, Target target, Rectangle region, Point offset) 
+            throws IOException {
+        if(target.abgr() || region.width != width || region.height != height) return false;
+        final Pixels pixels = pixels(destination);
+        if(! pixels.segment().isNative() && ! pixels.segment().isMapped()) return false;
+        final long start = pixels.offset(offset.x, offset.y);
+        if(pixels.segment().byteSize() - start < target.layout().minimumSize(width, height, pixels.scanBytes()))
+            return false;
+        NativeDecoder.decodeInto(inputSegment, target.layout(), pixels.segment().asSlice(start), pixels.scanBytes());
+        return true;
+    }
+    
+    /** Copy the decoded pixels which fall in the region into the destination. Rows
+     * are copied as they are, unless they have to be reordered to ABGR. */
+    private static void copyInto(BufferedImage destination, Target target, MemorySegment decoded, int stride,
+            Rectangle region, Point offset) {
+        final Pixels pixels = pixels(destination);
+        final int bytesPerPixel = target.layout().bytesPerPixel();
+        final long rowBytes = (long) region.width * bytesPerPixel;
+        final byte[] row = target.abgr() ? new byte[(int) rowBytes] : null;
+        for(int y = region.y; y < region.y + region.height; y++) {
+            final MemorySegment source = decoded.asSlice((long) (y - offset.y) * stride + 
+                    (long) (region.x - offset.x) * bytesPerPixel, rowBytes);
+            final MemorySegment destinationRow = pixels.segment().asSlice(pixels.offset(region.x, y), rowBytes);
+            if(row == null) {
+                destinationRow.copyFrom(source);
+                continue;
+            }
+            MemorySegment.ofArray(row).copyFrom(source);
+            for(int i = 0; i < row.length; i += 4) {
+                // A R G B to A B G R: swap red and blue
+                final byte red = row[i + 1];
+                row[i + 1] = row[i + 3];
+                row[i + 3] = red;
+            }
+            destinationRow.copyFrom(MemorySegment.ofArray(row));
+        }
+    }
+    
+    @Override
+    public boolean canReadRaster() {
+        return true;
     }
 
+    /** The pixels as an RGBA raster, without a ColorModel or a BufferedImage. With a
+     * {@link WebpReadParam} off-heap scope the raster is over native memory in that
+     * scope; otherwise the pixels are copied into one heap array. */
+    @Override
+    public Raster readRaster(int imageIndex, ImageReadParam param) throws IOException {
+        if(imageIndex != 0) 
+            throw new IndexOutOfBoundsException("image index must be 0; it was: " + imageIndex);
+        if(inputSegment == null) throw new IllegalStateException("there's no input");
+        readHeader();
+        final int stride = width * 4;
+        if(param instanceof WebpReadParam wrp && wrp.getOffHeapScope() != null) {
+            final MemorySegment pixels = 
+                    NativeMemoryBudget.getInstance().allocate((long) stride * height, wrp.getOffHeapScope());
+            NativeDecoder.decodeInto(inputSegment, PixelLayout.RGBA, pixels, stride);
+            return SegmentImages.createRaster(pixels, PixelLayout.RGBA, width, height, stride);
+        }
+        final MemorySegment pixels = outputBuffer.get((long) stride * height);
+        NativeDecoder.decodeInto(inputSegment, PixelLayout.RGBA, pixels, stride);
+        final WritableRaster raster = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, width, height, 
+                stride, 4, PixelLayout.RGBA.bandOffsets(), null);
+        MemorySegment.ofArray(((DataBufferByte) raster.getDataBuffer()).getData()).copyFrom(pixels);
+        return raster;
+    }
+    
+    /** Replace the input. The 1 and 2 argument versions, and reset(), come through
+     * here. Null clears the input. */
     @Override
-    public void setInput(Object input, boolean isStreamable) {
-        super.setInput(input, isStreamable);
-        if(input == null) throw new NullPointerException("can't set input to null; call dispose() if you wnat to dispose this.");
-        if(inputSegment != null) 
-            throw new IllegalStateException("call dispose() first!");
+    public void setInput(Object input, boolean seekForwardOnly, boolean ignoreMetadata) {
+        super.setInput(input, seekForwardOnly, ignoreMetadata);
+        inputSegment = null;
+        width = height = -1;
+        if(input == null) return;
         
         if (input instanceof byte[] ba) {
-            inputSegment = MemorySegment.allocateNative(ba.length, newImplicitScope());
-
+            try {
+                inputSegment = inputBuffer.get(ba.length);
+            } catch(IOException ioe) {
+                throw new IllegalStateException("couldn't reserve native memory for the input", ioe);
+            }
             // fixme - we shouldn't have to copy bytes
-            final ByteBuffer bb = inputSegment.asByteBuffer();
-            bb.put(ba);
-
+            inputSegment.copyFrom(MemorySegment.ofArray(ba));
             return;
         }
         
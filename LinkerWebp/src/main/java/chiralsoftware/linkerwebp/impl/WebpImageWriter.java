@@ -1,8 +1,14 @@
 package chiralsoftware.linkerwebp.impl;
 
 import chiralsoftware.linkerwebp.Config;
+import chiralsoftware.linkerwebp.ContentAnalysis;
+import chiralsoftware.linkerwebp.EncodeCache;
+import chiralsoftware.linkerwebp.EncoderSettings;
+import chiralsoftware.linkerwebp.NativeMemoryBudget;
 import chiralsoftware.linkerwebp.Picture;
 import static chiralsoftware.linkerwebp.WebpUtils.colorSpaceType;
+import chiralsoftware.linkerwebp.WebpMetadata;
+import chiralsoftware.linkerwebp.WebpWriteParam;
 import chiralsoftware.linkerwebp.WebpWriterSpi;
 import static java.awt.color.ColorSpace.TYPE_RGB;
 import java.awt.image.ColorModel;
@@ -12,18 +18,18 @@ import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
 import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.lang.invoke.MethodHandle;
+import java.nio.ByteOrder;
+import java.time.Instant;
 import java.lang.invoke.MethodHandles;
 import static java.lang.invoke.MethodHandles.insertArguments;
 import java.lang.invoke.MethodType;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
+import java.util.Map;
 import static java.util.logging.Level.WARNING;
 import java.util.logging.Logger;
 import javax.imageio.IIOException;
@@ -32,14 +38,14 @@ import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageOutputStream;
 import jdk.incubator.foreign.CLinker;
 import static jdk.incubator.foreign.CLinker.C_INT;
 import static jdk.incubator.foreign.CLinker.C_POINTER;
 import jdk.incubator.foreign.FunctionDescriptor;
 import jdk.incubator.foreign.MemoryAddress;
 import jdk.incubator.foreign.MemorySegment;
-import static jdk.incubator.foreign.MemorySegment.allocateNative;
-import static jdk.incubator.foreign.ResourceScope.newImplicitScope;
+import jdk.incubator.foreign.ResourceScope;
 
 /**
  * Write a BufferedImage to a webp format
@@ -62,7 +68,7 @@ public final class WebpImageWriter extends ImageWriter {
 
     @Override
     public IIOMetadata getDefaultImageMetadata(ImageTypeSpecifier imageType, ImageWriteParam param) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return new WebpMetadata();
     }
 
     @Override
@@ -72,13 +78,31 @@ public final class WebpImageWriter extends ImageWriter {
 
     @Override
     public IIOMetadata convertImageMetadata(IIOMetadata inData, ImageTypeSpecifier imageType, ImageWriteParam param) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return inData instanceof WebpMetadata ? inData : null;
     }
 
-    /** We are ignoring the ImageWriterParam for now */    
+    @Override
+    public ImageWriteParam getDefaultWriteParam() {
+        return new WebpWriteParam(getLocale());
+    }
+
+    /** The param may be a {@link WebpWriteParam}, or any ImageWriteParam with an
+     explicit compression quality.
+     <p>
+     An image which isn't a single compact tile is imported tile by tile. A lossy
+     encode without content analysis or an encode cache is imported in bands straight
+     into YUVA. Otherwise the tiles are imported into an ARGB picture, because the
+     analysis and the cache key are computed from the imported pixels, and WebPEncode
+     converts it to YUVA again for a lossy encode. The cache lookup also only happens
+     after that import, since the tiles aren't in one buffer to digest before it. */
+    @Override
     public void write(IIOMetadata streamMetadata, IIOImage image, ImageWriteParam param) throws IOException {
+        if(! (output instanceof ImageOutputStream imageOutputStream))
+            throw new IllegalStateException("the output must be set to an ImageOutputStream before writing");
+        final EncoderSettings settings = WebpWriteParam.settingsOf(param);
+        clearAbortRequest();
         final RenderedImage renderedImage = image.getRenderedImage();
-        LOG.info("the sample model is: " + renderedImage.getSampleModel() + 
+        LOG.fine("the sample model is: " + renderedImage.getSampleModel() + 
                 ", which is class: " + renderedImage.getSampleModel().getClass());
         if(! (renderedImage.getSampleModel() instanceof ComponentSampleModel)) {
             throw new IIOException("sample model was of type: " + renderedImage.getSampleModel().getClass() + 
@@ -97,6 +121,10 @@ public final class WebpImageWriter extends ImageWriter {
                     sampleModel.getNumBands() + ". it should be 4");
         if(! (colorModel instanceof ComponentColorModel)) 
             throw new IIOException("This writer expects a ComponentColorModel");
+        // WebP stores straight alpha, and importing premultiplied pixels as they are
+        // would darken every translucent pixel
+        if(colorModel.isAlphaPremultiplied())
+            throw new IIOException("premultiplied alpha isn't supported; the image must have straight alpha");
         
         LOG.finest("The colormodel is: " + colorModel + " which is class: " + 
                 colorModel.getClass() + " and color space type: " + 
@@ -107,92 +135,208 @@ public final class WebpImageWriter extends ImageWriter {
                     "), but this writer only processes " + colorSpaceType(TYPE_RGB));
         }
         
-        final Raster raster = renderedImage.getData();
-        final DataBuffer dataBuffer = raster.getDataBuffer();
-        final DataBufferByte dataBufferByte = (DataBufferByte) dataBuffer;
-        LOG.finer("it has this many banks: " + dataBufferByte.getNumBanks());
-        if(dataBufferByte.getNumBanks() != 1) 
-            throw new IIOException("the dataBuffer contained: " + dataBufferByte.getNumBanks() + 
-                    " banks, but this writer expects 1 bank");
+        if(sampleModel.getDataType() != DataBuffer.TYPE_BYTE)
+            throw new IIOException("the sample model's data type must be TYPE_BYTE; it was: " + 
+                    sampleModel.getDataType());
         
-        final byte[] bytes = dataBufferByte.getData();
-        // let's copy the bytes into a native segment
-        LOG.warning("we're copying byte arrays - fix this so we don't need to do that");
-        MemorySegment copied = MemorySegment.allocateNative(bytes.length, newImplicitScope());
-        copied.asByteBuffer().put(bytes);
-        final MemorySegment configSegment = 
-                allocateNative(Config.Config, newImplicitScope());
-        try {
-            int result = (Integer) libWebp.ConfigInit.invoke(configSegment.address());
-            if(result != 1) 
-                throw new IIOException("couldn't initialize the config segment: " + result);
-            final Config myConfig = new Config(configSegment);
-            LOG.fine("here is the config string: " + myConfig);
-            final MemorySegment pictureSegment =
-                    // implicit scope will be handled by the GC
-                    allocateNative(Picture.Picture, newImplicitScope());
-            result = (Integer) libWebp.PictureInit.invoke(pictureSegment.address());
-            if(result != 1) 
-                throw new IIOException("couldn't initialize Picture object: " +result);
-            
-            final Picture picture = new Picture(pictureSegment);
-            libWebp.PictureInit.invoke(pictureSegment.address());
-            picture.setUseArgb(renderedImage.getColorModel().hasAlpha() ? 1 : 0);
-            picture.setWidth(renderedImage.getWidth());
-            picture.setHeight(renderedImage.getHeight());
-            result = (Integer) libWebp.PictureAlloc.invoke(pictureSegment.address());
-            if(result != 1)
-                throw new IIOException("picture alloc failed!");
-            // which way we import data depends:
-            // does it have alpha or not
-            // three or four bands
-            // RGB or BGR
-            final MethodHandle importer =
-                    switch(ImportType.findType(sampleModel.getBandOffsets(), hasAlpha)) {
-                        case ABGR -> libWebp.PictureImportBGRA;
-                        case BGR -> libWebp.PictureImportBGR;
-                        case BGRX -> libWebp.PictureImportBGRX;
-                        case RGB -> libWebp.PictureImportRGB;
-                        case RGBA -> libWebp.PictureImportRGBA;
-                        case RGBX -> libWebp.PictureImportRGBX;
-                        default -> null;
-                    };
-            if(importer == null)
-                throw new IIOException("couldn't find an importer for band offsets: " +  
-                        Arrays.toString(sampleModel.getBandOffsets()) + " and alpha: "+ hasAlpha);
-            result = (Integer) importer.invoke(pictureSegment.address(), copied.address(), 
-                    renderedImage.getWidth() * sampleModel.getNumBands());
-            LOG.info("ok we just did an invoke, result is: " + result);
+        // which way we import data depends:
+        // does it have alpha or not
+        // three or four bands
+        // RGB or BGR
+        final ImportType importType = ImportType.findType(sampleModel.getBandOffsets(), hasAlpha);
+        if(importType == null)
+            throw new IIOException("couldn't find an importer for band offsets: " +  
+                    Arrays.toString(sampleModel.getBandOffsets()) + " and alpha: "+ hasAlpha);
+        final EncodeCache encodeCache = 
+                param instanceof WebpWriteParam wwp ? wwp.getEncodeCache() : null;
+        final boolean analyze = param instanceof WebpWriteParam wwp && wwp.isContentAnalysis();
+        
+        // the ICC profile, EXIF and XMP chunks to attach, if any
+        final Map<String, MemorySegment> chunks = image.getMetadata() instanceof WebpMetadata metadata ?
+                metadata.getChunks() : Map.of();
+        
+        // getData() would copy the whole image into a new raster. A single compact
+        // tile is used directly, and anything else is imported one tile at a time.
+        final Raster raster = TiledImport.wholeRaster(renderedImage);
+        final NativeMemoryBudget budget = NativeMemoryBudget.getInstance();
+        // every native allocation for this write lives in this scope, so it is all
+        // released (and returned to the budget) as soon as the encode finishes
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            final Config myConfig;
+            final EncodeCache.Key cacheKey;
+            final Picture picture;
+            if(raster != null) {
+                final byte[] bytes = ((DataBufferByte) raster.getDataBuffer()).getData();
+                final int stride = ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+                final ContentAnalysis analysis = analyze ? ContentAnalysis.analyze(MemorySegment.ofArray(bytes),
+                        renderedImage.getWidth(), renderedImage.getHeight(), stride, sampleModel.getNumBands(),
+                        importType.alphaOffset()) : null;
+                // an alpha channel which is all 255 would only make an alpha plane to encode
+                final ImportType chosenType = analysis != null && analysis.opaque() ? importType.opaque() : importType;
+                final EncoderSettings effective = analysis == null ? settings : analysis.apply(settings);
+                // lossless encoding works on ARGB and lossy encoding works on YUVA, so import
+                // straight into the one the encoder will use. Importing into the other one
+                // makes WebPEncode convert the whole picture again, with some loss. Sharp
+                // YUV conversion is done by WebPEncode from ARGB, so that keeps ARGB. There
+                // is no importer from ABGR to YUVA, so that is always ARGB.
+                final boolean useArgb = effective.lossless() || effective.sharpYuv() ||
+                        chosenType == ImportType.ABGR || chosenType == ImportType.XBGR;
+                // admit everything this write allocates at once, so it never holds part of
+                // its memory while waiting for the rest. The output goes to the heap.
+                budget.admit(Config.Config.byteSize() + Picture.Picture.byteSize() + bytes.length +
+                        LibWebp.pictureBytes(renderedImage.getWidth(), renderedImage.getHeight(), useArgb), scope);
+                myConfig = NativeEncoder.newConfig(effective, scope);
+                LOG.fine("here is the config string: " + myConfig);
+                cacheKey = encodeCache == null ? null :
+                        EncodeCache.Key.of(MemorySegment.ofArray(bytes), myConfig.digest(),
+                        renderedImage.getWidth(), renderedImage.getHeight(), chosenType.name() + stride);
+                if(writeCached(imageOutputStream, encodeCache, cacheKey, chunks)) return;
+                // let's copy the bytes into a native segment
+                final MemorySegment copied = budget.toNative(MemorySegment.ofArray(bytes), scope);
+                picture = NativeEncoder.newPicture(renderedImage.getWidth(), renderedImage.getHeight(), scope);
+                picture.setUseArgb(useArgb ? 1 : 0);
+                // the picture planes are allocated by libwebp when the pixels are imported,
+                // so reserve an estimate of their size. They are freed when the scope closes.
+                budget.reserve(LibWebp.pictureBytes(renderedImage.getWidth(), renderedImage.getHeight(), useArgb),
+                        scope);
+                NativeEncoder.importer(chosenType).importPixels(picture, copied, stride);
+            } else if(! analyze && encodeCache == null && ! settings.lossless() && ! settings.sharpYuv() &&
+                    importType != ImportType.ABGR && importType != ImportType.XBGR) {
+                // a lossy encode with nothing to look at in the pixels first: import
+                // straight into the YUVA planes the encoder uses
+                budget.admit(Config.Config.byteSize() + TiledImport.importBandBytes(renderedImage), scope);
+                picture = TiledImport.importBands(renderedImage, NativeEncoder.importer(importType),
+                        importType.alphaOffset() >= 0, scope);
+                myConfig = NativeEncoder.newConfig(settings, scope);
+                LOG.fine("here is the config string: " + myConfig);
+                cacheKey = null;
+            } else {
+                budget.admit(Config.Config.byteSize() + TiledImport.importBytes(renderedImage), scope);
+                picture = TiledImport.importTiles(renderedImage, NativeEncoder.importer(importType), scope);
+                final int argbStride = picture.getArgbStride();
+                final MemorySegment argb = 
+                        picture.getArgb().asSegment((long) argbStride * renderedImage.getHeight() * 4, scope);
+                // the ARGB ints are in native order, so alpha is the last byte on little endian
+                final ContentAnalysis analysis = analyze ? ContentAnalysis.analyze(argb, renderedImage.getWidth(),
+                        renderedImage.getHeight(), argbStride * 4, 4, 
+                        ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 3 : 0) : null;
+                myConfig = NativeEncoder.newConfig(analysis == null ? settings : analysis.apply(settings), scope);
+                LOG.fine("here is the config string: " + myConfig);
+                // the tiles are only in one place once they are imported, so the cache key
+                // is the digest of the ARGB plane. Lossy encodes convert it to YUVA.
+                cacheKey = encodeCache == null ? null :
+                        EncodeCache.Key.of(argb, myConfig.digest(),
+                        renderedImage.getWidth(), renderedImage.getHeight(), "ARGB" + argbStride);
+                if(writeCached(imageOutputStream, encodeCache, cacheKey, chunks)) return;
+            }
             // now we should do an upcall !!!
             final MethodHandle writerMH =
                     MethodHandles.lookup().findStatic(WebpImageWriter.class, "myWriter", 
                             MethodType.methodType(int.class, 
-                                    WritableByteChannel.class, MemoryAddress.class, int.class, MemoryAddress.class));
-            // let's bind a parameter to this handle!
-            final File testFile = new File("/tmp/test-out.webp");
-            testFile.delete();
-            final OutputStream os = new FileOutputStream(testFile);
-            final WritableByteChannel channel = Channels.newChannel(os);
-            final MethodHandle writerBound = insertArguments(writerMH, 0, channel);
+                                    DataOutput.class, MemoryAddress.class, int.class, MemoryAddress.class));
+            // let's bind a parameter to this handle! when caching or adding metadata, the
+            // output is collected so it can be stored or rewritten before it is written
+            final ByteArrayOutputStream collected = 
+                    cacheKey == null && chunks.isEmpty() ? null : new ByteArrayOutputStream();
+            final MethodHandle writerBound = insertArguments(writerMH, 0, 
+                    collected == null ? imageOutputStream : new DataOutputStream(collected));
             final MemoryAddress writerFunctionAddress =
                     CLinker.getInstance().upcallStub(writerBound, 
-                            FunctionDescriptor.of(C_INT, C_POINTER, C_INT, C_POINTER), newImplicitScope());
+                            FunctionDescriptor.of(C_INT, C_POINTER, C_INT, C_POINTER), scope);
             picture.setWriter(writerFunctionAddress.toRawLongValue());
-            LOG.info("I set the writer, now time for encoding fun!");
-            result = (Integer) libWebp.Encode.invoke(configSegment.address(), pictureSegment.address());
-            LOG.info("Ok, what just happened? " + result);
+            LOG.fine("I set the writer, now time for encoding fun!");
+            // the progress hook reports to the listeners, and stops the encode when
+            // abort() is called or the deadline passes
+            final ProgressHook progressHook = 
+                    new ProgressHook(param instanceof WebpWriteParam wwp ? wwp.getDeadline() : null);
+            picture.setProgressHook(CLinker.getInstance().upcallStub(
+                    MethodHandles.lookup().findVirtual(ProgressHook.class, "progress",
+                            MethodType.methodType(int.class, int.class, MemoryAddress.class)).bindTo(progressHook),
+                    FunctionDescriptor.of(C_INT, C_INT, C_POINTER), scope));
+            processImageStarted(0);
+            final int result = (Integer) libWebp.Encode.get().invoke(myConfig.segment().address(), 
+                    picture.segment().address());
+            if(result != 1 && picture.getErrorCode() == LibWebp.EncodingError.VP8_ENC_ERROR_USER_ABORT) {
+                if(progressHook.deadlinePassed)
+                    throw new IIOException("the encode didn't finish by its deadline: " + progressHook.deadline);
+                LOG.fine("the encode was aborted");
+                processWriteAborted();
+                return;
+            }
+            if(result != 1)
+                throw new IIOException("encoding failed: " + picture.getErrorCode().message());
+            processImageComplete();
+            if(collected != null) {
+                final byte[] encoded = collected.toByteArray();
+                if(cacheKey != null) encodeCache.put(cacheKey, encoded);
+                writeEncoded(imageOutputStream, encoded, chunks);
+            }
+            imageOutputStream.flush();
+        } catch(IOException ioe) {
+            throw ioe;
         } catch(Throwable t) {
             throw new IOException("Oh no!", t);
         }
     }
     
-    /** This can be static because we can bind any object necessary to the outputChannel
+    /** Called by libwebp during WebPEncode() with the percent done. Returning 0 stops
+     * the encode with VP8_ENC_ERROR_USER_ABORT. This runs as an upcall, so it must
+     * not throw. */
+    private final class ProgressHook {
+
+        private ProgressHook(Instant deadline) {
+            this.deadline = deadline;
+        }
+
+        private final Instant deadline;
+        private boolean deadlinePassed = false;
+
+        int progress(int percent, MemoryAddress picture) {
+            try {
+                processImageProgress(percent);
+            } catch(RuntimeException re) {
+                LOG.log(WARNING, "a progress listener threw an exception", re);
+            }
+            if(abortRequested()) return 0;
+            if(deadline != null && Instant.now().isAfter(deadline)) {
+                deadlinePassed = true;
+                return 0;
+            }
+            return 1;
+        }
+    }
+    
+    /** Write the cached file for this key, if there is one */
+    private static boolean writeCached(ImageOutputStream imageOutputStream, EncodeCache encodeCache, 
+            EncodeCache.Key cacheKey, Map<String, MemorySegment> chunks) throws IOException {
+        if(cacheKey == null) return false;
+        final byte[] cached = encodeCache.get(cacheKey);
+        if(cached == null) return false;
+        LOG.finer("encode cache hit: " + cacheKey);
+        writeEncoded(imageOutputStream, cached, chunks);
+        imageOutputStream.flush();
+        return true;
+    }
+    
+    /** Write an encoded file, adding the metadata chunks to its container. The
+     * cache holds files without metadata, so this is done on a hit too. */
+    private static void writeEncoded(ImageOutputStream imageOutputStream, byte[] encoded, 
+            Map<String, MemorySegment> chunks) throws IOException {
+        if(chunks.isEmpty()) {
+            imageOutputStream.write(encoded);
+            return;
+        }
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            imageOutputStream.write(NativeMux.setChunks(MemorySegment.ofArray(encoded), chunks, scope).toByteArray());
+        }
+    }
+    
+    /** This can be static because we can bind any object necessary to the output
      parameter */
-    public static int myWriter(WritableByteChannel channel, MemoryAddress data, int dataSize, MemoryAddress picturePointer) {
-        final MemorySegment dataSegment = data.asSegment(dataSize, newImplicitScope());
-        final ByteBuffer byteBuffer = dataSegment.asByteBuffer();
+    public static int myWriter(DataOutput output, MemoryAddress data, int dataSize, MemoryAddress picturePointer) {
+        final MemorySegment dataSegment = data.asSegment(dataSize, ResourceScope.globalScope());
         try {
-            channel.write(byteBuffer);
+            output.write(dataSegment.toByteArray());
         } catch(IOException ioe) {
             LOG.log(WARNING,"caught: ", ioe);
             return 0;
@@ -201,10 +345,9 @@ public final class WebpImageWriter extends ImageWriter {
     }
     
     @Override
-    public void setOutput(Object object) {
+    public void setOutput(Object output) {
         super.setOutput(output);
-        LOG.info("Need to output to this object: " + object);
-        
+        LOG.fine("Need to output to this object: " + output);
     }
     
 }
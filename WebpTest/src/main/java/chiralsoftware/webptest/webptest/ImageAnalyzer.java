@@ -1,73 +1,327 @@
 package chiralsoftware.webptest.webptest;
 
-import com.chiralsoftware.libwebp4j.impl.WebpUtils;
+import chiralsoftware.linkerwebp.EncoderSettings;
+import chiralsoftware.linkerwebp.InstancePool;
+import chiralsoftware.linkerwebp.WebpReaderSpi;
+import chiralsoftware.linkerwebp.WebpUtils;
+import chiralsoftware.linkerwebp.WebpWriteParam;
+import chiralsoftware.linkerwebp.WebpWriterSpi;
 import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
-import java.awt.image.ComponentColorModel;
 import java.awt.image.ComponentSampleModel;
 import java.awt.image.DataBuffer;
-import java.awt.image.DataBufferByte;
-import java.awt.image.Raster;
 import java.awt.image.SampleModel;
-import java.io.File;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
 import static java.lang.System.out;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import static java.util.logging.Level.WARNING;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 /**
- * Convenience to print out a bunch of information about a RenderedImage file
- * so we can test to cover various image types
+ * Profile a corpus of images by the layouts ImageIO decodes them to, to find which
+ * writer paths real traffic takes. Every image under a directory is decoded in
+ * parallel and grouped by its BufferedImage type, ColorModel, SampleModel and band
+ * offsets, and by the path it would take through the writer: imported directly by
+ * libwebp, converted in Java first (the ABGR types), or rejected and redrawn by
+ * {@link Transcoder}. A few images from each group are encoded and decoded to time
+ * them. Given a single file, this prints the details of its layout.
  * Run:
  * java -classpath ForeignLinkerTests/WebpTest/target/WebpTest-1.0-SNAPSHOT.jar:ForeignLinkerTests/LinkerWebp/target/LinkerWebp-1.0-SNAPSHOT.jar chiralsoftware.webptest.webptest.ImageAnalyzer
- * 
+ * &lt;directory or file&gt; [--threads n] [--samples n]
  */
-public class ImageAnalyzer {
-    
+public final class ImageAnalyzer {
+
+    private static final Logger LOG = Logger.getLogger(ImageAnalyzer.class.getName());
+
+    /** Only used to ask which layouts the writer imports */
+    private static final WebpWriterSpi WRITER_SPI = new WebpWriterSpi();
+    private static final int[] ABGR_OFFSETS = { 3, 2, 1, 0 };
+
+    /** The way an image gets into a native picture */
+    public static enum WriterPath {
+        /** the writer hands the pixels to a libwebp importer as they are */
+        DIRECT,
+        /** the writer reorders the pixels in Java before libwebp sees them */
+        CONVERTED,
+        /** the writer throws, so the image has to be redrawn into another type */
+        REJECTED
+    }
+
+    /** The layout of one decoded image */
+    private static record Layout(String type, String colorModel, String sampleModel, String bands,
+            WriterPath path) {
+        @Override
+        public String toString() {
+            return type + " " + colorModel + "/" + sampleModel + " " + bands + " -> " + path;
+        }
+    }
+
+    /** What was learned from one file. Times are -1 if it wasn't sampled. */
+    private static record Profile(Layout layout, long pixels, long encodeNanos, long decodeNanos) { }
+
+    private final Path root;
+    private final int threads;
+    private final int samples;
+    private final InstancePool<ImageWriter> writers;
+    private final InstancePool<ImageReader> readers;
+    /** How many images of each layout have been timed */
+    private final Map<Layout, AtomicInteger> sampled = new ConcurrentHashMap<>();
+
+    public ImageAnalyzer(Path root, int threads, int samples) throws IOException {
+        if(threads < 1) throw new IllegalArgumentException("threads must be at least 1; it was: " + threads);
+        this.root = root;
+        this.threads = threads;
+        this.samples = samples;
+        final WebpWriterSpi writerSpi = IIORegistry.getDefaultInstance().getServiceProviderByClass(WebpWriterSpi.class);
+        final WebpReaderSpi readerSpi = IIORegistry.getDefaultInstance().getServiceProviderByClass(WebpReaderSpi.class);
+        this.writers = (writerSpi != null ? writerSpi : new WebpWriterSpi()).getPool();
+        this.readers = (readerSpi != null ? readerSpi : new WebpReaderSpi()).getPool();
+    }
+
     public static void main(String args[]) throws Exception {
-        final String fileName = args.length == 0 ? "/tmp/test.jpg" : args[0];
-        final File file = new File(fileName);
-        if(! file.canRead()) {
-            out.println("couldn't find file: " + file);
+        final Path path = Path.of(args.length == 0 ? "/tmp/test.jpg" : args[0]);
+        if(! Files.isReadable(path)) {
+            out.println("couldn't find: " + path);
+            return;
+        }
+        if(! Files.isDirectory(path)) {
+            describe(path);
+            return;
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        int samples = 5;
+        for(int i = 1; i < args.length; i++) {
+            switch(args[i]) {
+                case "--threads" -> threads = Integer.parseInt(args[++i]);
+                case "--samples" -> samples = Integer.parseInt(args[++i]);
+                default -> {
+                    out.println("unknown option: " + args[i]);
+                    out.println("usage: ImageAnalyzer <directory or file> [--threads n] [--samples n]");
+                    return;
+                }
+            }
+        }
+        WebpUtils.prewarm();
+        new ImageAnalyzer(path, threads, samples).run(out);
+    }
+
+    /** Profile every image ImageIO can read under the root, and print the report */
+    public void run(PrintStream out) throws IOException, InterruptedException {
+        final Set<String> suffixes = Arrays.stream(ImageIO.getReaderFileSuffixes()).
+                map(s -> s.toLowerCase(Locale.ROOT)).collect(Collectors.toSet());
+        final List<Path> inputs;
+        try (Stream<Path> stream = Files.walk(root)) {
+            inputs = stream.filter(Files::isRegularFile).filter(p -> suffixes.contains(suffix(p))).toList();
+        }
+        LOG.info("profiling " + inputs.size() + " images under: " + root);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Profile> profiles = new ArrayList<>(inputs.size());
+        int unreadable = 0;
+        try {
+            final List<Future<Profile>> futures = new ArrayList<>(inputs.size());
+            for(Path input : inputs) futures.add(executor.submit(() -> profile(input)));
+            for(Future<Profile> future : futures) {
+                try {
+                    final Profile profile = future.get();
+                    if(profile == null) unreadable++;
+                    else profiles.add(profile);
+                } catch(ExecutionException ee) {
+                    unreadable++;
+                    LOG.log(WARNING, "a worker failed", ee.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        print(out, profiles, unreadable);
+    }
+
+    private static String suffix(Path path) {
+        final String name = path.getFileName().toString();
+        final int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private Profile profile(Path input) throws IOException {
+        final BufferedImage image;
+        try {
+            image = ImageIO.read(input.toFile());
+        } catch(IOException | RuntimeException e) {
+            LOG.fine("couldn't decode: " + input + ": " + e);
+            return null;
+        }
+        if(image == null) return null;
+        final Layout layout = layout(image);
+        final long pixels = (long) image.getWidth() * image.getHeight();
+        if(sampled.computeIfAbsent(layout, l -> new AtomicInteger()).incrementAndGet() > samples)
+            return new Profile(layout, pixels, -1, -1);
+        // rejected images are timed with the conversion a caller has to do first
+        final long encodeStart = System.nanoTime();
+        final byte[] webp;
+        try {
+            webp = encode(layout.path() == WriterPath.REJECTED ? Transcoder.toWritable(image) : image);
+        } catch(IOException | RuntimeException e) {
+            LOG.log(WARNING, "couldn't encode: " + input + " with layout: " + layout, e);
+            return new Profile(layout, pixels, -1, -1);
+        }
+        final long encodeNanos = System.nanoTime() - encodeStart;
+        final long decodeStart = System.nanoTime();
+        try (InstancePool.Lease<ImageReader> lease = readers.lease()) {
+            final ImageReader reader = lease.get();
+            reader.setInput(webp);
+            reader.read(0);
+        }
+        return new Profile(layout, pixels, encodeNanos, System.nanoTime() - decodeStart);
+    }
+
+    private byte[] encode(BufferedImage image) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (InstancePool.Lease<ImageWriter> lease = writers.lease();
+                ImageOutputStream ios = new MemoryCacheImageOutputStream(baos)) {
+            final ImageWriter writer = lease.get();
+            final WebpWriteParam param = (WebpWriteParam) writer.getDefaultWriteParam();
+            param.setSettings(EncoderSettings.DEFAULT);
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+        return baos.toByteArray();
+    }
+
+    /** Classify the image by the same checks the writer makes */
+    static Layout layout(BufferedImage image) {
+        final ColorModel colorModel = image.getColorModel();
+        final SampleModel sampleModel = image.getSampleModel();
+        final String bands;
+        if(sampleModel instanceof ComponentSampleModel csm) bands = Arrays.toString(csm.getBandOffsets());
+        else if(sampleModel instanceof SinglePixelPackedSampleModel sppsm)
+            bands = Arrays.stream(sppsm.getBitMasks()).mapToObj(Integer::toHexString).
+                    collect(Collectors.joining(", ", "masks [", "]"));
+        else bands = sampleModel.getNumBands() + " bands";
+        final String colorModelName = colorModel.getClass().getSimpleName() +
+                (colorModel.hasAlpha() ? (colorModel.isAlphaPremultiplied() ? " premultiplied alpha" : " alpha") : "");
+        // libwebp has no ABGR importer, so the writer swaps those pixels itself
+        final WriterPath path = ! WRITER_SPI.canEncodeImage(image) ? WriterPath.REJECTED :
+                Arrays.equals(((ComponentSampleModel) sampleModel).getBandOffsets(), ABGR_OFFSETS) ?
+                WriterPath.CONVERTED : WriterPath.DIRECT;
+        return new Layout(typeName(image.getType()), colorModelName, sampleModel.getClass().getSimpleName(),
+                bands, path);
+    }
+
+    private static String typeName(int type) {
+        return switch(type) {
+            case BufferedImage.TYPE_CUSTOM -> "TYPE_CUSTOM";
+            case BufferedImage.TYPE_INT_RGB -> "TYPE_INT_RGB";
+            case BufferedImage.TYPE_INT_ARGB -> "TYPE_INT_ARGB";
+            case BufferedImage.TYPE_INT_ARGB_PRE -> "TYPE_INT_ARGB_PRE";
+            case BufferedImage.TYPE_INT_BGR -> "TYPE_INT_BGR";
+            case BufferedImage.TYPE_3BYTE_BGR -> "TYPE_3BYTE_BGR";
+            case BufferedImage.TYPE_4BYTE_ABGR -> "TYPE_4BYTE_ABGR";
+            case BufferedImage.TYPE_4BYTE_ABGR_PRE -> "TYPE_4BYTE_ABGR_PRE";
+            case BufferedImage.TYPE_USHORT_565_RGB -> "TYPE_USHORT_565_RGB";
+            case BufferedImage.TYPE_USHORT_555_RGB -> "TYPE_USHORT_555_RGB";
+            case BufferedImage.TYPE_BYTE_GRAY -> "TYPE_BYTE_GRAY";
+            case BufferedImage.TYPE_USHORT_GRAY -> "TYPE_USHORT_GRAY";
+            case BufferedImage.TYPE_BYTE_BINARY -> "TYPE_BYTE_BINARY";
+            case BufferedImage.TYPE_BYTE_INDEXED -> "TYPE_BYTE_INDEXED";
+            default -> "type " + type;
+        };
+    }
+
+    private static void print(PrintStream out, List<Profile> profiles, int unreadable) {
+        final long totalPixels = profiles.stream().mapToLong(Profile::pixels).sum();
+        out.println(String.format(Locale.ROOT, "%,d images, %,d megapixels, %,d unreadable",
+                profiles.size(), totalPixels / 1_000_000, unreadable));
+        if(profiles.isEmpty()) return;
+        final Map<WriterPath, List<Profile>> byPath = new TreeMap<>(
+                profiles.stream().collect(Collectors.groupingBy(p -> p.layout().path())));
+        for(Map.Entry<WriterPath, List<Profile>> e : byPath.entrySet())
+            out.println(String.format(Locale.ROOT, "  %-9s %5.1f%% of images, %5.1f%% of pixels", e.getKey(),
+                    100.0 * e.getValue().size() / profiles.size(),
+                    100.0 * e.getValue().stream().mapToLong(Profile::pixels).sum() / Math.max(1, totalPixels)));
+        out.println();
+        final Map<Layout, List<Profile>> byLayout =
+                profiles.stream().collect(Collectors.groupingBy(Profile::layout));
+        final List<Map.Entry<Layout, List<Profile>>> layouts = new ArrayList<>(byLayout.entrySet());
+        layouts.sort(Comparator.comparingInt((Map.Entry<Layout, List<Profile>> e) -> e.getValue().size()).reversed());
+        for(Map.Entry<Layout, List<Profile>> e : layouts) {
+            final List<Profile> group = e.getValue();
+            final List<Profile> timed = group.stream().filter(p -> p.encodeNanos() >= 0).toList();
+            out.println(e.getKey());
+            out.println(String.format(Locale.ROOT, "    %,d images (%.1f%%), %.1f%% of pixels", group.size(),
+                    100.0 * group.size() / profiles.size(),
+                    100.0 * group.stream().mapToLong(Profile::pixels).sum() / Math.max(1, totalPixels)));
+            if(timed.isEmpty()) continue;
+            final long timedPixels = timed.stream().mapToLong(Profile::pixels).sum();
+            final long encodeNanos = timed.stream().mapToLong(Profile::encodeNanos).sum();
+            final long decodeNanos = timed.stream().mapToLong(Profile::decodeNanos).sum();
+            out.println(String.format(Locale.ROOT,
+                    "    %d sampled: encode median %.1f ms, %.1f MP/s; decode median %.1f ms, %.1f MP/s",
+                    timed.size(), median(timed.stream().mapToLong(Profile::encodeNanos).toArray()) / 1e6,
+                    timedPixels * 1e3 / Math.max(1, encodeNanos),
+                    median(timed.stream().mapToLong(Profile::decodeNanos).toArray()) / 1e6,
+                    timedPixels * 1e3 / Math.max(1, decodeNanos)));
+        }
+    }
+
+    private static long median(long[] values) {
+        Arrays.sort(values);
+        return values[values.length / 2];
+    }
+
+    /** Print the details of one image's layout */
+    private static void describe(Path file) throws IOException {
+        final BufferedImage bim = ImageIO.read(file.toFile());
+        if(bim == null) {
+            out.println("no reader could decode: " + file);
             return;
         }
-        final BufferedImage bim = ImageIO.read(file);
         out.println("Image: " + file + ", " + bim.getWidth() + "x" + bim.getHeight());
         final ColorModel colorModel = bim.getColorModel();
         out.println("Color model: " + colorModel);
         out.println(" which is an instance of: " + colorModel.getClass());
         if(colorModel.hasAlpha()) out.println("has alpha");
-        if(colorModel instanceof ComponentColorModel) {
-            final ComponentColorModel ccm = (ComponentColorModel) colorModel;
-            out.println("It is a ComponentColorModel");
-        }
         final ColorSpace colorSpace = colorModel.getColorSpace();
         out.println("Color space: " + colorSpace + " which is an instance of: " + colorSpace.getClass());
         out.println("   and type: "  +
                 WebpUtils.colorSpaceType(colorSpace.getType()) + " and has: " + colorSpace.getNumComponents() + " components");
-        
         final SampleModel sampleModel = bim.getSampleModel();
         out.println("Sample model: " + sampleModel + ", which is an instance of: "+ sampleModel.getClass());
-        if(sampleModel instanceof ComponentSampleModel) {
-            final ComponentSampleModel csm = (ComponentSampleModel) sampleModel;
+        if(sampleModel instanceof ComponentSampleModel csm) {
             out.println("ComponentSampleModel: with " + csm.getNumBands() + " bands, ");
             out.println(" and band offsets: " + Arrays.toString(csm.getBandOffsets()));
         }
-        out.println("");
-        final Raster raster = bim.getData();
-        final DataBuffer dataBuffer = raster.getDataBuffer();
+        final DataBuffer dataBuffer = bim.getRaster().getDataBuffer();
         out.println("DataBuffer: " + dataBuffer + " is of class: " + dataBuffer.getClass());
         out.println("  the dataBuffer has: "  + dataBuffer.getNumBanks() + " banks");
-        // this should always be of DataBufferByte
-        if(! (dataBuffer instanceof DataBufferByte)) {
-            out.println("The dataBuffer is not of type : " + DataBufferByte.class);
-            return;
-        }
-        final DataBufferByte dataBufferByte = (DataBufferByte) dataBuffer;
-        out.println("The size of the data buffer is: " + dataBufferByte.getData().length);
-        out.println("the number of pixels in the image is: " + (bim.getWidth() * bim.getHeight()));
-        out.println("number of pixels * 4 = " + (bim.getWidth() * bim.getHeight() * 4));
-        out.println("number of pixels * 3 = " + (bim.getWidth() * bim.getHeight() * 3));
+        out.println("Writer path: " + layout(bim));
     }
-    
+
 }
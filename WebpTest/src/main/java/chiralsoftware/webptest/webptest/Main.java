@@ -1,18 +1,25 @@
 package chiralsoftware.webptest.webptest;
 
+import chiralsoftware.linkerwebp.EncoderSettings;
+import chiralsoftware.linkerwebp.Preset;
+import chiralsoftware.linkerwebp.WebpUtils;
 import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
-import java.io.File;
+import static java.lang.System.out;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Locale;
 import java.util.logging.Logger;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
 
 /**
- * Test the ImageIO WebP plugin
+ * Test the ImageIO WebP plugin. This is a bulk transcoder: it converts a directory
+ * tree of JPEG and PNG files to WebP and reports throughput and latency. See
+ * {@link Transcoder}.
  */
 public final class Main {
 
@@ -33,19 +40,85 @@ public final class Main {
         LOG.info("ImageTypeSpecifier num of components= " + imageTypeSpecifier.getNumComponents());
     } 
     
+    private static void usage() {
+        out.println("usage: Main <input directory> <output directory> [options]");
+        out.println("  --threads <n>     number of workers (default: number of cores)");
+        out.println("  --preset <name>   one of: " + Arrays.toString(Preset.values()));
+        out.println("  --quality <q>     0 to 100 (default: 75)");
+        out.println("  --method <m>      0 (fast) to 6 (slower, better)");
+        out.println("  --lossless        encode losslessly");
+        out.println("   or: Main soak [options]");
+        out.println("  --cycles <n>      encode and decode cycles (default: 1000000)");
+        out.println("  --threads <n>     number of workers (default: number of cores)");
+        out.println("  --tolerance <mb>  memory growth allowed after warmup (default: 64)");
+        out.println("  --warmup <n>      cycles before the baseline is taken (default: 10000)");
+        out.println("  --sample <n>      cycles between memory samples (default: 10000)");
+    }
+    
+    /** Run the native memory soak test, exiting with status 1 if memory grows */
+    private static void soak(String[] args) throws Throwable {
+        long cycles = 1_000_000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long toleranceMb = 64;
+        long warmup = 10_000;
+        long sample = 10_000;
+        for(int i = 1; i < args.length; i++) {
+            switch(args[i]) {
+                case "--cycles" -> cycles = Long.parseLong(args[++i]);
+                case "--threads" -> threads = Integer.parseInt(args[++i]);
+                case "--tolerance" -> toleranceMb = Long.parseLong(args[++i]);
+                case "--warmup" -> warmup = Long.parseLong(args[++i]);
+                case "--sample" -> sample = Long.parseLong(args[++i]);
+                default -> {
+                    out.println("unknown option: " + args[i]);
+                    usage();
+                    return;
+                }
+            }
+        }
+        WebpUtils.prewarm();
+        if(! new SoakTest(cycles, threads, toleranceMb * 1024 * 1024, warmup, sample).run(out)) System.exit(1);
+    }
+    
+    /** Transcode every JPEG and PNG under the input directory to WebP, or run the
+     * soak test */
     public static void main(String[] args) throws Throwable {
-        LOG.info("Write a WEBP!");
-        
-        // read a webp image too
-//        final BufferedImage webpInput = ImageIO.read(new File("/tmp/input.webp"));
-//        LOG.info("I read in an input: " + webpInput.getWidth() + "x" + webpInput.getHeight());
-        
-        final BufferedImage inputImage = ImageIO.read(new File("/tmp/test.jpg"));
-        LOG.info("read an image, " + inputImage.getWidth() + "x" + inputImage.getHeight());
-        
-        ImageIO.write(inputImage, "webp", new File("/tmp/output.webp"));
-        
-        LOG.info("did it work?");
+        if(args.length > 0 && args[0].equals("soak")) {
+            soak(args);
+            return;
+        }
+        if(args.length < 2) {
+            usage();
+            return;
+        }
+        final Path inputRoot = Path.of(args[0]);
+        final Path outputRoot = Path.of(args[1]);
+        if(! Files.isDirectory(inputRoot)) {
+            out.println("not a directory: " + inputRoot);
+            return;
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        EncoderSettings settings = EncoderSettings.DEFAULT;
+        for(int i = 2; i < args.length; i++) {
+            switch(args[i]) {
+                case "--threads" -> threads = Integer.parseInt(args[++i]);
+                case "--preset" -> settings = settings.withPreset(Preset.valueOf(args[++i].toUpperCase(Locale.ROOT)));
+                case "--quality" -> settings = settings.withQuality(Float.parseFloat(args[++i]));
+                case "--method" -> settings = settings.withMethod(Integer.parseInt(args[++i]));
+                case "--lossless" -> settings = settings.withLossless(true);
+                default -> {
+                    out.println("unknown option: " + args[i]);
+                    usage();
+                    return;
+                }
+            }
+        }
+        LOG.info("transcoding " + inputRoot + " to " + outputRoot + " with " + threads + 
+                " workers and settings: " + settings);
+        // link libwebp before the clock starts
+        WebpUtils.prewarm();
+        final Transcoder.Report report = new Transcoder(inputRoot, outputRoot, settings, threads).run();
+        report.print(out);
     }
     
 }
@@ -0,0 +1,319 @@
+package chiralsoftware.webptest.webptest;
+
+import chiralsoftware.linkerwebp.EncoderSettings;
+import chiralsoftware.linkerwebp.InstancePool;
+import chiralsoftware.linkerwebp.NativeMemoryBudget;
+import chiralsoftware.linkerwebp.PixelLayout;
+import chiralsoftware.linkerwebp.WebpCodec;
+import chiralsoftware.linkerwebp.WebpMetadata;
+import chiralsoftware.linkerwebp.WebpReadParam;
+import chiralsoftware.linkerwebp.WebpReaderSpi;
+import chiralsoftware.linkerwebp.WebpAsync;
+import chiralsoftware.linkerwebp.WebpRewriter;
+import chiralsoftware.linkerwebp.WebpWriteParam;
+import chiralsoftware.linkerwebp.WebpWriterSpi;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import javax.management.ObjectName;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Run encode and decode cycles for a long time and fail if native memory grows.
+ * Each cycle picks an image type, size and path through the library: lossy and
+ * lossless writes of interleaved and tiled images, with and without metadata and
+ * content analysis, ImageIO reads as heap, premultiplied and off-heap images, raw
+ * and asynchronous decodes, and container rewrites. After a warmup the resident
+ * set size is sampled from /proc/self/status, along with the Native Memory
+ * Tracking total when the JVM runs with -XX:NativeMemoryTracking=summary, and the
+ * run fails as soon as either grows past the tolerance. Both include the Java heap,
+ * so the committed heap is subtracted from them. Before each sample the reader and
+ * writer pools are emptied, because idle instances keep their buffers reserved, and
+ * then the {@link NativeMemoryBudget} must be back to zero.
+ */
+public final class SoakTest {
+
+    private static final Logger LOG = Logger.getLogger(SoakTest.class.getName());
+
+    private static final Pattern RSS = Pattern.compile("VmRSS:\\s+(\\d+) kB");
+    private static final Pattern NMT_TOTAL = Pattern.compile("Total: reserved=(\\d+)KB, committed=(\\d+)KB");
+
+    private final long cycles;
+    private final int threads;
+    private final long toleranceBytes;
+    private final long warmup;
+    private final long sampleEvery;
+
+    private final InstancePool<ImageWriter> writers;
+    private final InstancePool<ImageReader> readers;
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public SoakTest(long cycles, int threads, long toleranceBytes, long warmup, long sampleEvery) throws IOException {
+        this.cycles = cycles;
+        this.threads = threads;
+        this.toleranceBytes = toleranceBytes;
+        this.warmup = warmup;
+        this.sampleEvery = sampleEvery;
+        final WebpWriterSpi writerSpi = IIORegistry.getDefaultInstance().getServiceProviderByClass(WebpWriterSpi.class);
+        final WebpReaderSpi readerSpi = IIORegistry.getDefaultInstance().getServiceProviderByClass(WebpReaderSpi.class);
+        this.writers = (writerSpi != null ? writerSpi : new WebpWriterSpi()).getPool();
+        this.readers = (readerSpi != null ? readerSpi : new WebpReaderSpi()).getPool();
+    }
+
+    /** A memory reading. NMT is -1 if tracking is off. */
+    private static record Sample(long cycle, long rss, long nmtCommitted, long heapCommitted, long budgetUsed) {
+
+        /** The resident set without the heap, which can grow without any leak */
+        long offHeapRss() {
+            return rss - heapCommitted;
+        }
+
+        /** The NMT total without the heap, or -1 if tracking is off */
+        long offHeapNmt() {
+            return nmtCommitted < 0 ? -1 : nmtCommitted - heapCommitted;
+        }
+
+        @Override
+        public String toString() {
+            final String nmt = nmtCommitted < 0 ? "off" : String.format(Locale.ROOT, "%,d KB", offHeapNmt() / 1024);
+            return String.format(Locale.ROOT,
+                    "cycle %,d: rss %,d KB, heap committed %,d KB, off-heap rss %,d KB, off-heap nmt %s, " +
+                    "budget in use %,d", cycle, rss / 1024, heapCommitted / 1024, offHeapRss() / 1024, nmt,
+                    budgetUsed);
+        }
+    }
+
+    /** @return true if memory stayed within the tolerance */
+    public boolean run(PrintStream out) throws IOException, InterruptedException {
+        out.println("warming up for " + warmup + " cycles");
+        runCycles(0, warmup);
+        final Sample baseline = sample(warmup);
+        out.println("baseline: " + baseline);
+        long cycle = warmup;
+        final List<Sample> samples = new ArrayList<>();
+        while(cycle < cycles) {
+            final long next = Math.min(cycles, cycle + sampleEvery);
+            runCycles(cycle, next);
+            cycle = next;
+            final Sample sample = sample(cycle);
+            samples.add(sample);
+            out.println(sample + String.format(Locale.ROOT, ", off-heap rss growth %+,d KB",
+                    (sample.offHeapRss() - baseline.offHeapRss()) / 1024));
+            if(sample.budgetUsed() != 0) {
+                out.println("FAIL: the native memory budget still has " + sample.budgetUsed() +
+                        " bytes reserved with no work running");
+                return false;
+            }
+            if(sample.offHeapRss() - baseline.offHeapRss() > toleranceBytes) {
+                out.println("FAIL: the resident set outside the heap grew by more than " +
+                        toleranceBytes / 1024 + " KB");
+                return false;
+            }
+            if(baseline.offHeapNmt() >= 0 && sample.offHeapNmt() - baseline.offHeapNmt() > toleranceBytes) {
+                out.println("FAIL: NMT committed memory outside the heap grew by more than " +
+                        toleranceBytes / 1024 + " KB");
+                return false;
+            }
+        }
+        out.println(String.format(Locale.ROOT, "PASS: %,d cycles, %,d failed cycles, final %s",
+                done.get(), failures.get(), samples.isEmpty() ? baseline : samples.get(samples.size() - 1)));
+        return failures.get() == 0;
+    }
+
+    private void runCycles(long from, long to) throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            final long perThread = (to - from + threads - 1) / threads;
+            for(int t = 0; t < threads; t++) {
+                final long start = from + t * perThread;
+                final long end = Math.min(to, start + perThread);
+                futures.add(executor.submit(() -> {
+                    for(long c = start; c < end; c++) cycle(c);
+                }));
+            }
+            for(Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch(ExecutionException ee) {
+                    throw new IllegalStateException("a soak worker died", ee.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** One encode and decode, chosen from the cycle number so a run can be repeated */
+    private void cycle(long cycle) {
+        final Random random = new Random(cycle);
+        try {
+            final BufferedImage image = image(random);
+            final boolean tiled = random.nextInt(4) == 0;
+            // a sub-image shares its parent's raster at an offset, so it takes the tiled path
+            final RenderedImage source = tiled ?
+                    padded(image).getSubimage(1, 1, image.getWidth(), image.getHeight()) : image;
+            final EncoderSettings settings = random.nextBoolean() ? EncoderSettings.lossless(random.nextInt(101)) :
+                    EncoderSettings.DEFAULT.withQuality(random.nextInt(101)).withMethod(random.nextInt(3));
+            final byte[] webp = write(source, settings, random.nextInt(3) == 0, random.nextInt(4) == 0);
+            switch(random.nextInt(6)) {
+                case 0 -> read(webp, null);
+                case 1 -> read(webp, ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_ARGB_PRE));
+                case 2 -> readOffHeap(webp);
+                case 3 -> {
+                    try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+                        WebpCodec.decode(MemorySegment.ofArray(webp),
+                                PixelLayout.values()[random.nextInt(PixelLayout.values().length)], scope);
+                    }
+                }
+                case 4 -> {
+                    try (WebpAsync.Decoded decoded = WebpAsync.decodeAsync(MemorySegment.ofArray(webp),
+                            PixelLayout.RGBA).get()) {
+                        decoded.pixels();
+                    }
+                }
+                default -> {
+                    try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+                        new WebpRewriter().stripMetadata().rewrite(MemorySegment.ofArray(webp), scope);
+                    }
+                }
+            }
+        } catch(IOException | RuntimeException | ExecutionException e) {
+            failures.incrementAndGet();
+            LOG.warning("cycle " + cycle + " failed: " + e);
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        done.incrementAndGet();
+    }
+
+    private static BufferedImage image(Random random) {
+        final int[] types = { BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR };
+        // odd sizes exercise the edge handling of the importers and the tile copy
+        final BufferedImage image = new BufferedImage(1 + random.nextInt(640), 1 + random.nextInt(480),
+                types[random.nextInt(types.length)]);
+        final Graphics2D g = image.createGraphics();
+        try {
+            g.setPaint(new GradientPaint(0, 0, new Color(random.nextInt(), true),
+                    image.getWidth(), image.getHeight(), new Color(random.nextInt(), true)));
+            g.fillRect(0, 0, image.getWidth(), image.getHeight());
+            g.setColor(Color.BLACK);
+            g.drawString("soak " + random.nextInt(), 2, image.getHeight() / 2);
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    private static BufferedImage padded(BufferedImage image) {
+        final BufferedImage result = new BufferedImage(image.getWidth() + 2, image.getHeight() + 2, image.getType());
+        final Graphics2D g = result.createGraphics();
+        try {
+            g.drawImage(image, 1, 1, null);
+        } finally {
+            g.dispose();
+        }
+        return result;
+    }
+
+    private byte[] write(RenderedImage image, EncoderSettings settings, boolean metadata, boolean analyze)
+            throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (InstancePool.Lease<ImageWriter> lease = writers.lease();
+                ImageOutputStream ios = new MemoryCacheImageOutputStream(baos)) {
+            final ImageWriter writer = lease.get();
+            final WebpWriteParam param = (WebpWriteParam) writer.getDefaultWriteParam();
+            param.setSettings(settings);
+            param.setContentAnalysis(analyze);
+            final WebpMetadata webpMetadata = new WebpMetadata();
+            if(metadata) webpMetadata.setXmp(MemorySegment.ofArray("<x:xmpmeta/>".getBytes()));
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, metadata ? webpMetadata : null), param);
+        }
+        return baos.toByteArray();
+    }
+
+    private void read(byte[] webp, ImageTypeSpecifier type) throws IOException {
+        try (InstancePool.Lease<ImageReader> lease = readers.lease()) {
+            final ImageReader reader = lease.get();
+            reader.setInput(webp);
+            final WebpReadParam param = new WebpReadParam();
+            param.setDestinationType(type);
+            reader.read(0, param);
+        }
+    }
+
+    private void readOffHeap(byte[] webp) throws IOException {
+        try (InstancePool.Lease<ImageReader> lease = readers.lease();
+                ResourceScope scope = ResourceScope.newConfinedScope()) {
+            final ImageReader reader = lease.get();
+            reader.setInput(webp);
+            final WebpReadParam param = new WebpReadParam();
+            param.setOffHeapScope(scope);
+            reader.readRaster(0, param);
+        }
+    }
+
+    /** Measure with the pools emptied and after a GC, so neither idle instances nor
+     * Java garbage holding native scopes are counted */
+    private Sample sample(long cycle) throws IOException {
+        readers.clear();
+        writers.clear();
+        System.gc();
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        return new Sample(cycle, rss(), nmtCommitted(), memory.getHeapMemoryUsage().getCommitted(),
+                NativeMemoryBudget.getInstance().getUsed());
+    }
+
+    /** The resident set size from /proc/self/status, in bytes */
+    static long rss() throws IOException {
+        final Matcher m = RSS.matcher(Files.readString(Path.of("/proc/self/status")));
+        if(! m.find()) throw new IOException("no VmRSS in /proc/self/status");
+        return Long.parseLong(m.group(1)) * 1024;
+    }
+
+    /** The committed total from Native Memory Tracking, in bytes, or -1 if it is off */
+    static long nmtCommitted() {
+        try {
+            final Object result = ManagementFactory.getPlatformMBeanServer().invoke(
+                    new ObjectName("com.sun.management:type=DiagnosticCommand"), "vmNativeMemory",
+                    new Object[] { new String[] { "summary" } }, new String[] { String[].class.getName() });
+            final Matcher m = NMT_TOTAL.matcher(String.valueOf(result));
+            return m.find() ? Long.parseLong(m.group(2)) * 1024 : -1;
+        } catch(Exception e) {
+            LOG.fine("no native memory tracking: " + e);
+            return -1;
+        }
+    }
+
+}
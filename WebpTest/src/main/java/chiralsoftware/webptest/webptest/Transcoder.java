@@ -0,0 +1,217 @@
+package chiralsoftware.webptest.webptest;
+
+import chiralsoftware.linkerwebp.EncoderSettings;
+import chiralsoftware.linkerwebp.InstancePool;
+import chiralsoftware.linkerwebp.WebpWriteParam;
+import chiralsoftware.linkerwebp.WebpWriterSpi;
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import static java.util.logging.Level.WARNING;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Transcode a directory tree of JPEG and PNG files to WebP using a pool of workers.
+ * The output tree mirrors the input tree. Outputs which are newer than their
+ * input are skipped, and each output is written to a temporary file which is then
+ * atomically moved into place, so a partial file is never visible.
+ */
+public final class Transcoder {
+
+    private static final Logger LOG = Logger.getLogger(Transcoder.class.getName());
+
+    /** Only used to ask which layouts the writer imports */
+    private static final WebpWriterSpi WRITER_SPI = new WebpWriterSpi();
+
+    private final Path inputRoot;
+    private final Path outputRoot;
+    private final EncoderSettings settings;
+    private final int threads;
+    /** Writers are reused across images rather than created for each one */
+    private final InstancePool<ImageWriter> writers;
+
+    public Transcoder(Path inputRoot, Path outputRoot, EncoderSettings settings, int threads) {
+        if(threads < 1) throw new IllegalArgumentException("threads must be at least 1; it was: " + threads);
+        this.inputRoot = inputRoot;
+        this.outputRoot = outputRoot;
+        this.settings = settings;
+        this.threads = threads;
+        final WebpWriterSpi spi = IIORegistry.getDefaultInstance().getServiceProviderByClass(WebpWriterSpi.class);
+        this.writers = (spi != null ? spi : new WebpWriterSpi()).getPool();
+    }
+
+    /** The outcome of one file. Skipped and failed files have zero output bytes. */
+    private static record Result(Path input, boolean skipped, boolean failed,
+            long inputBytes, long pixelBytes, long outputBytes, long nanos) { }
+
+    /** Totals for a run */
+    public static record Report(int converted, int skipped, int failed, long inputBytes, long pixelBytes,
+            long outputBytes, long wallNanos, long p50Nanos, long p99Nanos) {
+
+        public void print(PrintStream out) {
+            final double seconds = wallNanos / 1e9;
+            out.println("converted: " + converted + ", skipped: " + skipped + ", failed: " + failed);
+            out.println(String.format(Locale.ROOT, "wall time: %.2f s", seconds));
+            if(converted == 0) return;
+            out.println(String.format(Locale.ROOT, "throughput: %.1f images/s, %.1f MB/s of input",
+                    converted / seconds, inputBytes / seconds / 1e6));
+            out.println(String.format(Locale.ROOT, "compression ratio: %.2f vs source files, %.2f vs raw pixels",
+                    (double) inputBytes / outputBytes, (double) pixelBytes / outputBytes));
+            out.println(String.format(Locale.ROOT, "per-image latency: p50 %.1f ms, p99 %.1f ms",
+                    p50Nanos / 1e6, p99Nanos / 1e6));
+        }
+    }
+
+    public Report run() throws IOException, InterruptedException {
+        final List<Path> inputs;
+        try (Stream<Path> stream = Files.walk(inputRoot)) {
+            inputs = stream.filter(Files::isRegularFile).filter(Transcoder::isSupported).toList();
+        }
+        LOG.info("found " + inputs.size() + " images under: " + inputRoot);
+        final long start = System.nanoTime();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Result> results = new ArrayList<>(inputs.size());
+        try {
+            final List<Future<Result>> futures = new ArrayList<>(inputs.size());
+            for(Path input : inputs) futures.add(executor.submit(() -> transcode(input)));
+            for(Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch(ExecutionException ee) {
+                    LOG.log(WARNING, "a worker failed", ee.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        final long wallNanos = System.nanoTime() - start;
+
+        final long[] latencies = results.stream().filter(r -> ! r.skipped() && ! r.failed()).
+                mapToLong(Result::nanos).sorted().toArray();
+        int skipped = 0, failed = 0;
+        long inputBytes = 0, pixelBytes = 0, outputBytes = 0;
+        for(Result r : results) {
+            if(r.skipped()) skipped++;
+            else if(r.failed()) failed++;
+            else {
+                inputBytes += r.inputBytes();
+                pixelBytes += r.pixelBytes();
+                outputBytes += r.outputBytes();
+            }
+        }
+        return new Report(latencies.length, skipped, failed + (inputs.size() - results.size()),
+                inputBytes, pixelBytes, outputBytes, wallNanos,
+                percentile(latencies, 0.50), percentile(latencies, 0.99));
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if(sorted.length == 0) return 0;
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static boolean isSupported(Path path) {
+        final String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        return name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png");
+    }
+
+    private Path outputFor(Path input) {
+        final Path relative = inputRoot.relativize(input);
+        final String name = relative.getFileName().toString();
+        final String base = name.substring(0, name.lastIndexOf('.'));
+        return outputRoot.resolve(relative).resolveSibling(base + ".webp");
+    }
+
+    private Result transcode(Path input) throws IOException {
+        final Path output = outputFor(input);
+        if(Files.exists(output) &&
+                Files.getLastModifiedTime(output).compareTo(Files.getLastModifiedTime(input)) >= 0)
+            return new Result(input, true, false, 0, 0, 0, 0);
+
+        final long start = System.nanoTime();
+        final long inputBytes = Files.size(input);
+        final BufferedImage decoded = ImageIO.read(input.toFile());
+        if(decoded == null) {
+            LOG.warning("no reader could decode: " + input);
+            return new Result(input, false, true, inputBytes, 0, 0, 0);
+        }
+        final BufferedImage image = toWritable(decoded);
+        Files.createDirectories(output.getParent());
+        final Path temp = Files.createTempFile(output.getParent(), "." + output.getFileName(), ".tmp");
+        try {
+            // the stream is closed before the writer goes back to the pool
+            try (InstancePool.Lease<ImageWriter> lease = writers.lease();
+                    ImageOutputStream ios = ImageIO.createImageOutputStream(temp.toFile())) {
+                final ImageWriter writer = lease.get();
+                final WebpWriteParam param = (WebpWriteParam) writer.getDefaultWriteParam();
+                param.setSettings(settings);
+                writer.setOutput(ios);
+                writer.write(null, new IIOImage(image, null, null), param);
+            }
+            Files.move(temp, output, ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch(IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            LOG.log(WARNING, "couldn't transcode: " + input, e);
+            return new Result(input, false, true, inputBytes, 0, 0, 0);
+        }
+        final long pixelBytes = (long) image.getWidth() * image.getHeight() * image.getColorModel().getNumComponents();
+        return new Result(input, false, false, inputBytes, pixelBytes, Files.size(output), System.nanoTime() - start);
+    }
+
+    /** Images the writer can import directly are returned as they are. Anything
+     else (gray, palette, 16 bit PNGs) is drawn into an interleaved byte image. */
+    static BufferedImage toWritable(BufferedImage image) {
+        final Raster raster = image.getRaster();
+        final boolean hasAlpha = image.getColorModel().hasAlpha();
+        if(WRITER_SPI.canEncodeImage(image)) return image;
+        LOG.fine("converting image type: " + image.getType() + " with band layout: " +
+                (raster.getSampleModel() instanceof ComponentSampleModel csm ?
+                        Arrays.toString(csm.getBandOffsets()) : raster.getSampleModel().getClass().getSimpleName()));
+        final BufferedImage converted;
+        if(hasAlpha) {
+            // RGBA byte order, which the writer imports directly
+            final int width = image.getWidth(), height = image.getHeight();
+            final WritableRaster rgba = Raster.createWritableRaster(
+                    new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, width, height, 4, width * 4,
+                            new int[] { 0, 1, 2, 3 }), null);
+            converted = new BufferedImage(new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                    true, false, Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE), rgba, false, null);
+        } else {
+            converted = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        }
+        final Graphics2D g = converted.createGraphics();
+        try {
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return converted;
+    }
+
+}